@@ -0,0 +1,335 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+import org.warlock.spine.messaging.EbXmlAcknowledgment;
+
+/**
+ * Queue and sender for asynchronous ebXML acknowledgments, so that they are
+ * sent off the inbound worker, are not lost to a single failed connection,
+ * and don't wait behind bulk traffic.<BR><BR>
+ *
+ * Acknowledgments have their own small set of threads rather than going
+ * through the TransmitExecutor, and borrow connections with
+ * ConnectionPool.borrowPriority(), which can use the endpoint's reserved
+ * connections when the ordinary ones are all taken by message sends. A
+ * pooled connection that turns out to have been closed by the other end is
+ * replaced straight away, as the Transmitter does.<BR><BR>
+ *
+ * An acknowledgment that can't be sent, or gets an HTTP 5xx, is tried again
+ * after a short delay which doubles on each attempt, up to the configured
+ * number of attempts. Only after that is it logged and abandoned, leaving
+ * Spine to resend the message. Send latency, measured from queueing to a
+ * successful response, and failures are counted.
+ */
+public class AckOutbox {
+
+    /**
+     * System property. Number of threads sending acknowledgments. Default 2.
+     */
+    public static final String ACK_THREADS = "org.warlock.spine.connection.ack.threads";
+
+    /**
+     * System property. Most acknowledgments that may be waiting to be sent,
+     * including those waiting to be retried. Beyond that they are dropped and
+     * counted. Default 1000.
+     */
+    public static final String ACK_QUEUE = "org.warlock.spine.connection.ack.queue";
+
+    /**
+     * System property. Number of attempts made to send each acknowledgment.
+     * Default 4.
+     */
+    public static final String ACK_ATTEMPTS = "org.warlock.spine.connection.ack.attempts";
+
+    /**
+     * System property. Time in milliseconds before the first retry of a failed
+     * acknowledgment. Doubled for each later retry. Default 500.
+     */
+    public static final String ACK_RETRY_INTERVAL = "org.warlock.spine.connection.ack.retryinterval";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.AckOutbox";
+
+    private static final long DEFAULT_THREADS = 2;
+    private static final long DEFAULT_QUEUE = 1000;
+    private static final long DEFAULT_ATTEMPTS = 4;
+    private static final long DEFAULT_RETRY_INTERVAL = 500;
+
+    private final ConnectionPool pool;
+    private final int capacity;
+    private final int attempts;
+    private final long retryInterval;
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final AtomicInteger waiting = new AtomicInteger(0);
+    private final AtomicLong queued = new AtomicLong(0);
+    private final AtomicLong sent = new AtomicLong(0);
+    private final AtomicLong retried = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private final AtomicLong totalLatency = new AtomicLong(0);
+    private final AtomicLong maxLatency = new AtomicLong(0);
+
+    AckOutbox(ConnectionPool p) {
+        pool = p;
+        int threads = (int) Math.max(1, ConnectionManager.getLongProperty(ACK_THREADS, DEFAULT_THREADS));
+        capacity = (int) Math.max(1, ConnectionManager.getLongProperty(ACK_QUEUE, DEFAULT_QUEUE));
+        attempts = (int) Math.max(1, ConnectionManager.getLongProperty(ACK_ATTEMPTS, DEFAULT_ATTEMPTS));
+        retryInterval = Math.max(1, ConnectionManager.getLongProperty(ACK_RETRY_INTERVAL, DEFAULT_RETRY_INTERVAL));
+        executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "Spine ack sender-" + count.incrementAndGet());
+            }
+        });
+        executor.setKeepAliveTime(60, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        executor.setExecuteExistingDelayedTasksAfterShutdownPolicy(true);
+    }
+
+    /**
+     * Queue an acknowledgment for sending. Returns straight away.
+     *
+     * @param a Acknowledgment
+     * @return false if the outbox is full or shut down and the acknowledgment
+     * has been dropped.
+     */
+    public boolean send(EbXmlAcknowledgment a) {
+        if (waiting.incrementAndGet() > capacity) {
+            waiting.decrementAndGet();
+            drop("Ack outbox full, dropping acknowledgment");
+            return false;
+        }
+        try {
+            executor.execute(new Delivery(a));
+        } catch (RejectedExecutionException e) {
+            waiting.decrementAndGet();
+            drop("Ack outbox shut down, dropping acknowledgment");
+            return false;
+        }
+        queued.incrementAndGet();
+        return true;
+    }
+
+    private void drop(String reason) {
+        dropped.incrementAndGet();
+        SpineToolsLogger.getInstance().log(LOGSOURCE + ".abandoned", reason);
+    }
+
+    /**
+     * Stop taking acknowledgments. Those already queued, and retries already
+     * scheduled, are still sent.
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * Wait for queued acknowledgments and retries to finish after shutdown().
+     *
+     * @param ms Longest time to wait in milliseconds
+     * @return true if the outbox is empty.
+     * @throws InterruptedException
+     */
+    boolean awaitTermination(long ms)
+            throws InterruptedException {
+        return executor.awaitTermination(ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of acknowledgments waiting to be sent or retried.
+     */
+    public int getQueueDepth() { return waiting.get(); }
+
+    /**
+     * @return Number of acknowledgments accepted into the outbox.
+     */
+    public long getQueuedCount() { return queued.get(); }
+
+    /**
+     * @return Number of acknowledgments sent successfully.
+     */
+    public long getSentCount() { return sent.get(); }
+
+    /**
+     * @return Number of retries made.
+     */
+    public long getRetryCount() { return retried.get(); }
+
+    /**
+     * @return Number of acknowledgments abandoned after their last attempt
+     * failed.
+     */
+    public long getFailedCount() { return failed.get(); }
+
+    /**
+     * @return Number of acknowledgments dropped because the outbox was full or
+     * shut down.
+     */
+    public long getDroppedCount() { return dropped.get(); }
+
+    /**
+     * @return Mean time, in milliseconds, from queueing an acknowledgment to
+     * it being sent successfully.
+     */
+    public double getMeanLatency() {
+        long n = sent.get();
+        return (n == 0) ? 0.0 : ((double) totalLatency.get()) / n;
+    }
+
+    /**
+     * @return Longest time, in milliseconds, from queueing an acknowledgment
+     * to it being sent successfully.
+     */
+    public long getMaxLatency() { return maxLatency.get(); }
+
+    private class Delivery
+            implements Runnable {
+
+        private final EbXmlAcknowledgment ack;
+        private final long created = System.currentTimeMillis();
+        private int tries = 0;
+
+        Delivery(EbXmlAcknowledgment a) {
+            ack = a;
+        }
+
+        @Override
+        public void run() {
+            tries++;
+            String failure = null;
+            try {
+                failure = attempt();
+            } catch (Exception e) {
+                failure = e.toString();
+            }
+            if (failure == null) {
+                done();
+                sent.incrementAndGet();
+                long l = System.currentTimeMillis() - created;
+                totalLatency.addAndGet(l);
+                long m = maxLatency.get();
+                while ((l > m) && !maxLatency.compareAndSet(m, l)) {
+                    m = maxLatency.get();
+                }
+                return;
+            }
+            if (tries >= attempts) {
+                done();
+                failed.incrementAndGet();
+                SpineToolsLogger.getInstance().log(LOGSOURCE + ".abandoned", "Giving up on acknowledgment after " + tries + " attempts: " + failure);
+                return;
+            }
+            long delay = retryInterval << (tries - 1);
+            SpineToolsLogger.getInstance().log(LOGSOURCE + ".failed", "Acknowledgment attempt " + tries + " failed, retrying in " + delay + "ms: " + failure);
+            try {
+                executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+                retried.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                done();
+                failed.incrementAndGet();
+                SpineToolsLogger.getInstance().log(LOGSOURCE + ".abandoned", "Ack outbox shut down, giving up on acknowledgment: " + failure);
+            }
+        }
+
+        private void done() {
+            waiting.decrementAndGet();
+        }
+
+        /**
+         * One attempt at sending the acknowledgment.
+         *
+         * @return null if it was sent and got a non-5xx response, otherwise
+         * the reason it failed.
+         */
+        private String attempt()
+                throws Exception {
+            if (ack.getResolvedUrl() == null) {
+                return "No URL for " + EbXmlAcknowledgment.ACKSERVICE;
+            }
+            URL u = new URL(ack.getResolvedUrl());
+            String host = Transmitter.proxyHost(u.getHost());
+            int port = Transmitter.proxyPort((u.getPort() == -1) ? u.getDefaultPort() : u.getPort());
+            PooledConnection pc = pool.borrowPriority(host, port);
+            boolean reusable = false;
+            try {
+                HttpCodec codec = null;
+                try {
+                    codec = exchange(pc);
+                } catch (IOException eStale) {
+                    // As in the Transmitter, a re-used connection that gave
+                    // nothing back was probably closed while idle.
+                    //
+                    if (!pc.isReused() || (eStale instanceof SocketTimeoutException)) {
+                        throw eStale;
+                    }
+                    pool.release(pc, false);
+                    pc = null;
+                    pool.purge(host, port);
+                    pc = pool.borrowPriority(host, port);
+                    codec = exchange(pc);
+                }
+                if (codec == null) {
+                    return "No HTTP response to acknowledgment";
+                }
+                codec.readBody();
+                reusable = codec.isKeepAlive() && codec.isBodyComplete() && !codec.hasBuffered();
+                if (ConditionalCompilationControls.TESTHARNESS && ConditionalCompilationControls.otwMessageLogging) {
+                    SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.message", "\r\nASYNCHRONOUS ACK RESPONSE INBOUND: \r\n\r\n" + codec.getHeadText());
+                }
+                if (codec.getStatus() >= 500) {
+                    return "HTTP " + codec.getStatus() + " received";
+                }
+                return null;
+            } finally {
+                pool.release(pc, reusable);
+            }
+        }
+
+        /**
+         * @return Codec with the response head read, or null if the connection
+         * closed without a response on a new connection.
+         * @throws IOException if a re-used connection closed without a
+         * response.
+         */
+        private HttpCodec exchange(PooledConnection pc)
+                throws Exception {
+            ack.write(pc.getOutputStream());
+            HttpCodec codec = pc.getCodec();
+            if (!codec.readHead()) {
+                if (pc.isReused()) {
+                    throw new IOException("Pooled connection closed by remote end");
+                }
+                return null;
+            }
+            return codec;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import org.warlock.spine.messaging.DeliveryOutcome;
+import org.warlock.spine.messaging.Sendable;
+
+/**
+ * Results of ConnectionManager.sendAll(). There is one Entry per message, in
+ * the order given, which says which endpoint the message went to, whether the
+ * exchange with the endpoint happened, how long it took, and gives the
+ * message's outcome future. Reliable messages that were sent but are still
+ * waiting for an asynchronous acknowledgment have an incomplete outcome.<BR><BR>
+ *
+ * The aggregate figures cover the period from the sendAll() call to the last
+ * exchange finishing.
+ */
+public class BatchResult {
+
+    private final ArrayList<Entry> entries;
+    private final long started;
+    private long finished = 0;
+    private int endpointCount = 0;
+    private int connectionCount = 0;
+
+    BatchResult(int size) {
+        entries = new ArrayList<>(size);
+        started = System.currentTimeMillis();
+    }
+
+    Entry add(Sendable s) {
+        Entry e = new Entry(s);
+        entries.add(e);
+        return e;
+    }
+
+    void finish(int endpoints, int connections) {
+        endpointCount = endpoints;
+        connectionCount = connections;
+        finished = System.currentTimeMillis();
+    }
+
+    public List<Entry> getEntries() { return Collections.unmodifiableList(entries); }
+
+    /**
+     * @return Number of messages given to sendAll().
+     */
+    public int getMessageCount() { return entries.size(); }
+
+    /**
+     * @return Number of distinct endpoints the messages were sent to.
+     */
+    public int getEndpointCount() { return endpointCount; }
+
+    /**
+     * @return Total number of concurrent senders used across all endpoints.
+     */
+    public int getConnectionCount() { return connectionCount; }
+
+    /**
+     * @return Time taken, in milliseconds, from the call to the last exchange
+     * finishing.
+     */
+    public long getElapsed() { return finished - started; }
+
+    /**
+     * @return Number of messages for which a send was attempted, whatever the
+     * result.
+     */
+    public int getSentCount() {
+        int n = 0;
+        for (Entry e : entries) {
+            if (e.isSent()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return Number of messages not sent, either because they couldn't be
+     * resolved to an endpoint or because the transmitter was shut down.
+     */
+    public int getNotSentCount() {
+        return entries.size() - getSentCount();
+    }
+
+    /**
+     * @return Number of messages with a completed, unsuccessful, outcome.
+     */
+    public int getFailedCount() {
+        int n = 0;
+        for (Entry e : entries) {
+            CompletableFuture<DeliveryOutcome> f = e.getOutcome();
+            if (f.isDone() && (f.isCompletedExceptionally() || !f.join().isSuccess())) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return Number of messages sent, per second of elapsed time.
+     */
+    public double getMessagesPerSecond() {
+        long t = getElapsed();
+        if (t <= 0) {
+            return 0.0;
+        }
+        return (getSentCount() * 1000.0) / t;
+    }
+
+    /**
+     * @return Mean time in milliseconds for the exchange with the endpoint,
+     * over the messages sent.
+     */
+    public double getMeanExchangeTime() {
+        long total = 0;
+        int n = 0;
+        for (Entry e : entries) {
+            if (e.isSent()) {
+                total += e.getExchangeTime();
+                n++;
+            }
+        }
+        return (n == 0) ? 0.0 : ((double) total) / n;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Batch of ");
+        sb.append(entries.size());
+        sb.append(" to ");
+        sb.append(endpointCount);
+        sb.append(" endpoint(s) over ");
+        sb.append(connectionCount);
+        sb.append(" connection(s): sent ");
+        sb.append(getSentCount());
+        sb.append(" in ");
+        sb.append(getElapsed());
+        sb.append("ms (");
+        sb.append(String.format("%.1f", getMessagesPerSecond()));
+        sb.append("/s)");
+        return sb.toString();
+    }
+
+    /**
+     * Result for one message.
+     */
+    public static class Entry {
+
+        private final Sendable sendable;
+        private final CountDownLatch exchanged = new CountDownLatch(1);
+        private String endpoint = null;
+        private String error = null;
+        private volatile boolean sent = false;
+        private long queued = 0;
+        private long exchangeTime = 0;
+
+        private Entry(Sendable s) {
+            sendable = s;
+        }
+
+        public Sendable getSendable() { return sendable; }
+
+        /**
+         * @return "host:port" the message was sent to, or null if it could not
+         * be resolved.
+         */
+        public String getEndpoint() { return endpoint; }
+
+        /**
+         * @return Reason the message was not sent, or null.
+         */
+        public String getError() { return error; }
+
+        /**
+         * @return true if a send was attempted and has finished, whatever the
+         * result. The outcome says what the result was.
+         */
+        public boolean isSent() { return sent; }
+
+        /**
+         * @return Time in milliseconds from the message being taken off the
+         * endpoint queue to the exchange finishing.
+         */
+        public long getExchangeTime() { return exchangeTime; }
+
+        public CompletableFuture<DeliveryOutcome> getOutcome() { return sendable.getOutcome(); }
+
+        void setEndpoint(String e) { endpoint = e; }
+
+        void starting() {
+            queued = System.currentTimeMillis();
+        }
+
+        void exchanged() {
+            exchangeTime = System.currentTimeMillis() - queued;
+            sent = true;
+            exchanged.countDown();
+        }
+
+        void notSent(String reason) {
+            error = reason;
+            // A reliable message stays registered for retry
+            //
+            if (!ConnectionManager.getInstance().isAwaitingAck(sendable.getMessageId())) {
+                sendable.completeOutcome(DeliveryOutcome.FAILED, 0, reason);
+            }
+            exchanged.countDown();
+        }
+
+        void awaitExchange()
+                throws InterruptedException {
+            exchanged.await();
+        }
+    }
+}
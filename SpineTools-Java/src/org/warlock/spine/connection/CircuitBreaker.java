@@ -0,0 +1,300 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Per-endpoint circuit breaker for outbound sends, keyed on "host:port" after
+ * any proxy override.<BR><BR>
+ *
+ * A circuit starts CLOSED. After the configured number of consecutive failed
+ * exchanges (no response, or an HTTP 5xx status) it goes OPEN, and nothing is
+ * sent to the endpoint: the retry processor leaves reliable messages where
+ * they are, and the Transmitter neither opens a connection nor counts a try.
+ * Once the open period has passed the circuit goes HALF_OPEN and one send is
+ * let through as a probe. If the probe gets a response the circuit closes,
+ * otherwise it opens again for another period.<BR><BR>
+ *
+ * Transitions are logged under
+ * org.warlock.spine.connection.CircuitBreaker.transition and counted.
+ */
+public class CircuitBreaker {
+
+    /**
+     * System property. Set to something beginning with "n" or "N" to turn off
+     * the circuit breaker. Default on.
+     */
+    public static final String BREAKER_ENABLED = "org.warlock.spine.connection.breaker.enabled";
+
+    /**
+     * System property. Number of consecutive failures that opens the circuit.
+     * Default 5.
+     */
+    public static final String BREAKER_FAILURES = "org.warlock.spine.connection.breaker.failures";
+
+    /**
+     * System property. Period in milliseconds a circuit stays open before a
+     * probe is allowed. Default 30,000 (30 seconds).
+     */
+    public static final String BREAKER_OPEN_PERIOD = "org.warlock.spine.connection.breaker.openperiod";
+
+    // States
+    //
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    private static final String[] STATENAMES = {"CLOSED", "OPEN", "HALF_OPEN"};
+    private static final String LOGSOURCE = "org.warlock.spine.connection.CircuitBreaker.transition";
+
+    private static final long DEFAULT_FAILURES = 5;
+    private static final long DEFAULT_OPEN_PERIOD = 30000;
+
+    private final boolean enabled;
+    private final int failureThreshold;
+    private final long openPeriod;
+
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+    private final AtomicLong opened = new AtomicLong(0);
+    private final AtomicLong closed = new AtomicLong(0);
+    private final AtomicLong probes = new AtomicLong(0);
+    private final AtomicLong shortCircuited = new AtomicLong(0);
+
+    CircuitBreaker() {
+        enabled = ConnectionManager.getBooleanProperty(BREAKER_ENABLED, true);
+        failureThreshold = (int) Math.max(1, ConnectionManager.getLongProperty(BREAKER_FAILURES, DEFAULT_FAILURES));
+        openPeriod = ConnectionManager.getLongProperty(BREAKER_OPEN_PERIOD, DEFAULT_OPEN_PERIOD);
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * Ask to send to an endpoint. In the HALF_OPEN state this hands out the
+     * single probe, so a caller given true must report the result with
+     * recordSuccess() or recordFailure(), or call abandon() if it didn't send
+     * after all.
+     *
+     * @param endpoint "host:port"
+     * @return true if the send may go ahead.
+     */
+    boolean allowRequest(String endpoint) {
+        if (!enabled) {
+            return true;
+        }
+        if (getCircuit(endpoint).allowRequest()) {
+            return true;
+        }
+        shortCircuited.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Check, without taking the probe, whether a send to the endpoint would be
+     * refused. Used by the retry processor to avoid queueing retries that
+     * would only be deferred.
+     *
+     * @param endpoint "host:port"
+     * @return true if sends to the endpoint are currently held back.
+     */
+    boolean isHeld(String endpoint) {
+        if (!enabled) {
+            return false;
+        }
+        Circuit c = circuits.get(endpoint);
+        return (c != null) && c.isHeld();
+    }
+
+    void recordSuccess(String endpoint) {
+        if (enabled) {
+            getCircuit(endpoint).success(endpoint);
+        }
+    }
+
+    void recordFailure(String endpoint) {
+        if (enabled) {
+            getCircuit(endpoint).failure(endpoint);
+        }
+    }
+
+    /**
+     * A send allowed by allowRequest() was not made.
+     */
+    void abandon(String endpoint) {
+        if (enabled) {
+            getCircuit(endpoint).abandon();
+        }
+    }
+
+    /**
+     * @return "host:port" keys of the endpoints seen so far.
+     */
+    public List<String> getEndpoints() { return new ArrayList<>(circuits.keySet()); }
+
+    /**
+     * @param endpoint "host:port"
+     * @return One of CLOSED, OPEN or HALF_OPEN.
+     */
+    public int getState(String endpoint) {
+        Circuit c = circuits.get(endpoint);
+        return (c == null) ? CLOSED : c.getState();
+    }
+
+    public static String getStateName(int s) {
+        if ((s < 0) || (s >= STATENAMES.length)) {
+            return "UNKNOWN";
+        }
+        return STATENAMES[s];
+    }
+
+    /**
+     * @return Number of times a circuit has opened, including re-opening after
+     * a failed probe.
+     */
+    public long getOpenedCount() { return opened.get(); }
+
+    /**
+     * @return Number of times a circuit has closed after a successful probe.
+     */
+    public long getClosedCount() { return closed.get(); }
+
+    /**
+     * @return Number of probes sent.
+     */
+    public long getProbeCount() { return probes.get(); }
+
+    /**
+     * @return Number of sends held back by an open circuit.
+     */
+    public long getShortCircuitedCount() { return shortCircuited.get(); }
+
+    private Circuit getCircuit(String key) {
+        Circuit c = circuits.get(key);
+        if (c == null) {
+            Circuit n = new Circuit();
+            c = circuits.putIfAbsent(key, n);
+            if (c == null) {
+                c = n;
+            }
+        }
+        return c;
+    }
+
+    private static void logTransition(String endpoint, int from, int to, String why) {
+        StringBuilder sb = new StringBuilder("Circuit for ");
+        sb.append(endpoint);
+        sb.append(" ");
+        sb.append(STATENAMES[from]);
+        sb.append(" -> ");
+        sb.append(STATENAMES[to]);
+        sb.append(": ");
+        sb.append(why);
+        SpineToolsLogger.getInstance().log(LOGSOURCE, sb.toString());
+    }
+
+    private class Circuit {
+
+        private int state = CLOSED;
+        private int failures = 0;
+        private long openedAt = 0;
+        private boolean probing = false;
+
+        synchronized boolean allowRequest() {
+            switch (state) {
+                case CLOSED:
+                    return true;
+                case OPEN:
+                    if (System.currentTimeMillis() - openedAt < openPeriod) {
+                        return false;
+                    }
+                    state = HALF_OPEN;
+                    probing = true;
+                    probes.incrementAndGet();
+                    return true;
+                default:
+                    if (probing) {
+                        return false;
+                    }
+                    probing = true;
+                    probes.incrementAndGet();
+                    return true;
+            }
+        }
+
+        synchronized boolean isHeld() {
+            switch (state) {
+                case CLOSED:
+                    return false;
+                case OPEN:
+                    return (System.currentTimeMillis() - openedAt < openPeriod);
+                default:
+                    return probing;
+            }
+        }
+
+        void success(String endpoint) {
+            int from = CLOSED;
+            synchronized (this) {
+                failures = 0;
+                if ((state != HALF_OPEN) || !probing) {
+                    // Closed already, or the result of a send that started
+                    // before the circuit opened rather than of a probe
+                    return;
+                }
+                from = state;
+                state = CLOSED;
+                probing = false;
+            }
+            closed.incrementAndGet();
+            logTransition(endpoint, from, CLOSED, "probe succeeded");
+        }
+
+        void failure(String endpoint) {
+            int from = CLOSED;
+            int f = 0;
+            synchronized (this) {
+                f = ++failures;
+                if ((state == CLOSED) && (failures < failureThreshold)) {
+                    return;
+                }
+                if (state == OPEN) {
+                    // Result of a send that started before the circuit opened
+                    return;
+                }
+                from = state;
+                state = OPEN;
+                probing = false;
+                openedAt = System.currentTimeMillis();
+            }
+            opened.incrementAndGet();
+            logTransition(endpoint, from, OPEN, (from == CLOSED) ? (f + " consecutive failures") : "probe failed");
+        }
+
+        synchronized void abandon() {
+            if (state == HALF_OPEN) {
+                probing = false;
+            }
+        }
+
+        synchronized int getState() { return state; }
+    }
+}
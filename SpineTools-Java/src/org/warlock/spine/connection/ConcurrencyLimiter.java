@@ -0,0 +1,263 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive limit on the number of concurrent exchanges with each Spine
+ * endpoint, applied by the Transmitter to first sends and retries alike.<BR><BR>
+ *
+ * The limit for each endpoint is adjusted on every completed exchange using
+ * additive-increase, multiplicative-decrease on response latency. The limiter
+ * keeps a baseline of the lowest recent latency for the endpoint. An exchange
+ * that takes longer than the baseline times the tolerance, or that fails
+ * without a response or with an HTTP 5xx status, cuts the limit by the backoff
+ * ratio. Any other exchange, made while at least half the limit was in use,
+ * grows the limit by about one per limit's-worth of exchanges.<BR><BR>
+ *
+ * A send that arrives when its endpoint is at the limit is queued here rather
+ * than holding a transmitter thread, and is handed back to the transmit
+ * executor when an exchange with the same endpoint finishes. Endpoints are
+ * keyed on "host:port" after any proxy override.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * System property. Set to something beginning with "n" or "N" to turn off
+     * limiting. In-flight counts are still kept. Default on.
+     */
+    public static final String LIMIT_ENABLED = "org.warlock.spine.connection.limit.enabled";
+
+    /**
+     * System property. Starting limit for each endpoint. Default 8.
+     */
+    public static final String LIMIT_INITIAL = "org.warlock.spine.connection.limit.initial";
+
+    /**
+     * System property. Lowest the limit will go. Default 1.
+     */
+    public static final String LIMIT_MIN = "org.warlock.spine.connection.limit.min";
+
+    /**
+     * System property. Highest the limit will go. Default 64, and never more
+     * than the connection pool's per-endpoint maximum when pooling is on.
+     */
+    public static final String LIMIT_MAX = "org.warlock.spine.connection.limit.max";
+
+    /**
+     * System property. Latency, as a percentage of the baseline, above which
+     * an exchange is taken as a sign of congestion. Default 200.
+     */
+    public static final String LIMIT_TOLERANCE = "org.warlock.spine.connection.limit.tolerancepercent";
+
+    /**
+     * System property. Percentage the limit is multiplied by on congestion.
+     * Default 90.
+     */
+    public static final String LIMIT_BACKOFF = "org.warlock.spine.connection.limit.backoffpercent";
+
+    private static final long DEFAULT_INITIAL = 8;
+    private static final long DEFAULT_MIN = 1;
+    private static final long DEFAULT_MAX = 64;
+    private static final long DEFAULT_TOLERANCE = 200;
+    private static final long DEFAULT_BACKOFF = 90;
+
+    // The baseline creeps up towards observed latency by this fraction of the
+    // difference on each sample, so that an endpoint which has got permanently
+    // slower is eventually re-baselined rather than throttled for ever.
+    //
+    private static final double BASELINE_DRIFT = 0.01;
+
+    private final boolean enabled;
+    private final int initial;
+    private final int min;
+    private final int max;
+    private final double tolerance;
+    private final double backoff;
+
+    private final ConcurrentHashMap<String, EndpointLimit> limits = new ConcurrentHashMap<>();
+
+    /**
+     * @param cap Upper bound on the maximum, or zero for none.
+     */
+    ConcurrencyLimiter(int cap) {
+        enabled = ConnectionManager.getBooleanProperty(LIMIT_ENABLED, true);
+        min = (int) Math.max(1, ConnectionManager.getLongProperty(LIMIT_MIN, DEFAULT_MIN));
+        int m = (int) Math.max(min, ConnectionManager.getLongProperty(LIMIT_MAX, DEFAULT_MAX));
+        if ((cap > 0) && (cap < m)) {
+            m = Math.max(min, cap);
+        }
+        max = m;
+        initial = (int) Math.min(max, Math.max(min, ConnectionManager.getLongProperty(LIMIT_INITIAL, DEFAULT_INITIAL)));
+        tolerance = Math.max(100, ConnectionManager.getLongProperty(LIMIT_TOLERANCE, DEFAULT_TOLERANCE)) / 100.0;
+        backoff = Math.min(99, Math.max(1, ConnectionManager.getLongProperty(LIMIT_BACKOFF, DEFAULT_BACKOFF))) / 100.0;
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * Ask to start an exchange with an endpoint.
+     *
+     * @param endpoint "host:port"
+     * @param t Transmitter to queue if the endpoint is at its limit
+     * @return true if the exchange may go ahead now, false if the Transmitter
+     * has been queued.
+     */
+    boolean acquire(String endpoint, Transmitter t) {
+        return getEndpointLimit(endpoint).acquire(t);
+    }
+
+    /**
+     * Record the end of an exchange, and get the next queued Transmitter for
+     * the endpoint if there is now room for it. The caller is responsible for
+     * running the returned Transmitter.
+     *
+     * @param endpoint "host:port"
+     * @param latency Time the exchange took in milliseconds
+     * @param ok false if the exchange failed without a response, or got an
+     * HTTP 5xx status.
+     * @return A queued Transmitter which has been admitted, or null.
+     */
+    Transmitter release(String endpoint, long latency, boolean ok) {
+        return getEndpointLimit(endpoint).release(latency, ok);
+    }
+
+    /**
+     * As release(), for an exchange that was admitted but never started, so
+     * the limit is not adjusted.
+     *
+     * @param endpoint "host:port"
+     * @return A queued Transmitter which has been admitted, or null.
+     */
+    Transmitter cancel(String endpoint) {
+        return getEndpointLimit(endpoint).cancel();
+    }
+
+    /**
+     * @return "host:port" keys of the endpoints seen so far.
+     */
+    public List<String> getEndpoints() { return new ArrayList<>(limits.keySet()); }
+
+    /**
+     * @param endpoint "host:port"
+     * @return Current concurrency limit for the endpoint.
+     */
+    public int getLimit(String endpoint) {
+        EndpointLimit e = limits.get(endpoint);
+        return (e == null) ? initial : e.getLimit();
+    }
+
+    /**
+     * @param endpoint "host:port"
+     * @return Number of exchanges with the endpoint in progress.
+     */
+    public int getInFlight(String endpoint) {
+        EndpointLimit e = limits.get(endpoint);
+        return (e == null) ? 0 : e.getInFlight();
+    }
+
+    /**
+     * @param endpoint "host:port"
+     * @return Number of sends waiting for the endpoint to drop below its limit.
+     */
+    public int getQueued(String endpoint) {
+        EndpointLimit e = limits.get(endpoint);
+        return (e == null) ? 0 : e.getQueued();
+    }
+
+    /**
+     * @param endpoint "host:port"
+     * @return Current baseline latency for the endpoint in milliseconds, or
+     * zero if there have been no exchanges yet.
+     */
+    public long getBaselineLatency(String endpoint) {
+        EndpointLimit e = limits.get(endpoint);
+        return (e == null) ? 0 : e.getBaseline();
+    }
+
+    private EndpointLimit getEndpointLimit(String key) {
+        EndpointLimit e = limits.get(key);
+        if (e == null) {
+            EndpointLimit n = new EndpointLimit();
+            e = limits.putIfAbsent(key, n);
+            if (e == null) {
+                e = n;
+            }
+        }
+        return e;
+    }
+
+    private class EndpointLimit {
+
+        private double limit = initial;
+        private double baseline = 0.0;
+        private int inFlight = 0;
+        private final ArrayDeque<Transmitter> queue = new ArrayDeque<>();
+
+        synchronized boolean acquire(Transmitter t) {
+            if (!enabled || (inFlight < (int) limit)) {
+                inFlight++;
+                return true;
+            }
+            queue.add(t);
+            return false;
+        }
+
+        synchronized Transmitter release(long latency, boolean ok) {
+            boolean busy = (inFlight * 2 >= (int) limit);
+            inFlight--;
+            if (!ok) {
+                limit = Math.max(min, limit * backoff);
+            } else {
+                if ((baseline == 0.0) || (latency < baseline)) {
+                    baseline = Math.max(1, latency);
+                } else {
+                    baseline += (latency - baseline) * BASELINE_DRIFT;
+                }
+                if (latency > baseline * tolerance) {
+                    limit = Math.max(min, limit * backoff);
+                } else if (busy) {
+                    limit = Math.min(max, limit + (1.0 / limit));
+                }
+            }
+            return next();
+        }
+
+        synchronized Transmitter cancel() {
+            inFlight--;
+            return next();
+        }
+
+        private Transmitter next() {
+            if (!queue.isEmpty() && (!enabled || (inFlight < (int) limit))) {
+                inFlight++;
+                return queue.poll();
+            }
+            return null;
+        }
+
+        synchronized int getLimit() { return (int) limit; }
+        synchronized int getInFlight() { return inFlight; }
+        synchronized int getQueued() { return queue.size(); }
+        synchronized long getBaseline() { return (long) baseline; }
+    }
+}
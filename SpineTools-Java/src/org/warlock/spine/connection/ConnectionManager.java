@@ -18,9 +18,13 @@ limitations under the License..
 package org.warlock.spine.connection;
 import org.warlock.spine.logging.SpineToolsLogger;
 import org.warlock.spine.messaging.DefaultFileSaveEbXmlHandler;
+import org.warlock.spine.messaging.DeliveryOutcome;
 import org.warlock.spine.messaging.DefaultFileSaveSynchronousResponseHandler;
 import org.warlock.spine.messaging.EbXmlMessage;
+import org.warlock.spine.messaging.BackoffRetryPolicy;
 import org.warlock.spine.messaging.ExpiredMessageHandler;
+import org.warlock.spine.messaging.FixedIntervalRetryPolicy;
+import org.warlock.spine.messaging.RetryPolicy;
 // import org.warlock.spine.messaging.ITKTrunkHandler;
 import org.warlock.spine.messaging.NullSynchronousResponseHandler;
 import org.warlock.spine.messaging.Sendable;
@@ -35,7 +39,14 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import org.warlock.spine.messaging.acknowledgements.BusAckDistributionEnvelopeHandler;
@@ -75,6 +86,14 @@ public class ConnectionManager {
      * is 30,000 (30 seconds).
      */
     private static final String RETRY_TIMER_PERIOD = "org.warlock.spine.messaging.retrytimerperiod";
+
+    /**
+     * System property. Longest time in milliseconds that shutdown() waits for
+     * in-flight inbound and outbound work to finish. Default value is 30,000
+     * (30 seconds).
+     */
+    private static final String SHUTDOWN_DRAIN_TIMEOUT = "org.warlock.spine.connection.draintimeout";
+    private static final long DEFAULT_DRAIN_TIMEOUT = 30000;
     
     /**
      * System property. Name of a file containing persistDuration values, by service/interaction
@@ -123,6 +142,24 @@ public class ConnectionManager {
      */
     private static final String USE_NULL_DEFAULT_SYNCHRONOUS_HANDLER = "org.warlock.spine.sds.nulldefaultsynchronoushandler";
     
+    /**
+     * System property. Default retry policy for reliable messages, used unless a policy has
+     * been set for the SOAP action with setRetryPolicy(). Either "fixed" (the default) for
+     * FixedIntervalRetryPolicy, which retries at exactly the SDS retry interval as earlier
+     * versions did, "backoff" for BackoffRetryPolicy, or the name of a class implementing
+     * RetryPolicy.
+     */
+    private static final String RETRY_POLICY = "org.warlock.spine.messaging.retrypolicy";
+    
+    /**
+     * System property. Maximum number of messages to each endpoint that sendAll() will have
+     * in flight at once. When connection pooling is on this is also the number of connections
+     * each endpoint's messages are sent over, and is capped at the pool's per-endpoint limit.
+     * Default 4.
+     */
+    private static final String BATCH_CONNECTIONS = "org.warlock.spine.connection.batch.connections";
+    private static final int DEFAULT_BATCH_CONNECTIONS = 4;
+    
     /**
      * Source identification for logging.
      */
@@ -148,6 +185,48 @@ public class ConnectionManager {
      * and issues TLS connections.
      */
     private SpineSecurityContext securityContext = null;
+    
+    /**
+     * Per-endpoint pool of outbound TLS connections, used by the Transmitter.
+     */
+    private ConnectionPool connectionPool = null;
+
+    /**
+     * Outbound connect, handshake and read timeouts, and failure counters.
+     */
+    private TransmitTimeouts transmitTimeouts = null;
+
+    /**
+     * Bounded thread pool that runs Transmitter tasks for sends and retries.
+     */
+    private TransmitExecutor transmitExecutor = null;
+
+    /**
+     * Adaptive per-endpoint limit on concurrent exchanges, applied by the Transmitter.
+     */
+    private ConcurrencyLimiter concurrencyLimiter = null;
+
+    /**
+     * Per-endpoint circuit breaker, applied by the Transmitter and the retry processor.
+     */
+    private CircuitBreaker circuitBreaker = null;
+
+    /**
+     * Queue and sender for asynchronous ebXML acknowledgments of received messages.
+     */
+    private AckOutbox ackOutbox = null;
+
+    /**
+     * Start-up connection warming, only present if selected by the
+     * org.warlock.spine.connection.warmup.enabled property.
+     */
+    private ConnectionWarmer connectionWarmer = null;
+
+    /**
+     * Non-blocking outbound transport, only present if selected by the
+     * org.warlock.spine.connection.transmitmode property.
+     */
+    private NioTransmitEngine nioTransmitEngine = null;
         
     /**
      * This singleton instance.
@@ -179,7 +258,7 @@ public class ConnectionManager {
     /**
      * "Reliable" ebXML requests that have not yet been acknowledged, keyed on message id.
      */ 
-    private HashMap<String, Sendable> requests = null;
+    private ConcurrentHashMap<String, Sendable> requests = null;
      /**
      * "Handler" implementations for received Spine messages (in this version, these are all for received
      * asynchronous Spine responses, or other ebXML notifications). Keyed on SOAPaction derived from the
@@ -195,6 +274,13 @@ public class ConnectionManager {
      */ 
     private HashMap<String, ExpiredMessageHandler> expiryHandlers = null;
     
+    /**
+     * Retry policies for reliable messages, keyed on SOAPaction. The default policy is used
+     * for anything not in here.
+     */
+    private ConcurrentHashMap<String, RetryPolicy> retryPolicies = new ConcurrentHashMap<>();
+    private RetryPolicy defaultRetryPolicy = null;
+    
     /*
      * To avoid having to do lookups on SDS (even in the cache) for inbound messages that we may not 
      * have seen before, this contains a pre-canned list of persistDuration time spans as Long, keyed on
@@ -238,14 +324,24 @@ public class ConnectionManager {
         }
         try {
             makePasswordProvider();
-            securityContext = new SpineSecurityContext(passwordProvider);
+            securityContext = SpineSecurityContext.getShared(passwordProvider);
+            transmitTimeouts = new TransmitTimeouts();
+            connectionPool = new ConnectionPool(securityContext, transmitTimeouts);
+            transmitExecutor = new TransmitExecutor();
+            concurrencyLimiter = new ConcurrencyLimiter(connectionPool.isEnabled() ? connectionPool.getMaxPerEndpoint() : 0);
+            circuitBreaker = new CircuitBreaker();
+            ackOutbox = new AckOutbox(connectionPool);
+            if (NioTransmitEngine.isSelected()) {
+                nioTransmitEngine = new NioTransmitEngine(securityContext, transmitTimeouts);
+            }
         }
         catch (Exception e){
             bootException = e;
             return;
         }
-        requests = new HashMap<>();
+        requests = new ConcurrentHashMap<>();
         expiryHandlers = new HashMap<>();
+        defaultRetryPolicy = makeDefaultRetryPolicy();
         handlers = new HashMap<>();
         synchronousHandlers = new HashMap<>();
         /**
@@ -331,6 +427,11 @@ public class ConnectionManager {
                 System.err.println("Error instantiating SessionCaptor " + sc + " : " + esc.toString());
             }
         }
+        
+        if ((resolver != null) && ConnectionWarmer.isSelected()) {
+            connectionWarmer = new ConnectionWarmer(connectionPool, resolver.getKnownUrls());
+            connectionWarmer.start();
+        }
     }
     
     SessionCaptor getSessionCaptor() { return sessionCaptor; }
@@ -398,6 +499,27 @@ public class ConnectionManager {
     public String getMyPartyKey() { return myPartyKey; }
     public String getExpiredMessageDirectory() { return expiredDirectory; }
     public SpineSecurityContext getSecurityContext() { return securityContext; }
+    public ConnectionPool getConnectionPool() { return connectionPool; }
+    public TransmitTimeouts getTransmitTimeouts() { return transmitTimeouts; }
+    public TransmitExecutor getTransmitExecutor() { return transmitExecutor; }
+    public ConcurrencyLimiter getConcurrencyLimiter() { return concurrencyLimiter; }
+    public CircuitBreaker getCircuitBreaker() { return circuitBreaker; }
+    public AckOutbox getAckOutbox() { return ackOutbox; }
+    public ConnectionWarmer getConnectionWarmer() { return connectionWarmer; }
+    public NioTransmitEngine getNioTransmitEngine() { return nioTransmitEngine; }
+    
+    /**
+     * Value for the "Connection" header on outbound requests. This is "keep-alive"
+     * when connection pooling is enabled, and "close" otherwise.
+     * 
+     * @return Connection header value
+     */
+    public String getOutboundConnectionHeader()
+    {
+        if ((connectionPool != null) && connectionPool.isEnabled())
+            return "keep-alive";
+        return "close";
+    }
     
     /**
      * Resolves a list of SdsTransmissionDetails matching the given parameters. If there is
@@ -483,16 +605,101 @@ public class ConnectionManager {
         // this ensures a new thread is constructed every time
         listener = null;
     }
+
+    /**
+     * Orderly shutdown before the process exits, for example in a rolling restart,
+     * waiting at most the time given by the org.warlock.spine.connection.draintimeout
+     * property.
+     *
+     * @return true if all in-flight work finished in time.
+     * @throws InterruptedException
+     */
+    public boolean shutdown()
+            throws InterruptedException
+    {
+        return shutdown(getLongProperty(SHUTDOWN_DRAIN_TIMEOUT, DEFAULT_DRAIN_TIMEOUT));
+    }
+
+    /**
+     * Orderly shutdown before the process exits, for example in a rolling restart.
+     * The listener stops accepting connections and finishes the requests and handlers
+     * it already has (see Listener.drain()). Then queued sends and retries, and
+     * queued asynchronous acknowledgments, are given the rest of the time to go.
+     * Reliable messages still waiting for acknowledgment are persisted, so that
+     * loadPersistedMessages() picks them up again on restart rather than the senders
+     * being left to time out, and the retry timer is stopped. Received message ids
+     * are flushed to the de-duplication index, if there is one, so that messages
+     * resent to the new process are still recognised as duplicates.
+     *
+     * The ConnectionManager cannot send or receive afterwards.
+     *
+     * @param ms Longest time to wait in milliseconds for in-flight work, in total.
+     * @return true if all in-flight work finished in time.
+     * @throws InterruptedException
+     */
+    public boolean shutdown(long ms)
+            throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + ms;
+        boolean done = true;
+        if (listener != null) {
+            done = listener.drain(ms);
+            listener = null;
+        }
+        if (transmitExecutor != null) {
+            transmitExecutor.shutdown();
+            done &= transmitExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        if (nioTransmitEngine != null) {
+            while (nioTransmitEngine.getInFlightCount() > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    done = false;
+                    break;
+                }
+                Thread.sleep(Math.min(left, 50));
+            }
+        }
+        if (ackOutbox != null) {
+            ackOutbox.shutdown();
+            done &= ackOutbox.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        if (!done) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionManager.shutdown", "In-flight work not finished after " + ms + "ms, shutting down anyway");
+        }
+        if (requests != null) {
+            for (Sendable s : requests.values()) {
+                try {
+                    s.persist();
+                }
+                catch (Exception e) {
+                    SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionManager.shutdown", "Failed to persist " + s.getMessageId() + " : " + e.toString());
+                }
+            }
+        }
+        stopRetryProcessor();
+        if (timer != null) {
+            timer.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        if (nioTransmitEngine != null) {
+            nioTransmitEngine.shutdown();
+        }
+        if (connectionPool != null) {
+            connectionPool.close();
+        }
+        return done;
+    }
     
     /**
-     * Sends a Spine message. This is a wrapper round the Transmitter thread and registers the
+     * Sends a Spine message. This queues a Transmitter on the transmit executor and registers the
      * message with the retry mechanism if the contract properties require. It will also, for
      * asynchronous messages, start the listener if it is not already running.
      * 
      * @param s Concrete instance of Sendable, encapsulating the message to send.
      * @param c SDS details of recipient
      * @throws Exception if there was a Connection Manager boot exception, or if starting any
-     * required listener fails,
+     * required listener fails, or a RejectedExecutionException if the transmit queue is full
+     * and the transmit rejection policy is "abort".
      */
     public void send(Sendable s, SdsTransmissionDetails c)
             throws Exception
@@ -508,20 +715,143 @@ public class ConnectionManager {
         if (!c.isSynchronous()) {
             listen();
             if ((s.getType() != Sendable.ACK) && (c.getDuplicateElimination().contentEquals("always"))) {
-                synchronized(LOGSOURCE) {
-                    if (timer == null) {
-                        timer = new ScheduledThreadPoolExecutor(TIMER_THREAD_POOL_SIZE);
-                        RetryProcessor rp = new RetryProcessor();
-                        timer.scheduleAtFixedRate(rp, retryCheckPeriod, retryCheckPeriod, TimeUnit.MILLISECONDS);                
-                    }
-                }
+                startRetryProcessor();
                 if (!requests.containsKey(s.getMessageId())) {
                     requests.put(s.getMessageId(), s);
                 }
             }
         }
-        Transmitter t = new Transmitter(s);
-        t.start();
+        transmitExecutor.execute(s);
+    }
+    
+    private void startRetryProcessor()
+    {
+        synchronized(LOGSOURCE) {
+            if (timer == null) {
+                timer = new ScheduledThreadPoolExecutor(TIMER_THREAD_POOL_SIZE);
+                RetryProcessor rp = new RetryProcessor();
+                timer.scheduleAtFixedRate(rp, retryCheckPeriod, retryCheckPeriod, TimeUnit.MILLISECONDS);                
+            }
+        }
+    }
+    
+    /**
+     * Sends a batch of messages, such as a backlog for one Spine endpoint. Each distinct
+     * SdsTransmissionDetails is looked at once, the messages are grouped by the endpoint
+     * they resolve to, reliable messages are registered with the retry mechanism in one
+     * go, and each endpoint's messages are sent one after another by a small number of
+     * transmitter tasks (see BATCH_CONNECTIONS). With connection pooling on, each of those
+     * keeps re-using its connection.<BR><BR>
+     * 
+     * This returns when every message has been sent or has failed to send. Reliable
+     * messages may still be waiting for acknowledgments; their outcome futures are
+     * completed as for sendAsync(). Messages without transmission details (for example
+     * reloaded persisted messages) are not sent, and are reported in the result.
+     * 
+     * @param messages Messages to send
+     * @return Per-message results, and throughput figures for the batch.
+     * @throws Exception if there was a Connection Manager boot exception, or if starting
+     * any required listener fails.
+     */
+    public BatchResult sendAll(Collection<Sendable> messages)
+            throws Exception
+    {
+        if (bootException != null)
+            throw bootException;
+        
+        BatchResult result = new BatchResult(messages.size());
+        IdentityHashMap<SdsTransmissionDetails, Boolean> reliability = new IdentityHashMap<>();
+        HashMap<String, String> endpoints = new HashMap<>();
+        LinkedHashMap<String, ConcurrentLinkedQueue<BatchResult.Entry>> groups = new LinkedHashMap<>();
+        HashMap<String, Sendable> reliable = new HashMap<>();
+        boolean asynchronous = false;
+        for (Sendable s : messages) {
+            BatchResult.Entry e = result.add(s);
+            SdsTransmissionDetails c = s.getTransmissionDetails();
+            if ((c == null) || (s.getResolvedUrl() == null)) {
+                e.notSent("No transmission details");
+                continue;
+            }
+            Boolean r = reliability.get(c);
+            if (r == null) {
+                r = !c.isSynchronous() && c.getDuplicateElimination().contentEquals("always");
+                reliability.put(c, r);
+            }
+            String ep = endpoints.get(s.getResolvedUrl());
+            if (ep == null) {
+                try {
+                    ep = Transmitter.endpointFor(s.getResolvedUrl());
+                }
+                catch (Exception eUrl) {
+                    e.notSent("Invalid URL " + s.getResolvedUrl());
+                    continue;
+                }
+                endpoints.put(s.getResolvedUrl(), ep);
+            }
+            e.setEndpoint(ep);
+            if (!c.isSynchronous())
+                asynchronous = true;
+            if (r && (s.getType() != Sendable.ACK))
+                reliable.put(s.getMessageId(), s);
+            ConcurrentLinkedQueue<BatchResult.Entry> q = groups.get(ep);
+            if (q == null) {
+                q = new ConcurrentLinkedQueue<>();
+                groups.put(ep, q);
+            }
+            q.add(e);
+        }
+        if (asynchronous)
+            listen();
+        if (!reliable.isEmpty()) {
+            startRetryProcessor();
+            for (Sendable s : reliable.values()) {
+                requests.putIfAbsent(s.getMessageId(), s);
+            }
+        }
+        
+        int perEndpoint = (int)getLongProperty(BATCH_CONNECTIONS, DEFAULT_BATCH_CONNECTIONS);
+        if (connectionPool.isEnabled())
+            perEndpoint = Math.min(perEndpoint, connectionPool.getMaxPerEndpoint());
+        perEndpoint = Math.max(perEndpoint, 1);
+        int drains = 0;
+        int[] drainCounts = new int[groups.size()];
+        int i = 0;
+        for (ConcurrentLinkedQueue<BatchResult.Entry> q : groups.values()) {
+            drainCounts[i] = Math.min(perEndpoint, q.size());
+            drains += drainCounts[i++];
+        }
+        CountDownLatch finished = new CountDownLatch(drains);
+        i = 0;
+        for (ConcurrentLinkedQueue<BatchResult.Entry> q : groups.values()) {
+            transmitExecutor.executeBatch(q, drainCounts[i++], finished);
+        }
+        finished.await();
+        result.finish(groups.size(), drains);
+        return result;
+    }
+    
+    /**
+     * As send(), but returns a future which is completed with the outcome of the
+     * message. For reliable ebXML messages that is when the message is acknowledged,
+     * has an error returned, gets an HTTP 5xx response or expires. For anything else
+     * it is when the response has been read (and, for synchronous requests, passed
+     * to the synchronous response handler) or the send has failed. The future is
+     * completed exceptionally only if send() throws.
+     * 
+     * @param s Concrete instance of Sendable, encapsulating the message to send.
+     * @param c SDS details of recipient
+     * @return Future for the outcome of the message
+     */
+    public CompletableFuture<DeliveryOutcome> sendAsync(Sendable s, SdsTransmissionDetails c)
+    {
+        CompletableFuture<DeliveryOutcome> f = s.getOutcome();
+        try {
+            send(s, c);
+        }
+        catch (Exception e) {
+            f.completeExceptionally(e);
+        }
+        return f;
     }
     
     /**
@@ -536,27 +866,59 @@ public class ConnectionManager {
      */
     void processRetries()
     {
-        if ((requests == null) || (requests.isEmpty())) {
+        if (listener != null) {
             listener.cleanDeduplicationList();
+        }
+        if ((requests == null) || (requests.isEmpty())) {
             return;
         }
         Calendar check = Calendar.getInstance();
         ArrayList<Sendable> expires = new ArrayList<>();
+        boolean dispatching = true;
+        int deferred = 0;
+        int held = 0;
+        HashMap<String, String> endpoints = new HashMap<>();
         for (Sendable s : requests.values()) {
             Calendar expiryTime = s.getStarted();
             expiryTime.add(Calendar.SECOND, s.getPersistDuration());
             if (expiryTime.before(check)) {
                 expires.add(s);
+            } else if (s.isPastDeadline()) {
+                transmitTimeouts.recordDeadlinePassed();
+                expires.add(s);
             } else {
                 Calendar retryAfter = s.lastTry();
                 if (retryAfter == null)
-                    return;
-                retryAfter.add(Calendar.SECOND, s.getRetryInterval());
+                    continue;
+                if (s.getRetryDelay() > 0)
+                    retryAfter.add(Calendar.MILLISECOND, (int)Math.min(Integer.MAX_VALUE, s.getRetryDelay()));
+                else
+                    retryAfter.add(Calendar.SECOND, s.getRetryInterval());
                 if (retryAfter.before(check)) {
-                    (new Transmitter(s)).start();
+                    // Don't queue anything for an endpoint whose circuit is open
+                    //
+                    if (isCircuitHeld(s, endpoints)) {
+                        held++;
+                        continue;
+                    }
+                    // If the transmit queue is full, leave the rest of the retries
+                    // for the next timer run, but carry on checking for expiry.
+                    //
+                    if (dispatching) {
+                        dispatching = transmitExecutor.offerRetry(s);
+                    }
+                    if (!dispatching) {
+                        deferred++;
+                    }
                 }
             }
         }
+        if (deferred > 0) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionManager.retriesDeferred", "Transmit queue full, " + deferred + " retries deferred");
+        }
+        if (held > 0) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionManager.retriesDeferred", held + " retries held by open circuits");
+        }
         for (Sendable s : expires) {
             try {
                 removeRequest(s.getMessageId());
@@ -568,6 +930,22 @@ public class ConnectionManager {
         }
     }
     
+    private boolean isCircuitHeld(Sendable s, HashMap<String, String> endpoints)
+    {
+        String key = (s.getResolvedUrl() == null) ? s.getMessageId() : s.getResolvedUrl();
+        String ep = endpoints.get(key);
+        if (ep == null) {
+            try {
+                ep = Transmitter.endpointFor(s);
+            }
+            catch (Exception e) {
+                return false;
+            }
+            endpoints.put(key, ep);
+        }
+        return circuitBreaker.isHeld(ep);
+    }
+    
     public int getPersistDuration(String svcia) {
         if (persistDurations.containsKey(svcia))
             return persistDurations.get(svcia).intValue();
@@ -701,17 +1079,47 @@ public class ConnectionManager {
      * @param a ebXml message id of the received acknowledgement or error notification
      */     
     public void registerAck(String a)
+    {
+        registerOutcome(a, DeliveryOutcome.ACKNOWLEDGED, null);
+    }
+    
+    /**
+     * Used for processing ebXML MessageError notifications. As registerAck() except
+     * that the outcome of the request is recorded as MESSAGE_ERROR.
+     * 
+     * @param a ebXml message id referred to by the error notification
+     * @param detail Description of the error, may be null
+     */
+    public void registerMessageError(String a, String detail)
+    {
+        registerOutcome(a, DeliveryOutcome.MESSAGE_ERROR, detail);
+    }
+    
+    private void registerOutcome(String a, int status, String detail)
     {
         if (a == null)
             return;
-        if (requests.containsKey(a)) {
-            requests.remove(a);
+        Sendable s = requests.remove(a);
+        if (s != null) {
             depersist(a);
+            s.completeOutcome(status, 0, detail);
         } else {
             SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionManager.registerAck", "Ack received for unrecognised message id");
         }
     }
     
+    /**
+     * @param a Message id
+     * @return true if the message is a reliable request still waiting for an
+     * acknowledgment.
+     */
+    boolean isAwaitingAck(String a)
+    {
+        if (a == null)
+            return false;
+        return requests.containsKey(a);
+    }
+    
     /**
      * Removes a reliable request from the retry list. Does nothing if null is passed
      * or if the message id is not known to the retry list.
@@ -778,6 +1186,52 @@ public class ConnectionManager {
         expiryHandlers.put(sa, ex);
     }
     
+    /**
+     * Set the retry policy for reliable messages with the given SOAP action, in place
+     * of the default policy. A single instance of the policy is stored against the SOAP
+     * action, so it MUST be thread-safe, re-entrant and reusable.
+     * 
+     * @param sa SOAP action
+     * @param p The RetryPolicy implementation, or null to go back to the default.
+     */
+    public void setRetryPolicy(String sa, RetryPolicy p)
+    {
+        if (p == null)
+            retryPolicies.remove(sa);
+        else
+            retryPolicies.put(sa, p);
+    }
+    
+    /**
+     * Get the retry policy for the given SOAP action.
+     * 
+     * @param sa SOAP action
+     * @return Policy set for the SOAP action, or the default policy.
+     */
+    public RetryPolicy getRetryPolicy(String sa)
+    {
+        if (sa == null)
+            return defaultRetryPolicy;
+        RetryPolicy p = retryPolicies.get(sa);
+        return (p == null) ? defaultRetryPolicy : p;
+    }
+    
+    private static RetryPolicy makeDefaultRetryPolicy()
+    {
+        String p = System.getProperty(RETRY_POLICY);
+        if ((p == null) || p.trim().equalsIgnoreCase("fixed"))
+            return new FixedIntervalRetryPolicy();
+        if (p.trim().equalsIgnoreCase("backoff"))
+            return new BackoffRetryPolicy();
+        try {
+            return (RetryPolicy)Class.forName(p.trim()).getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e) {
+            System.err.println("Failed to load retry policy " + p + ", using fixed: " + e.toString());
+            return new FixedIntervalRetryPolicy();
+        }
+    }
+    
     /**
      * Get any ExpiredMessageHandler associated with the given SOAP action, or null if
      * none is found.
@@ -792,6 +1246,38 @@ public class ConnectionManager {
         return expiryHandlers.get(sa);
     }
     
+    /**
+     * Read a numeric System property.
+     * 
+     * @param p Property name
+     * @param d Default value, returned if the property is not set or is not a number
+     * @return Property value
+     */
+    static long getLongProperty(String p, long d)
+    {
+        try {
+            return Long.parseLong(System.getProperty(p).trim());
+        }
+        catch (NumberFormatException | NullPointerException e) {
+            return d;
+        }
+    }
+    
+    /**
+     * Read a "yes/no" System property, where anything beginning with "y" or "Y" is yes.
+     * 
+     * @param p Property name
+     * @param d Default value, returned if the property is not set
+     * @return Property value
+     */
+    static boolean getBooleanProperty(String p, boolean d)
+    {
+        String s = System.getProperty(p);
+        if ((s == null) || (s.trim().length() == 0))
+            return d;
+        return s.trim().toLowerCase().startsWith("y");
+    }
+    
     /**
      * A method to be used by any subclasses for substituting passed values into
      * a StringBuilder object using substitution tags
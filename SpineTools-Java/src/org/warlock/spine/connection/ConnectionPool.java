@@ -0,0 +1,408 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Per-endpoint pool of HTTP/1.1 keep-alive TLS connections, used by the
+ * Transmitter so that sends and retries to the same Spine endpoint don't each
+ * pay for a full TCP connect and TLS handshake.<BR><BR>
+ *
+ * Connections are keyed on "host:port" after any proxy override has been
+ * applied. Each endpoint has an upper limit on the number of connections that
+ * may be open (in use plus idle) at once; a borrower waits for up to the
+ * borrow timeout for one to become available. Idle connections are validated
+ * on borrow, and are closed when they exceed the idle or lifetime limits,
+ * either on borrow or by a background evictor.<BR><BR>
+ *
+ * Each endpoint also has a small number of reserved connections, above the
+ * limit, which only priority borrowers such as the AckOutbox may use once the
+ * ordinary ones are all taken, so that acknowledgments are not held up behind
+ * bulk sends.<BR><BR>
+ *
+ * Pooling is off unless the <code>org.warlock.spine.connection.pool.enabled</code>
+ * system property starts with "y" or "Y". When it is off, borrow() just makes a
+ * new connection and release() closes it, which is the original behaviour.
+ */
+public class ConnectionPool {
+
+    /**
+     * System property. Set to something beginning with "y" or "Y" to enable
+     * connection pooling. When pooling is enabled outbound requests are sent
+     * with "Connection: keep-alive" rather than "Connection: close".
+     */
+    public static final String POOL_ENABLED = "org.warlock.spine.connection.pool.enabled";
+
+    /**
+     * System property. Maximum number of connections (in use and idle) per
+     * endpoint. Default 8.
+     */
+    public static final String POOL_MAX_PER_ENDPOINT = "org.warlock.spine.connection.pool.maxperendpoint";
+
+    /**
+     * System property. Period in milliseconds after which an unused connection
+     * is closed. Default 30,000 (30 seconds).
+     */
+    public static final String POOL_MAX_IDLE = "org.warlock.spine.connection.pool.maxidle";
+
+    /**
+     * System property. Period in milliseconds after which a connection is closed
+     * on its next return to the pool, however recently it was used. Zero means
+     * no limit. Default 300,000 (5 minutes).
+     */
+    public static final String POOL_MAX_LIFETIME = "org.warlock.spine.connection.pool.maxlifetime";
+
+    /**
+     * System property. Period in milliseconds to wait for a connection when
+     * the endpoint is at its connection limit. Default 30,000 (30 seconds).
+     */
+    public static final String POOL_BORROW_TIMEOUT = "org.warlock.spine.connection.pool.borrowtimeout";
+
+    /**
+     * System property. Number of connections per endpoint, above the maximum,
+     * kept for priority borrowers. Default 2.
+     */
+    public static final String POOL_PRIORITY_RESERVE = "org.warlock.spine.connection.pool.priorityreserve";
+
+    private static final int DEFAULT_MAX_PER_ENDPOINT = 8;
+    private static final int DEFAULT_PRIORITY_RESERVE = 2;
+    private static final long DEFAULT_MAX_IDLE = 30000;
+    private static final long DEFAULT_MAX_LIFETIME = 300000;
+    private static final long DEFAULT_BORROW_TIMEOUT = 30000;
+
+    private final SpineSecurityContext securityContext;
+    private final TransmitTimeouts timeouts;
+    private final boolean enabled;
+    private final int maxPerEndpoint;
+    private final int priorityReserve;
+    private final long maxIdle;
+    private final long maxLifetime;
+    private final long borrowTimeout;
+
+    private final ConcurrentHashMap<String, EndpointPool> pools = new ConcurrentHashMap<>();
+    private ScheduledExecutorService evictor = null;
+
+    ConnectionPool(SpineSecurityContext c, TransmitTimeouts t) {
+        securityContext = c;
+        timeouts = t;
+        enabled = ConnectionManager.getBooleanProperty(POOL_ENABLED, false);
+        maxPerEndpoint = (int) ConnectionManager.getLongProperty(POOL_MAX_PER_ENDPOINT, DEFAULT_MAX_PER_ENDPOINT);
+        priorityReserve = (int) Math.max(0, ConnectionManager.getLongProperty(POOL_PRIORITY_RESERVE, DEFAULT_PRIORITY_RESERVE));
+        maxIdle = ConnectionManager.getLongProperty(POOL_MAX_IDLE, DEFAULT_MAX_IDLE);
+        maxLifetime = ConnectionManager.getLongProperty(POOL_MAX_LIFETIME, DEFAULT_MAX_LIFETIME);
+        borrowTimeout = ConnectionManager.getLongProperty(POOL_BORROW_TIMEOUT, DEFAULT_BORROW_TIMEOUT);
+        if (enabled) {
+            evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Spine connection pool evictor");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            long period = Math.max(1000, maxIdle / 2);
+            evictor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * @return Maximum number of connections per endpoint.
+     */
+    public int getMaxPerEndpoint() { return maxPerEndpoint; }
+
+    /**
+     * Make the "host:port" key used to identify an endpoint.
+     */
+    static String endpointKey(String host, int port) {
+        StringBuilder sb = new StringBuilder(host);
+        sb.append(":");
+        sb.append(port);
+        return sb.toString();
+    }
+
+    /**
+     * Get a connection to the given endpoint, either a validated idle one from
+     * the pool or a newly-made one.
+     *
+     * @param host Host name
+     * @param port Port
+     * @return A connected, handshaken, connection with the read timeout set.
+     * @throws IOException if a connection can't be made, or if the endpoint is
+     * at its connection limit for longer than the borrow timeout.
+     */
+    PooledConnection borrow(String host, int port)
+            throws IOException {
+        String key = endpointKey(host, port);
+        if (!enabled) {
+            PooledConnection pc = new PooledConnection(securityContext.connect(host, port, timeouts), key);
+            pc.borrowed(false);
+            return pc;
+        }
+        EndpointPool ep = getEndpointPool(key);
+        try {
+            if (!ep.permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a pooled connection to " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a pooled connection to " + key);
+        }
+        return take(ep, host, port, false);
+    }
+
+    /**
+     * As borrow(), for traffic that should not wait behind bulk sends. An
+     * ordinary connection is used if one is free straight away, otherwise one
+     * of the endpoint's reserved connections.
+     *
+     * @param host Host name
+     * @param port Port
+     * @return A connected, handshaken, connection with the read timeout set.
+     * @throws IOException if a connection can't be made, or if the endpoint's
+     * reserved connections are all in use for longer than the borrow timeout.
+     */
+    PooledConnection borrowPriority(String host, int port)
+            throws IOException {
+        if (!enabled || (priorityReserve == 0)) {
+            return borrow(host, port);
+        }
+        String key = endpointKey(host, port);
+        EndpointPool ep = getEndpointPool(key);
+        if (ep.permits.tryAcquire()) {
+            return take(ep, host, port, false);
+        }
+        try {
+            if (!ep.reserve.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for a priority connection to " + key);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a priority connection to " + key);
+        }
+        return take(ep, host, port, true);
+    }
+
+    /**
+     * Hand out an idle connection, or make a new one, once a permit has been
+     * taken.
+     */
+    private PooledConnection take(EndpointPool ep, String host, int port, boolean reserved)
+            throws IOException {
+        try {
+            long now = System.currentTimeMillis();
+            PooledConnection pc = null;
+            while ((pc = ep.idle.pollFirst()) != null) {
+                if (pc.isExpired(now, maxIdle, maxLifetime) || !pc.validate()) {
+                    pc.close();
+                    continue;
+                }
+                pc.borrowed(reserved);
+                return pc;
+            }
+            Socket s = securityContext.connect(host, port, timeouts);
+            pc = new PooledConnection(s, endpointKey(host, port));
+            pc.borrowed(reserved);
+            return pc;
+        } catch (IOException | RuntimeException e) {
+            (reserved ? ep.reserve : ep.permits).release();
+            throw e;
+        }
+    }
+
+    /**
+     * Open connections to an endpoint ahead of traffic, and leave them in the
+     * pool. When pooling is off the connection is closed again straight away,
+     * which still leaves a TLS session in the client session cache for later
+     * connections to resume.
+     *
+     * @param host Host name
+     * @param port Port
+     * @param count Number of connections to have idle in the pool
+     * @return Number of connections made or validated.
+     * @throws IOException if no connection could be made.
+     */
+    int warm(String host, int port, int count)
+            throws IOException {
+        ArrayList<PooledConnection> made = new ArrayList<>();
+        IOException failure = null;
+        try {
+            for (int i = 0; i < (enabled ? count : 1); i++) {
+                try {
+                    made.add(borrow(host, port));
+                } catch (IOException e) {
+                    failure = e;
+                    break;
+                }
+            }
+        } finally {
+            for (PooledConnection pc : made) {
+                release(pc, true);
+            }
+        }
+        if (made.isEmpty() && (failure != null)) {
+            throw failure;
+        }
+        return made.size();
+    }
+
+    /**
+     * Return a connection after use.
+     *
+     * @param pc The connection
+     * @param reusable false if the connection must be closed, for example
+     * because the response said "Connection: close", the response body could
+     * not be read completely, or an error occurred.
+     */
+    void release(PooledConnection pc, boolean reusable) {
+        if (pc == null) {
+            return;
+        }
+        if (!enabled) {
+            pc.close();
+            return;
+        }
+        EndpointPool ep = getEndpointPool(pc.getEndpoint());
+        if (reusable && !pc.getSocket().isClosed() && !pc.isExpired(System.currentTimeMillis(), maxIdle, maxLifetime)) {
+            pc.touch();
+            ep.idle.addFirst(pc);
+        } else {
+            pc.close();
+        }
+        (pc.isReserved() ? ep.reserve : ep.permits).release();
+    }
+
+    /**
+     * Close all idle connections to the given endpoint. Called when a re-used
+     * connection turns out to be dead, because that usually means that the
+     * remote end has dropped all of them.
+     *
+     * @param host Host name
+     * @param port Port
+     */
+    void purge(String host, int port) {
+        EndpointPool ep = pools.get(endpointKey(host, port));
+        if (ep == null) {
+            return;
+        }
+        PooledConnection pc = null;
+        while ((pc = ep.idle.pollFirst()) != null) {
+            pc.close();
+        }
+    }
+
+    /**
+     * Close any idle connections that have exceeded the idle or lifetime limits.
+     * Idle connections are held most-recently-used first, so the candidates
+     * are at the tail.
+     */
+    void evictIdle() {
+        long now = System.currentTimeMillis();
+        try {
+            for (EndpointPool ep : pools.values()) {
+                Iterator<PooledConnection> it = ep.idle.descendingIterator();
+                while (it.hasNext()) {
+                    PooledConnection pc = it.next();
+                    if (pc.isExpired(now, maxIdle, maxLifetime) && ep.idle.remove(pc)) {
+                        pc.close();
+                    }
+                }
+            }
+        } catch (Exception e) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionPool.evictIdle", e);
+        }
+    }
+
+    /**
+     * Stop the evictor and close all idle connections. Connections that are
+     * in use are closed when they are released.
+     */
+    void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (EndpointPool ep : pools.values()) {
+            PooledConnection pc = null;
+            while ((pc = ep.idle.pollFirst()) != null) {
+                pc.close();
+            }
+        }
+    }
+
+    /**
+     * @param host Host name
+     * @param port Port
+     * @return Number of idle connections held for the endpoint.
+     */
+    public int getIdleCount(String host, int port) {
+        EndpointPool ep = pools.get(endpointKey(host, port));
+        return (ep == null) ? 0 : ep.idle.size();
+    }
+
+    /**
+     * @param host Host name
+     * @param port Port
+     * @return Number of connections to the endpoint currently in use.
+     */
+    public int getActiveCount(String host, int port) {
+        EndpointPool ep = pools.get(endpointKey(host, port));
+        return (ep == null) ? 0 : maxPerEndpoint - ep.permits.availablePermits();
+    }
+
+    private EndpointPool getEndpointPool(String key) {
+        EndpointPool ep = pools.get(key);
+        if (ep == null) {
+            EndpointPool n = new EndpointPool(maxPerEndpoint, priorityReserve);
+            ep = pools.putIfAbsent(key, n);
+            if (ep == null) {
+                ep = n;
+            }
+        }
+        return ep;
+    }
+
+    private static class EndpointPool {
+
+        private final Semaphore permits;
+        private final Semaphore reserve;
+        private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>();
+
+        EndpointPool(int max, int reserved) {
+            permits = new Semaphore(max, true);
+            reserve = new Semaphore(reserved, true);
+        }
+    }
+}
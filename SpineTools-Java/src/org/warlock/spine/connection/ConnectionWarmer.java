@@ -0,0 +1,196 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Start-up warming of outbound connections, so that the first sends after a
+ * restart don't all pay for a TCP connect and full TLS handshake together.<BR><BR>
+ *
+ * The endpoints are the distinct hosts and ports behind the URLs in the local
+ * SDS cache and the URL resolver file, after any proxy override. Each endpoint
+ * is connected to and handshaken in parallel, on a short-lived thread pool,
+ * while the ConnectionManager carries on. With pooling on the connections are
+ * left idle in the ConnectionPool. With pooling off they are closed again,
+ * which still primes DNS and the TLS session cache so that the first real
+ * connection to each endpoint is a resumed handshake.<BR><BR>
+ *
+ * Warming is off unless the <code>org.warlock.spine.connection.warmup.enabled</code>
+ * system property starts with "y" or "Y".
+ */
+public class ConnectionWarmer {
+
+    /**
+     * System property. Set to something beginning with "y" or "Y" to warm
+     * connections at start-up.
+     */
+    public static final String WARMUP_ENABLED = "org.warlock.spine.connection.warmup.enabled";
+
+    /**
+     * System property. Number of connections to open to each endpoint when
+     * pooling is on. Default 1, and never more than the pool's per-endpoint
+     * maximum.
+     */
+    public static final String WARMUP_PER_ENDPOINT = "org.warlock.spine.connection.warmup.perendpoint";
+
+    /**
+     * System property. Number of endpoints warmed at once. Default 8.
+     */
+    public static final String WARMUP_THREADS = "org.warlock.spine.connection.warmup.threads";
+
+    private static final long DEFAULT_PER_ENDPOINT = 1;
+    private static final long DEFAULT_THREADS = 8;
+
+    private final ConnectionPool pool;
+    private final LinkedHashMap<String, Endpoint> endpoints = new LinkedHashMap<>();
+    private final CountDownLatch finished;
+    private final AtomicInteger connected = new AtomicInteger(0);
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private long started = 0;
+    private volatile long elapsed = 0;
+
+    /**
+     * @return true if warming has been asked for.
+     */
+    static boolean isSelected() {
+        return ConnectionManager.getBooleanProperty(WARMUP_ENABLED, false);
+    }
+
+    /**
+     * @param p Pool to warm
+     * @param urls URLs messages are expected to go to
+     */
+    ConnectionWarmer(ConnectionPool p, Collection<String> urls) {
+        pool = p;
+        for (String u : urls) {
+            try {
+                URL url = new URL(u);
+                String host = Transmitter.proxyHost(url.getHost());
+                int port = Transmitter.proxyPort((url.getPort() == -1) ? url.getDefaultPort() : url.getPort());
+                String key = ConnectionPool.endpointKey(host, port);
+                if (!endpoints.containsKey(key)) {
+                    endpoints.put(key, new Endpoint(host, port));
+                }
+            } catch (Exception e) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionWarmer.failed", "Not warming invalid URL " + u);
+            }
+        }
+        finished = new CountDownLatch(endpoints.size());
+    }
+
+    /**
+     * Start warming in the background. Returns straight away.
+     */
+    void start() {
+        started = System.currentTimeMillis();
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        int threads = (int) Math.max(1, Math.min(endpoints.size(), ConnectionManager.getLongProperty(WARMUP_THREADS, DEFAULT_THREADS)));
+        final int perEndpoint = (int) Math.max(1, Math.min(pool.getMaxPerEndpoint(), ConnectionManager.getLongProperty(WARMUP_PER_ENDPOINT, DEFAULT_PER_ENDPOINT)));
+        ExecutorService warmers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Spine connection warmer-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        for (final Endpoint e : endpoints.values()) {
+            warmers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    warm(e, perEndpoint);
+                }
+            });
+        }
+        warmers.shutdown();
+    }
+
+    private void warm(Endpoint e, int count) {
+        try {
+            connected.addAndGet(pool.warm(e.host, e.port, count));
+        } catch (Exception ex) {
+            failed.incrementAndGet();
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionWarmer.failed", "Failed to warm " + ConnectionPool.endpointKey(e.host, e.port) + ": " + ex.getMessage());
+        } finally {
+            finished.countDown();
+            if (finished.getCount() == 0) {
+                elapsed = System.currentTimeMillis() - started;
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.ConnectionWarmer.complete", "Warmed " + connected.get() + " connection(s) to " + endpoints.size() + " endpoint(s) in " + elapsed + "ms, " + failed.get() + " endpoint(s) failed");
+            }
+        }
+    }
+
+    /**
+     * Wait for warming to finish.
+     *
+     * @param ms Longest time to wait, in milliseconds
+     * @return true if warming has finished.
+     * @throws InterruptedException
+     */
+    public boolean await(long ms)
+            throws InterruptedException {
+        return finished.await(ms, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isComplete() { return finished.getCount() == 0; }
+
+    /**
+     * @return Number of distinct endpoints being warmed.
+     */
+    public int getEndpointCount() { return endpoints.size(); }
+
+    /**
+     * @return Number of connections made so far.
+     */
+    public int getConnectedCount() { return connected.get(); }
+
+    /**
+     * @return Number of endpoints that could not be connected to.
+     */
+    public int getFailedCount() { return failed.get(); }
+
+    /**
+     * @return Time warming took in milliseconds, or zero if it hasn't finished.
+     */
+    public long getElapsed() { return elapsed; }
+
+    private static class Endpoint {
+
+        private final String host;
+        private final int port;
+
+        Endpoint(String h, int p) {
+            host = h;
+            port = p;
+        }
+    }
+}
@@ -0,0 +1,654 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Received message ids, held for de-duplication until their persist duration
+ * has passed.<BR><BR>
+ *
+ * Ids are held in a concurrent map against a primitive expiry time, in
+ * seconds, so that checking and recording an id is a single putIfAbsent().
+ * Expiry is driven by a hierarchical timing wheel of four levels of 64
+ * one-second, 64 second, 68 minute and three day slots. Each id is put into
+ * the slot for its expiry time once. When a higher-level slot comes round
+ * its ids are moved down a level, and when a one-second slot comes round
+ * its ids are removed from the map. Expiring ids therefore costs the same
+ * whether the store is large or small, and no full scan is ever made. The
+ * wheel is moved on as ids are recorded and whenever the ConnectionManager's
+ * retry timer runs.<BR><BR>
+ *
+ * The number of ids held is capped. When the store is full, the id nearest
+ * its expiry is dropped early to make room, and this is counted and
+ * logged.<BR><BR>
+ *
+ * Optionally a Bloom filter sits in front of the map, so that a new id is
+ * known not to be held in memory without a map lookup. add() then goes
+ * straight to the on-disk index, if there is one, and contains() answers
+ * from the index alone. Every live id is in the filter, so a miss is never
+ * wrong, and the map's putIfAbsent() still settles two adds of the same id at
+ * once. The filter is rebuilt from the live ids when expired ids would
+ * otherwise make it too full to be useful.<BR><BR>
+ *
+ * If an index file is configured, ids are also recorded in a
+ * MappedDeduplicationIndex, which is kept on disk and is what decides whether
+ * an id not held in memory has been seen before. The in-memory store then
+ * answers repeat duplicates without going to the index, and a restart loses
+ * nothing but that cache.<BR><BR>
+ *
+ * The acknowledgment or negative acknowledgment sent for a message can be
+ * kept with its id, and goes when the id does. A duplicate can then be
+ * answered with the same response without being parsed again. The total
+ * size of kept responses is capped, and past the cap responses are simply
+ * not kept.
+ */
+public class DeduplicationStore {
+
+    /**
+     * System property. Most message ids held. Default 500,000.
+     */
+    public static final String DEDUP_MAX_ENTRIES = "org.warlock.spine.connection.dedup.maxentries";
+
+    /**
+     * System property. Set to something beginning with "y" or "Y" to put a
+     * Bloom filter in front of the store. This saves a map lookup for each new
+     * id when there is an index file. Default off.
+     */
+    public static final String DEDUP_BLOOM = "org.warlock.spine.connection.dedup.bloom";
+
+    /**
+     * System property. Path of a file to keep an on-disk index of received
+     * ids in, so that duplicates are still found after a restart. The file is
+     * made if it does not exist. Default none, ids are held in memory only.
+     */
+    public static final String DEDUP_FILE = "org.warlock.spine.connection.dedup.file";
+
+    /**
+     * System property. Most bytes of acknowledgments kept for replaying to
+     * duplicates. 0 to keep none. Default 64MB.
+     */
+    public static final String DEDUP_RESPONSE_CACHE = "org.warlock.spine.connection.dedup.responsecache";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.DeduplicationStore.full";
+
+    private static final long DEFAULT_MAX_ENTRIES = 500000;
+    private static final long DEFAULT_RESPONSE_CACHE = 64 * 1024 * 1024;
+
+    private static final int LEVELS = 4;
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+
+    // Rough heap cost of one entry, over and above its id characters: the
+    // map node, the Entry, the String and its array, and the wheel slot
+    // reference.
+    //
+    private static final int ENTRY_OVERHEAD = 112;
+
+    private final ConcurrentHashMap<String, Entry> ids = new ConcurrentHashMap<>();
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<Entry>[][] wheel = new ArrayDeque[LEVELS][SLOTS];
+    private final long maxEntries;
+    private long currentTick;
+    private volatile boolean full = false;
+
+    private final MappedDeduplicationIndex index;
+    private final long responseCacheLimit;
+    private final AtomicLong responseBytes = new AtomicLong(0);
+
+    private final boolean bloomEnabled;
+    private volatile BloomFilter bloom = null;
+    private volatile BloomFilter rebuilding = null;
+    private long bloomStale = 0;
+
+    private final AtomicLong idChars = new AtomicLong(0);
+    private final AtomicLong recorded = new AtomicLong(0);
+    private final AtomicLong duplicates = new AtomicLong(0);
+    private final AtomicLong expired = new AtomicLong(0);
+    private final AtomicLong evicted = new AtomicLong(0);
+    private final AtomicLong replayed = new AtomicLong(0);
+    private final AtomicLong uncached = new AtomicLong(0);
+
+    DeduplicationStore() {
+        maxEntries = Math.max(1, ConnectionManager.getLongProperty(DEDUP_MAX_ENTRIES, DEFAULT_MAX_ENTRIES));
+        bloomEnabled = ConnectionManager.getBooleanProperty(DEDUP_BLOOM, false);
+        responseCacheLimit = Math.max(0, ConnectionManager.getLongProperty(DEDUP_RESPONSE_CACHE, DEFAULT_RESPONSE_CACHE));
+        if (bloomEnabled) {
+            bloom = new BloomFilter(maxEntries);
+        }
+        for (int l = 0; l < LEVELS; l++) {
+            for (int s = 0; s < SLOTS; s++) {
+                wheel[l][s] = new ArrayDeque<>();
+            }
+        }
+        currentTick = tick(System.currentTimeMillis());
+        index = openIndex(maxEntries);
+    }
+
+    private static MappedDeduplicationIndex openIndex(long entries) {
+        String f = System.getProperty(DEDUP_FILE);
+        if ((f == null) || (f.trim().length() == 0)) {
+            return null;
+        }
+        try {
+            return MappedDeduplicationIndex.open(new File(f.trim()), entries);
+        } catch (Exception e) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.DeduplicationStore.index", "Cannot open de-duplication index " + f + ", holding ids in memory only: " + e.toString());
+            return null;
+        }
+    }
+
+    private static long tick(long ms) {
+        return ms / 1000;
+    }
+
+    /**
+     * Record a received message id, unless it is already held.
+     *
+     * @param id Message id
+     * @param expires Time, in milliseconds since the epoch, after which the id
+     * is forgotten.
+     * @return true if the id was already held and has not expired, so the
+     * message is a duplicate.
+     */
+    boolean add(String id, long expires) {
+        long now = tick(System.currentTimeMillis());
+        long x = Math.max(now + 1, tick(expires));
+        boolean known = false;
+        if (index != null) {
+            // The index decides, unless the id is already held here. An id
+            // found there is put in memory with its original expiry, so that
+            // further duplicates of it are found without the index. A Bloom
+            // filter miss means it isn't held, without looking.
+            //
+            BloomFilter b = bloom;
+            Entry held = ((b == null) || b.mightContain(id)) ? ids.get(id) : null;
+            if ((held == null) || (held.expires <= now)) {
+                long h = index.add(id, x, now);
+                if (h != 0) {
+                    x = h;
+                    known = true;
+                }
+            }
+        }
+        Entry e = new Entry(id, x);
+        while (true) {
+            Entry old = ids.putIfAbsent(id, e);
+            if (old == null) {
+                break;
+            }
+            if (old.expires > now) {
+                duplicates.incrementAndGet();
+                return true;
+            }
+            // Expired, but its slot hasn't come round yet
+            //
+            if (ids.replace(id, old, e)) {
+                dropped(old);
+                break;
+            }
+        }
+        if (known) {
+            duplicates.incrementAndGet();
+        } else {
+            recorded.incrementAndGet();
+        }
+        idChars.addAndGet(id.length());
+        addToBloom(id);
+        synchronized (wheel) {
+            advance(now);
+            place(e);
+            while (ids.size() > maxEntries) {
+                if (!evictEarliest()) {
+                    break;
+                }
+            }
+        }
+        return known;
+    }
+
+    /**
+     * @param id Message id
+     * @return true if the id is held and has not expired.
+     */
+    boolean contains(String id) {
+        long now = tick(System.currentTimeMillis());
+        BloomFilter b = bloom;
+        if ((b == null) || b.mightContain(id)) {
+            Entry e = ids.get(id);
+            if ((e != null) && (e.expires > now)) {
+                return true;
+            }
+        }
+        return (index != null) && index.contains(id, now);
+    }
+
+    /**
+     * Keep the response sent for a message, to be replayed if it arrives
+     * again. Nothing is kept if the id is not held, already has a response,
+     * or the response cache is full.
+     *
+     * @param id Message id
+     * @param r Response
+     */
+    void setResponse(String id, CachedResponse r) {
+        if ((id == null) || (responseCacheLimit == 0)) {
+            return;
+        }
+        Entry e = ids.get(id);
+        if ((e == null) || (e.response != null)) {
+            return;
+        }
+        int n = r.getSize();
+        while (true) {
+            long b = responseBytes.get();
+            if (b + n > responseCacheLimit) {
+                uncached.incrementAndGet();
+                return;
+            }
+            if (responseBytes.compareAndSet(b, b + n)) {
+                break;
+            }
+        }
+        synchronized (e) {
+            if (!e.removed && (e.response == null)) {
+                e.response = r;
+                return;
+            }
+        }
+        responseBytes.addAndGet(-n);
+    }
+
+    /**
+     * @param id Message id
+     * @return The response kept for the id, if it is held, has not expired
+     * and has one, otherwise null. A response returned is counted as a
+     * replayed duplicate.
+     */
+    CachedResponse getResponse(String id) {
+        if (id == null) {
+            return null;
+        }
+        Entry e = ids.get(id);
+        if ((e == null) || (e.expires <= tick(System.currentTimeMillis()))) {
+            return null;
+        }
+        CachedResponse r = e.response;
+        if (r != null) {
+            duplicates.incrementAndGet();
+            replayed.incrementAndGet();
+        }
+        return r;
+    }
+
+    /**
+     * Move the wheel on to the current time, removing expired ids, and force
+     * any index changes out to disk.
+     */
+    void expire() {
+        synchronized (wheel) {
+            advance(tick(System.currentTimeMillis()));
+        }
+        rebuildBloomIfStale();
+        flush();
+    }
+
+    /**
+     * Force any index changes out to disk.
+     */
+    void flush() {
+        if (index == null) {
+            return;
+        }
+        try {
+            index.sync();
+        } catch (Exception e) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.DeduplicationStore.index", "Failed to sync de-duplication index " + index.getFile() + ": " + e.toString());
+        }
+    }
+
+    /**
+     * Step the wheel one second at a time up to "now". On each step, any
+     * higher-level slot whose period starts on that second is moved down,
+     * highest first, and then the one-second slot is expired. Caller holds the
+     * wheel lock.
+     */
+    private void advance(long now) {
+        while (currentTick < now) {
+            currentTick++;
+            for (int l = LEVELS - 1; l > 0; l--) {
+                if ((currentTick & ((1L << (BITS * l)) - 1)) != 0) {
+                    continue;
+                }
+                ArrayDeque<Entry> slot = wheel[l][(int) ((currentTick >>> (BITS * l)) & MASK)];
+                int n = slot.size();
+                for (int i = 0; i < n; i++) {
+                    place(slot.poll());
+                }
+            }
+            ArrayDeque<Entry> slot = wheel[0][(int) (currentTick & MASK)];
+            Entry e = null;
+            while ((e = slot.poll()) != null) {
+                remove(e);
+                expired.incrementAndGet();
+            }
+        }
+        if (full && (ids.size() < maxEntries)) {
+            full = false;
+            SpineToolsLogger.getInstance().log(LOGSOURCE, "De-duplication store has room again, " + evicted.get() + " ids dropped early in total");
+        }
+    }
+
+    /**
+     * Put an entry in the slot for its expiry time, at the lowest level whose
+     * span covers it. Caller holds the wheel lock.
+     */
+    private void place(Entry e) {
+        long delta = e.expires - currentTick;
+        if (delta <= 0) {
+            remove(e);
+            expired.incrementAndGet();
+            return;
+        }
+        int l = 0;
+        while ((l < LEVELS - 1) && (delta >= (1L << (BITS * (l + 1))))) {
+            l++;
+        }
+        wheel[l][(int) ((e.expires >>> (BITS * l)) & MASK)].add(e);
+    }
+
+    /**
+     * Drop the id nearest its expiry. Caller holds the wheel lock.
+     *
+     * @return false if there was nothing to drop.
+     */
+    private boolean evictEarliest() {
+        for (int l = 0; l < LEVELS; l++) {
+            long base = currentTick >>> (BITS * l);
+            for (int i = 0; i <= SLOTS; i++) {
+                ArrayDeque<Entry> slot = wheel[l][(int) ((base + i) & MASK)];
+                Entry e = slot.poll();
+                if (e != null) {
+                    remove(e);
+                    evicted.incrementAndGet();
+                    if (!full) {
+                        full = true;
+                        SpineToolsLogger.getInstance().log(LOGSOURCE, "De-duplication store full at " + maxEntries + " ids, dropping ids before they expire");
+                    }
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private void remove(Entry e) {
+        if (ids.remove(e.id, e)) {
+            dropped(e);
+            if (bloomEnabled) {
+                synchronized (this) {
+                    bloomStale++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Give back the space of an entry taken out of the map.
+     */
+    private void dropped(Entry e) {
+        idChars.addAndGet(-e.id.length());
+        synchronized (e) {
+            e.removed = true;
+            if (e.response != null) {
+                responseBytes.addAndGet(-e.response.getSize());
+                e.response = null;
+            }
+        }
+    }
+
+    private void addToBloom(String id) {
+        if (!bloomEnabled) {
+            return;
+        }
+        BloomFilter r = rebuilding;
+        BloomFilter b = bloom;
+        b.add(id);
+        if ((r != null) && (r != b)) {
+            r.add(id);
+        }
+    }
+
+    /**
+     * Once as many ids have expired as are still held, or more have been
+     * added than the filter was sized for, make a new filter from the live
+     * ids. Ids are put in the filter after the map, and an add that sees no
+     * rebuild in progress sees the finished filter, so the new filter never
+     * misses a live id.
+     */
+    private void rebuildBloomIfStale() {
+        if (!bloomEnabled) {
+            return;
+        }
+        synchronized (this) {
+            long live = ids.size();
+            if ((bloomStale < Math.max(1024, live)) && (bloom.getAdded() < 2 * maxEntries)) {
+                return;
+            }
+            bloomStale = 0;
+        }
+        BloomFilter b = new BloomFilter(maxEntries);
+        rebuilding = b;
+        for (String id : ids.keySet()) {
+            b.add(id);
+        }
+        bloom = b;
+        rebuilding = null;
+    }
+
+    /**
+     * @return Number of ids held.
+     */
+    public int getEntryCount() { return ids.size(); }
+
+    /**
+     * @return Most ids held before the earliest-expiring are dropped.
+     */
+    public long getMaxEntries() { return maxEntries; }
+
+    /**
+     * @return Rough heap used by the store in bytes, including the Bloom
+     * filter if there is one and any kept responses.
+     */
+    public long getEstimatedMemory() {
+        long m = ((long) ids.size() * ENTRY_OVERHEAD) + (2 * idChars.get()) + responseBytes.get();
+        BloomFilter b = bloom;
+        if (b != null) {
+            m += b.getSize();
+        }
+        return m;
+    }
+
+    /**
+     * @return Number of ids recorded.
+     */
+    public long getRecordedCount() { return recorded.get(); }
+
+    /**
+     * @return Number of duplicates found.
+     */
+    public long getDuplicateCount() { return duplicates.get(); }
+
+    /**
+     * @return Number of ids removed at the end of their persist duration.
+     */
+    public long getExpiredCount() { return expired.get(); }
+
+    /**
+     * @return Number of ids dropped before their expiry because the store was
+     * full.
+     */
+    public long getEvictedCount() { return evicted.get(); }
+
+    /**
+     * @return Bytes of responses kept for replaying to duplicates.
+     */
+    public long getResponseCacheSize() { return responseBytes.get(); }
+
+    /**
+     * @return Number of duplicates answered with a kept response.
+     */
+    public long getReplayedCount() { return replayed.get(); }
+
+    /**
+     * @return Number of responses not kept because the response cache was
+     * full.
+     */
+    public long getUncachedCount() { return uncached.get(); }
+
+    /**
+     * @return true if ids are also kept in an on-disk index.
+     */
+    public boolean isPersistent() { return index != null; }
+
+    /**
+     * @return Number of id slots in the on-disk index, or 0 if there is none.
+     */
+    public long getIndexCapacity() { return (index == null) ? 0 : index.getCapacity(); }
+
+    /**
+     * @return Size of the on-disk index file in bytes, or 0 if there is none.
+     */
+    public long getIndexSize() { return (index == null) ? 0 : index.getSize(); }
+
+    /**
+     * @return Number of ids overwritten in the on-disk index before their
+     * expiry because their bucket was full.
+     */
+    public long getIndexOverwrittenCount() { return (index == null) ? 0 : index.getOverwrittenCount(); }
+
+    private static class Entry {
+
+        private final String id;
+        private final long expires;
+        private volatile CachedResponse response = null;
+        private boolean removed = false;
+
+        Entry(String i, long e) {
+            id = i;
+            expires = e;
+        }
+    }
+
+    /**
+     * Acknowledgment or negative acknowledgment sent for a received message.
+     */
+    static class CachedResponse {
+
+        private final byte[] ack;
+        private final boolean synchronous;
+        private final boolean error;
+
+        /**
+         * @param a Acknowledgment document
+         * @param s true if it was returned on the request's HTTP response,
+         * false if it was sent separately
+         * @param e true if it is a negative acknowledgment
+         */
+        CachedResponse(String a, boolean s, boolean e) {
+            ack = a.getBytes(StandardCharsets.UTF_8);
+            synchronous = s;
+            error = e;
+        }
+
+        String getAck() { return new String(ack, StandardCharsets.UTF_8); }
+
+        boolean isSynchronous() { return synchronous; }
+
+        boolean isError() { return error; }
+
+        int getSize() { return ack.length; }
+    }
+
+    /**
+     * Bloom filter sized for about a 1% false positive rate at its capacity,
+     * with bits set atomically so that adds need no lock.
+     */
+    static class BloomFilter {
+
+        private static final int BITS_PER_ENTRY = 10;
+        private static final int HASHES = 7;
+
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final AtomicLong added = new AtomicLong(0);
+
+        BloomFilter(long capacity) {
+            long words = Math.max(1, (capacity * BITS_PER_ENTRY + 63) / 64);
+            bits = new AtomicLongArray((int) Math.min(Integer.MAX_VALUE, words));
+            bitCount = (long) bits.length() * 64;
+        }
+
+        void add(String s) {
+            long h1 = s.hashCode();
+            long h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                long b = Math.abs((h1 + i * h2) % bitCount);
+                int w = (int) (b >>> 6);
+                long mask = 1L << (b & 63);
+                long v = bits.get(w);
+                while (((v & mask) == 0) && !bits.compareAndSet(w, v, v | mask)) {
+                    v = bits.get(w);
+                }
+            }
+            added.incrementAndGet();
+        }
+
+        boolean mightContain(String s) {
+            long h1 = s.hashCode();
+            long h2 = mix(h1);
+            for (int i = 0; i < HASHES; i++) {
+                long b = Math.abs((h1 + i * h2) % bitCount);
+                if ((bits.get((int) (b >>> 6)) & (1L << (b & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        long getAdded() { return added.get(); }
+
+        long getSize() { return (long) bits.length() * 8; }
+
+        private static long mix(long h) {
+            h ^= (h >>> 33);
+            h *= 0xff51afd7ed558ccdL;
+            h ^= (h >>> 33);
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= (h >>> 33);
+            return h | 1;
+        }
+    }
+}
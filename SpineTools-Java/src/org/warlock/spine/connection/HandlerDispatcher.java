@@ -0,0 +1,350 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+import org.warlock.spine.messaging.EbXmlMessage;
+import org.warlock.spine.messaging.SpineEbXmlHandler;
+
+/**
+ * Runs SpineEbXmlHandlers for received messages off the inbound worker that
+ * read and acknowledged them, so that a slow or failing handler for one
+ * interaction does not hold up acknowledgment or handling of any other.<BR><BR>
+ *
+ * Handlers are run in groups, each with its own threads and its own bounded
+ * queue. By default a group is all the SOAP actions whose handler is of the
+ * same class, so the ITK trunk handler, the default file-save handler and
+ * each user-registered handler class are kept apart. A SOAP action can be
+ * put in a named group of its own with an
+ * <code>org.warlock.spine.connection.dispatch.group.</code><i>soapaction</i>
+ * system property.<BR><BR>
+ *
+ * A place in the group is reserved before the message is acknowledged. If
+ * the group is full the request is refused with a 503 instead, and neither
+ * acknowledged nor recorded as received, so the sender's reliable retry
+ * brings it back later rather than it waiting in our heap.<BR><BR>
+ *
+ * Handler failures are logged under
+ * org.warlock.spine.connection.HandlerDispatcher.handlerFailed and counted
+ * per group.
+ */
+public class HandlerDispatcher {
+
+    /**
+     * System property. Set to something beginning with "n" or "N" to run
+     * handlers on the inbound worker, after the acknowledgment, as before.
+     * Default on.
+     */
+    public static final String DISPATCH_ENABLED = "org.warlock.spine.connection.dispatch.enabled";
+
+    /**
+     * System property. Number of threads running handlers in each group.
+     * Can be set for a single group by appending "." and the group name.
+     * Default 4.
+     */
+    public static final String DISPATCH_THREADS = "org.warlock.spine.connection.dispatch.threads";
+
+    /**
+     * System property. Number of messages allowed to wait for a handler
+     * thread in each group before further requests for the group are refused.
+     * Can be set for a single group by appending "." and the group name.
+     * Default 64.
+     */
+    public static final String DISPATCH_QUEUE = "org.warlock.spine.connection.dispatch.queue";
+
+    /**
+     * System property prefix. Appended with a SOAP action, gives the name of
+     * the group that SOAP action's handler is run in. Default is the handler's
+     * class name.
+     */
+    public static final String DISPATCH_GROUP = "org.warlock.spine.connection.dispatch.group.";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.HandlerDispatcher";
+
+    private static final long DEFAULT_THREADS = 4;
+    private static final long DEFAULT_QUEUE = 64;
+
+    private final boolean enabled;
+    private final ConcurrentHashMap<String, Group> groups = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Group> actions = new ConcurrentHashMap<>();
+    private volatile boolean stopped = false;
+
+    HandlerDispatcher() {
+        enabled = ConnectionManager.getBooleanProperty(DISPATCH_ENABLED, true);
+    }
+
+    public boolean isEnabled() { return enabled; }
+
+    /**
+     * Take a place in the handler group for a SOAP action.
+     *
+     * @param soapAction SOAP action of the received message
+     * @param h Handler the message will be passed to
+     * @return The group, or null if it is full and the request must be
+     * refused.
+     */
+    Group reserve(String soapAction, SpineEbXmlHandler h) {
+        Group g = actions.get(soapAction);
+        if (g == null) {
+            String name = System.getProperty(DISPATCH_GROUP + soapAction);
+            if ((name == null) || (name.trim().length() == 0)) {
+                name = h.getClass().getName();
+            }
+            g = getGroup(name.trim());
+            actions.put(soapAction, g);
+        }
+        return g.reserve() ? g : null;
+    }
+
+    private Group getGroup(String name) {
+        Group g = groups.get(name);
+        if (g == null) {
+            Group n = new Group(name);
+            g = groups.putIfAbsent(name, n);
+            if (g == null) {
+                g = n;
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Stop taking work. Messages already queued are still handled.
+     */
+    void shutdown() {
+        stopped = true;
+        for (Group g : groups.values()) {
+            g.executor.shutdown();
+        }
+    }
+
+    /**
+     * Wait for queued and running handlers in every group to finish after
+     * shutdown().
+     *
+     * @param ms Longest time to wait in milliseconds, for all the groups
+     * together
+     * @return true if everything finished in time.
+     * @throws InterruptedException
+     */
+    boolean awaitTermination(long ms)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ms;
+        for (Group g : groups.values()) {
+            long left = Math.max(0, deadline - System.currentTimeMillis());
+            if (!g.executor.awaitTermination(left, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Names of the groups used so far.
+     */
+    public List<String> getGroups() { return new ArrayList<>(groups.keySet()); }
+
+    /**
+     * @param group Group name
+     * @return Number of handler threads for the group.
+     */
+    public int getThreadCount(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.threads;
+    }
+
+    /**
+     * @param group Group name
+     * @return Most messages that may be being handled or waiting at once.
+     */
+    public int getCapacity(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.capacity;
+    }
+
+    /**
+     * @param group Group name
+     * @return Number of messages waiting for a handler thread.
+     */
+    public int getQueueDepth(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.queued.get();
+    }
+
+    /**
+     * @param group Group name
+     * @return Number of handlers running.
+     */
+    public int getActiveCount(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.executor.getActiveCount();
+    }
+
+    /**
+     * @param group Group name
+     * @return Number of messages passed to handlers.
+     */
+    public long getDispatchedCount(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.dispatched.get();
+    }
+
+    /**
+     * @param group Group name
+     * @return Number of requests refused because the group was full.
+     */
+    public long getRejectedCount(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.rejected.get();
+    }
+
+    /**
+     * @param group Group name
+     * @return Number of handler calls that threw an exception.
+     */
+    public long getFailedCount(String group) {
+        Group g = groups.get(group);
+        return (g == null) ? 0 : g.failed.get();
+    }
+
+    class Group {
+
+        private final String name;
+        private final int threads;
+        private final int capacity;
+        private final ThreadPoolExecutor executor;
+
+        private final AtomicInteger reserved = new AtomicInteger(0);
+        private final AtomicInteger queued = new AtomicInteger(0);
+        private final AtomicLong dispatched = new AtomicLong(0);
+        private final AtomicLong rejected = new AtomicLong(0);
+        private final AtomicLong failed = new AtomicLong(0);
+        private volatile boolean saturated = false;
+
+        private Group(String n) {
+            name = n;
+            threads = (int) Math.max(1, ConnectionManager.getLongProperty(DISPATCH_THREADS + "." + n,
+                    ConnectionManager.getLongProperty(DISPATCH_THREADS, DEFAULT_THREADS)));
+            capacity = threads + (int) Math.max(0, ConnectionManager.getLongProperty(DISPATCH_QUEUE + "." + n,
+                    ConnectionManager.getLongProperty(DISPATCH_QUEUE, DEFAULT_QUEUE)));
+            final String simpleName = n.substring(n.lastIndexOf('.') + 1);
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "Spine handler " + simpleName + "-" + count.incrementAndGet());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        private boolean reserve() {
+            while (true) {
+                int r = reserved.get();
+                if (stopped || (r >= capacity)) {
+                    rejected.incrementAndGet();
+                    if (!saturated) {
+                        saturated = true;
+                        SpineToolsLogger.getInstance().log(LOGSOURCE + ".saturated", "Handler group " + name + " full with " + r + " messages, refusing with 503");
+                    }
+                    return false;
+                }
+                if (reserved.compareAndSet(r, r + 1)) {
+                    if (saturated) {
+                        saturated = false;
+                        SpineToolsLogger.getInstance().log(LOGSOURCE + ".saturated", "Handler group " + name + " accepting again, " + rejected.get() + " refused in total");
+                    }
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Give back a place that will not be used, because the message was a
+         * duplicate or failed to parse.
+         */
+        void cancel() {
+            reserved.decrementAndGet();
+        }
+
+        /**
+         * Hand a message to its handler on this group's threads. The message
+         * has already been acknowledged, so if the group has been shut down
+         * the handler is called on this thread rather than the message being
+         * lost.
+         *
+         * @param h Handler
+         * @param m Received message
+         * @param b Body the message was parsed from, which the message may
+         * still refer to. A reference is held until the handler has finished,
+         * so that its part of the inbound memory budget is held as long.
+         */
+        void execute(SpineEbXmlHandler h, EbXmlMessage m, ReceivedBody b) {
+            b.retain();
+            Dispatched d = new Dispatched(h, m, b);
+            dispatched.incrementAndGet();
+            queued.incrementAndGet();
+            try {
+                executor.execute(d);
+            } catch (RejectedExecutionException e) {
+                d.run();
+            }
+        }
+
+        private class Dispatched
+                implements Runnable {
+
+            private final SpineEbXmlHandler handler;
+            private final EbXmlMessage message;
+            private final ReceivedBody body;
+
+            Dispatched(SpineEbXmlHandler h, EbXmlMessage m, ReceivedBody b) {
+                handler = h;
+                message = m;
+                body = b;
+            }
+
+            @Override
+            public void run() {
+                queued.decrementAndGet();
+                try {
+                    handler.handle(message);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    SpineToolsLogger.getInstance().log(LOGSOURCE + ".handlerFailed", "Handler for " + message.getSoapAction() + " message " + message.getMessageId() + " failed: " + e.toString());
+                } finally {
+                    reserved.decrementAndGet();
+                    body.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,1016 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Buffered HTTP/1.1 request and response parser, used for all wire parsing:
+ * responses read by the Transmitter and the NioTransmitEngine, requests read
+ * by the SpineMessageHandler, and the HTTP part of a received EbXmlMessage.<BR><BR>
+ *
+ * The head (start line and header fields) is read into a byte buffer, and the
+ * positions of each line and its colon are recorded. Header look-ups are done
+ * by case-insensitive ASCII comparison against the buffer, so nothing is
+ * allocated per line, and a String is only made when a header value is asked
+ * for. Bodies may be delimited by Content-Length, by chunked
+ * transfer-encoding, or (for a response on a connection that is to be closed)
+ * by the end of the stream.<BR><BR>
+ *
+ * There are two ways of using it. Constructed with an InputStream, readHead()
+ * and readBody() read from the stream, and the same instance can be used for
+ * successive messages on a keep-alive connection. Constructed without one,
+ * parseHead() and messageLength() work over bytes accumulated elsewhere, for
+ * the non-blocking transport.<BR><BR>
+ *
+ * Header field values are decoded as ISO-8859-1. Instances are not thread
+ * safe.
+ */
+public class HttpCodec {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEAD_SIZE = 65536;
+    private static final int MAX_LINES = 128;
+    private static final int MAX_CHUNK_LINE = 4096;
+    private static final int MAX_LENGTH_DIGITS = 18;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final int BODY_NONE = 0;
+    private static final int BODY_LENGTH = 1;
+    private static final int BODY_CHUNKED = 2;
+    private static final int BODY_TO_EOF = 3;
+
+    private final InputStream in;
+    private OutputStream capture = null;
+    private byte[] buf;
+    private int pos = 0;
+    private int lim = 0;
+    private int headStart = 0;
+    private int headEnd = -1;
+    private int lines = 0;
+    private final int[] lineStart = new int[MAX_LINES];
+    private final int[] lineEnd = new int[MAX_LINES];
+    private final int[] colon = new int[MAX_LINES];
+    private boolean folded = false;
+    private boolean bodyComplete = true;
+    private long maxBody = Integer.MAX_VALUE - 8;
+
+    /**
+     * Make a codec that reads from a stream.
+     *
+     * @param is Stream to read from.
+     */
+    public HttpCodec(InputStream is) {
+        in = is;
+        buf = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Make a codec for parsing bytes that have been read elsewhere, using
+     * parseHead() and messageLength().
+     */
+    public HttpCodec() {
+        in = null;
+        buf = EMPTY;
+    }
+
+    /**
+     * Copy all bytes read from the stream, including any read ahead, to the
+     * given stream. Used for session capture.
+     *
+     * @param os Capture stream, or null to stop capturing.
+     */
+    public void setCapture(OutputStream os) {
+        capture = os;
+    }
+
+    /**
+     * Set the largest chunked body readBody() or getBodyStream() will read
+     * before throwing an IOException. A Content-Length body should be checked against its
+     * header before it is read.
+     *
+     * @param m Largest body in bytes
+     */
+    public void setMaxBody(long m) {
+        maxBody = Math.min(m, Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Read the start line and header fields of the next message from the
+     * stream.
+     *
+     * @return false if the stream ended before any of a message was read.
+     * @throws IOException if the stream ends part way through the head, or the
+     * head is too big.
+     */
+    public boolean readHead()
+            throws IOException {
+        // Discard the previous message, keeping anything read beyond it.
+        //
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, lim - pos);
+            lim -= pos;
+            pos = 0;
+        }
+        headEnd = -1;
+        lines = 0;
+        folded = false;
+        bodyComplete = true;
+        while (true) {
+            skipLeadingLineEnds();
+            int e = findHeadEnd(buf, pos, lim);
+            if (e != -1) {
+                index(e);
+                return true;
+            }
+            if ((lim == buf.length) && (pos == 0)) {
+                if (buf.length >= MAX_HEAD_SIZE) {
+                    throw new IOException("HTTP header exceeds " + MAX_HEAD_SIZE + " bytes");
+                }
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            if (fill() == -1) {
+                if (pos == lim) {
+                    return false;
+                }
+                throw new EOFException("Connection closed while reading HTTP header");
+            }
+        }
+    }
+
+    /**
+     * Parse the head of a message held at the start of the given buffer.
+     *
+     * @param b Buffer
+     * @param len Number of valid bytes in the buffer
+     * @return true if the whole head is present.
+     * @throws IOException if the head is too big.
+     */
+    public boolean parseHead(byte[] b, int len)
+            throws IOException {
+        buf = b;
+        lim = len;
+        pos = 0;
+        headEnd = -1;
+        lines = 0;
+        folded = false;
+        skipLeadingLineEnds();
+        int e = findHeadEnd(b, pos, len);
+        if (e == -1) {
+            if (len > MAX_HEAD_SIZE) {
+                throw new IOException("HTTP header exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            return false;
+        }
+        index(e);
+        return true;
+    }
+
+    /**
+     * For a message whose head has been parsed with parseHead(), work out
+     * whether the whole body is present.
+     *
+     * @param b Buffer, which may have grown since parseHead() was called.
+     * @param len Number of valid bytes in the buffer
+     * @param eof true if the connection has closed
+     * @return Length of the complete message from the start of the buffer,
+     * or -1 if more is needed.
+     */
+    public int messageLength(byte[] b, int len, boolean eof) {
+        buf = b;
+        lim = len;
+        switch (bodyKind()) {
+            case BODY_LENGTH:
+                long cl = getContentLength();
+                return (headEnd + cl <= len) ? (int) (headEnd + cl) : -1;
+            case BODY_CHUNKED:
+                return scanChunked(b, headEnd, len);
+            case BODY_TO_EOF:
+                return eof ? len : -1;
+            default:
+                return headEnd;
+        }
+    }
+
+    /**
+     * For a message whose head has been parsed with parseHead(), and for
+     * which messageLength() has returned the given length, get the body.
+     *
+     * @param b Buffer
+     * @param length Value returned by messageLength()
+     * @return Body, with any chunked encoding removed.
+     */
+    public byte[] getBody(byte[] b, int length) {
+        if (bodyKind() == BODY_CHUNKED) {
+            return decodeChunked(b, headEnd, length);
+        }
+        return Arrays.copyOfRange(b, headEnd, length);
+    }
+
+    /**
+     * @return true if any bytes have been read beyond the end of the current
+     * message.
+     */
+    public boolean hasBuffered() {
+        return pos < lim;
+    }
+
+    /**
+     * @return true if the last body read was complete.
+     */
+    public boolean isBodyComplete() {
+        return bodyComplete;
+    }
+
+    /**
+     * @return Request or status line.
+     */
+    public String getStartLine() {
+        if (lines == 0) {
+            return null;
+        }
+        return new String(buf, lineStart[0], lineEnd[0] - lineStart[0], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return Response status code, or -1 if the message is not a response.
+     */
+    public int getStatus() {
+        if ((lines == 0) || !startsWith(buf, lineStart[0], lineEnd[0], "HTTP/")) {
+            return -1;
+        }
+        int i = lineStart[0];
+        while ((i < lineEnd[0]) && (buf[i] != ' ')) {
+            i++;
+        }
+        while ((i < lineEnd[0]) && (buf[i] == ' ')) {
+            i++;
+        }
+        int status = 0;
+        int digits = 0;
+        while ((i < lineEnd[0]) && (buf[i] >= '0') && (buf[i] <= '9') && (digits < 3)) {
+            status = (status * 10) + (buf[i] - '0');
+            i++;
+            digits++;
+        }
+        return (digits == 3) ? status : -1;
+    }
+
+    /**
+     * @return Request method, or null if the message is not a request.
+     */
+    public String getMethod() {
+        if ((lines == 0) || (getStatus() != -1)) {
+            return null;
+        }
+        int e = indexOf(buf, lineStart[0], lineEnd[0], (byte) ' ');
+        if (e == -1) {
+            return null;
+        }
+        return new String(buf, lineStart[0], e - lineStart[0], StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return Request target (path), or null if the message is not a request.
+     */
+    public String getRequestTarget() {
+        if ((lines == 0) || (getStatus() != -1)) {
+            return null;
+        }
+        int s = indexOf(buf, lineStart[0], lineEnd[0], (byte) ' ');
+        if (s == -1) {
+            return null;
+        }
+        s++;
+        int e = indexOf(buf, s, lineEnd[0], (byte) ' ');
+        if (e == -1) {
+            e = lineEnd[0];
+        }
+        return new String(buf, s, e - s, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return true if the start line says HTTP/1.0.
+     */
+    public boolean isHttp10() {
+        return (lines > 0) && (indexOfIgnoreCase(buf, lineStart[0], lineEnd[0], "HTTP/1.0") != -1);
+    }
+
+    /**
+     * @return true if the connection may be used for another message after
+     * this one: HTTP/1.1 unless "Connection: close", or HTTP/1.0 with
+     * "Connection: keep-alive".
+     */
+    public boolean isKeepAlive() {
+        if (isHttp10()) {
+            return headerContains("Connection", "keep-alive");
+        }
+        return !headerContains("Connection", "close");
+    }
+
+    /**
+     * Get the charset named by the charset parameter of the Content-Type
+     * field, for decoding the body as text.
+     *
+     * @param dflt Charset to use if there is no charset parameter, or it
+     * names one this JVM doesn't support.
+     * @return Charset for the body.
+     */
+    public Charset getCharset(Charset dflt) {
+        String ct = getHeader("Content-Type");
+        if (ct == null) {
+            return dflt;
+        }
+        int s = ct.toLowerCase().indexOf("charset=");
+        if (s == -1) {
+            return dflt;
+        }
+        String n = ct.substring(s + "charset=".length());
+        int e = n.indexOf(';');
+        if (e != -1) {
+            n = n.substring(0, e);
+        }
+        n = n.replace('"', ' ').trim();
+        try {
+            return Charset.forName(n);
+        } catch (IllegalArgumentException ex) {
+            return dflt;
+        }
+    }
+
+    /**
+     * @return true if the body uses chunked transfer-encoding.
+     */
+    public boolean isChunked() {
+        return headerContains("Transfer-Encoding", "chunked");
+    }
+
+    /**
+     * Get a header field value.
+     *
+     * @param name Field name, matched without regard to case
+     * @return Trimmed value, or null if the field isn't present.
+     */
+    public String getHeader(String name) {
+        int i = find(name);
+        if (i == -1) {
+            return null;
+        }
+        int s = valueStart(i);
+        int e = valueEnd(i);
+        String v = new String(buf, s, e - s, StandardCharsets.ISO_8859_1);
+        if (folded) {
+            v = v.replaceAll("\r?\n[ \t]+", " ");
+        }
+        return v;
+    }
+
+    /**
+     * @param name Field name, matched without regard to case
+     * @return true if the field is present.
+     */
+    public boolean hasHeader(String name) {
+        return find(name) != -1;
+    }
+
+    /**
+     * Check a header field value for a token, without making a String.
+     *
+     * @param name Field name, matched without regard to case
+     * @param token Token, matched without regard to case
+     * @return true if the field is present and its value contains the token.
+     */
+    public boolean headerContains(String name, String token) {
+        int i = find(name);
+        if (i == -1) {
+            return false;
+        }
+        return indexOfIgnoreCase(buf, valueStart(i), valueEnd(i), token) != -1;
+    }
+
+    /**
+     * @return Content-Length value, or -1 if there isn't one, it isn't a
+     * number, or it is too long to be a sensible length (more than 18
+     * digits), so that it never wraps to a negative value.
+     */
+    public long getContentLength() {
+        int i = find("Content-Length");
+        if (i == -1) {
+            return -1;
+        }
+        int s = valueStart(i);
+        int e = valueEnd(i);
+        if ((s == e) || (e - s > MAX_LENGTH_DIGITS)) {
+            return -1;
+        }
+        long l = 0;
+        for (int j = s; j < e; j++) {
+            if ((buf[j] < '0') || (buf[j] > '9')) {
+                return -1;
+            }
+            l = (l * 10) + (buf[j] - '0');
+        }
+        return l;
+    }
+
+    /**
+     * @return The head as received, including line ends and the terminating
+     * blank line.
+     */
+    public String getHeadText() {
+        if (headEnd == -1) {
+            return null;
+        }
+        return new String(buf, headStart, headEnd - headStart, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return The start line and header lines run together without line ends,
+     * which is the form the Transmitter has always kept the response header in.
+     */
+    public String getHeaderBlock() {
+        if (lines == 0) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(headEnd - headStart);
+        for (int i = 0; i < lines; i++) {
+            sb.append(new String(buf, lineStart[i], lineEnd[i] - lineStart[i], StandardCharsets.ISO_8859_1));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Read the body of the current message from the stream.
+     *
+     * @return Body, with any chunked encoding removed. If the stream ends
+     * early, what was read is returned and isBodyComplete() returns false.
+     * @throws IOException
+     */
+    public byte[] readBody()
+            throws IOException {
+        switch (bodyKind()) {
+            case BODY_LENGTH:
+                long cl = getContentLength();
+                if (cl > Integer.MAX_VALUE) {
+                    throw new IOException("Content-Length " + cl + " too large");
+                }
+                byte[] b = new byte[(int) cl];
+                int r = readFully(b, 0, b.length);
+                if (r < b.length) {
+                    bodyComplete = false;
+                    return Arrays.copyOf(b, r);
+                }
+                return b;
+            case BODY_CHUNKED:
+                return readChunked();
+            case BODY_TO_EOF:
+                return readToEnd();
+            default:
+                return EMPTY;
+        }
+    }
+
+    /**
+     * Get the body of the current message as a stream. A Content-Length or
+     * chunked body is read directly from the connection, with any chunked
+     * encoding removed; otherwise the body is read first.
+     *
+     * @return Body stream
+     * @throws IOException
+     */
+    public InputStream getBodyStream()
+            throws IOException {
+        int k = bodyKind();
+        if (k == BODY_CHUNKED) {
+            return new ChunkedStream();
+        }
+        if (k != BODY_LENGTH) {
+            return new ByteArrayInputStream(readBody());
+        }
+        final long cl = getContentLength();
+        return new InputStream() {
+            private long left = cl;
+
+            @Override
+            public int read()
+                    throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xff);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len)
+                    throws IOException {
+                if (left == 0) {
+                    return -1;
+                }
+                int r = readSome(b, off, (int) Math.min(len, left));
+                if (r == -1) {
+                    bodyComplete = false;
+                    return -1;
+                }
+                left -= r;
+                return r;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.min(lim - pos, left);
+            }
+        };
+    }
+
+    private int bodyKind() {
+        if (isChunked()) {
+            return BODY_CHUNKED;
+        }
+        if (getContentLength() != -1) {
+            return BODY_LENGTH;
+        }
+        int status = getStatus();
+        if (status == -1) {
+            // A request without Content-Length has no body
+            return BODY_NONE;
+        }
+        if (((status >= 100) && (status < 200)) || (status == 204) || (status == 304)) {
+            return BODY_NONE;
+        }
+        return isKeepAlive() ? BODY_NONE : BODY_TO_EOF;
+    }
+
+    /**
+     * Record the positions of the lines and colons in the head, which ends at
+     * e. Continuation lines are folded into the line before.
+     */
+    private void index(int e)
+            throws IOException {
+        headStart = pos;
+        int s = pos;
+        for (int i = pos; i < e; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            int le = ((i > s) && (buf[i - 1] == '\r')) ? i - 1 : i;
+            if (le == s) {
+                break;
+            }
+            if ((lines > 0) && ((buf[s] == ' ') || (buf[s] == '\t'))) {
+                lineEnd[lines - 1] = le;
+                folded = true;
+            } else {
+                if (lines == MAX_LINES) {
+                    throw new IOException("Too many HTTP header fields");
+                }
+                lineStart[lines] = s;
+                lineEnd[lines] = le;
+                colon[lines] = (lines == 0) ? -1 : indexOf(buf, s, le, (byte) ':');
+                lines++;
+            }
+            s = i + 1;
+        }
+        headEnd = e;
+        pos = e;
+    }
+
+    /**
+     * Skip any empty lines before the start line, which RFC 7230 says a
+     * server should ignore.
+     */
+    private void skipLeadingLineEnds() {
+        while ((pos < lim) && ((buf[pos] == '\r') || (buf[pos] == '\n'))) {
+            pos++;
+        }
+    }
+
+    private static int findHeadEnd(byte[] b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] != '\n') {
+                continue;
+            }
+            if ((i + 1 < to) && (b[i + 1] == '\n')) {
+                return i + 2;
+            }
+            if ((i + 2 < to) && (b[i + 1] == '\r') && (b[i + 2] == '\n')) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private int find(String name) {
+        for (int i = 1; i < lines; i++) {
+            int c = colon[i];
+            if (c == -1) {
+                continue;
+            }
+            int e = c;
+            while ((e > lineStart[i]) && ((buf[e - 1] == ' ') || (buf[e - 1] == '\t'))) {
+                e--;
+            }
+            if ((e - lineStart[i] == name.length()) && startsWith(buf, lineStart[i], e, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int valueStart(int i) {
+        int s = colon[i] + 1;
+        while ((s < lineEnd[i]) && ((buf[s] == ' ') || (buf[s] == '\t'))) {
+            s++;
+        }
+        return s;
+    }
+
+    private int valueEnd(int i) {
+        int e = lineEnd[i];
+        int s = colon[i] + 1;
+        while ((e > s) && ((buf[e - 1] == ' ') || (buf[e - 1] == '\t'))) {
+            e--;
+        }
+        return e;
+    }
+
+    /**
+     * Read more from the stream into the buffer. During the body, space
+     * after the head is re-used so that the head stays readable.
+     *
+     * @return Number of bytes read, or -1 at end of stream.
+     */
+    private int fill()
+            throws IOException {
+        if ((headEnd != -1) && (pos == lim)) {
+            pos = headEnd;
+            lim = headEnd;
+        }
+        if (lim == buf.length) {
+            // While reading the head, move it to the start of the buffer.
+            // While reading the body, keep the head where it is.
+            //
+            int keep = (headEnd == -1) ? 0 : headEnd;
+            if (pos > keep) {
+                System.arraycopy(buf, pos, buf, keep, lim - pos);
+                lim -= (pos - keep);
+                pos = keep;
+            } else {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+        }
+        int r = in.read(buf, lim, buf.length - lim);
+        if (r > 0) {
+            if (capture != null) {
+                capture.write(buf, lim, r);
+            }
+            lim += r;
+        }
+        return r;
+    }
+
+    /**
+     * Read up to len bytes, from the buffer if there is anything in it, or
+     * directly from the stream if not.
+     */
+    private int readSome(byte[] b, int off, int len)
+            throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (pos < lim) {
+            int n = Math.min(len, lim - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+        int r = in.read(b, off, len);
+        if ((r > 0) && (capture != null)) {
+            capture.write(b, off, r);
+        }
+        return r;
+    }
+
+    private int readFully(byte[] b, int off, int len)
+            throws IOException {
+        int n = 0;
+        while (n < len) {
+            int r = readSome(b, off + n, len - n);
+            if (r == -1) {
+                break;
+            }
+            n += r;
+        }
+        return n;
+    }
+
+    private byte[] readToEnd()
+            throws IOException {
+        byte[] b = new byte[BUFFER_SIZE];
+        int n = 0;
+        while (true) {
+            if (n == b.length) {
+                b = Arrays.copyOf(b, b.length * 2);
+            }
+            int r = readSome(b, n, b.length - n);
+            if (r == -1) {
+                break;
+            }
+            n += r;
+        }
+        return Arrays.copyOf(b, n);
+    }
+
+    private byte[] readChunked()
+            throws IOException {
+        byte[] b = new byte[BUFFER_SIZE];
+        int n = 0;
+        while (true) {
+            int e = readLineInBuffer();
+            if (e == -1) {
+                bodyComplete = false;
+                return Arrays.copyOf(b, n);
+            }
+            long size = parseChunkSize(buf, pos, e);
+            pos = e + 1;
+            if (size < 0) {
+                throw new IOException("Malformed chunk size");
+            }
+            if (size == 0) {
+                skipTrailers();
+                return Arrays.copyOf(b, n);
+            }
+            if (n + size > maxBody) {
+                throw new IOException("Chunked body too large");
+            }
+            if (n + size > b.length) {
+                b = Arrays.copyOf(b, (int) Math.max(b.length * 2, n + size));
+            }
+            int r = readFully(b, n, (int) size);
+            n += r;
+            e = (r < size) ? -1 : readLineInBuffer();
+            if (e == -1) {
+                bodyComplete = false;
+                return Arrays.copyOf(b, n);
+            }
+            pos = e + 1;
+        }
+    }
+
+    /**
+     * Skip any trailer fields after the last chunk, up to the blank line.
+     */
+    private void skipTrailers()
+            throws IOException {
+        int e = -1;
+        while ((e = readLineInBuffer()) != -1) {
+            boolean blank = (e == pos) || ((e == pos + 1) && (buf[pos] == '\r'));
+            pos = e + 1;
+            if (blank) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * A chunked body read from the connection a chunk at a time, to at most
+     * the largest body set by setMaxBody().
+     */
+    private class ChunkedStream
+            extends InputStream {
+
+        private long left = 0;
+        private long total = 0;
+        private boolean started = false;
+        private boolean done = false;
+
+        @Override
+        public int read()
+                throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) == -1) ? -1 : (one[0] & 0xff);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len)
+                throws IOException {
+            if (done) {
+                return -1;
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (left == 0) {
+                if (started) {
+                    // Line end after the last chunk's data
+                    //
+                    int e = readLineInBuffer();
+                    if (e == -1) {
+                        return end(false);
+                    }
+                    pos = e + 1;
+                }
+                started = true;
+                int e = readLineInBuffer();
+                if (e == -1) {
+                    return end(false);
+                }
+                long size = parseChunkSize(buf, pos, e);
+                pos = e + 1;
+                if (size < 0) {
+                    throw new IOException("Malformed chunk size");
+                }
+                if (size == 0) {
+                    skipTrailers();
+                    return end(true);
+                }
+                if (total + size > maxBody) {
+                    throw new IOException("Chunked body too large");
+                }
+                left = size;
+                total += size;
+            }
+            int r = readSome(b, off, (int) Math.min(len, left));
+            if (r == -1) {
+                return end(false);
+            }
+            left -= r;
+            return r;
+        }
+
+        private int end(boolean complete) {
+            done = true;
+            if (!complete) {
+                bodyComplete = false;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Make sure there is a complete line at pos in the buffer.
+     *
+     * @return Position of the line's LF, or -1 at end of stream.
+     */
+    private int readLineInBuffer()
+            throws IOException {
+        while (true) {
+            int e = indexOf(buf, pos, lim, (byte) '\n');
+            if (e != -1) {
+                return e;
+            }
+            if (lim - pos > MAX_CHUNK_LINE) {
+                throw new IOException("Chunk size line too long");
+            }
+            if (fill() == -1) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Check that a complete chunked body starts at from in b.
+     *
+     * @return Position after the end of the body, or -1 if incomplete.
+     */
+    private static int scanChunked(byte[] b, int from, int to) {
+        int p = from;
+        while (true) {
+            int e = indexOf(b, p, to, (byte) '\n');
+            if (e == -1) {
+                return -1;
+            }
+            long size = parseChunkSize(b, p, e);
+            if (size < 0) {
+                return -1;
+            }
+            p = e + 1;
+            if (size == 0) {
+                while (true) {
+                    e = indexOf(b, p, to, (byte) '\n');
+                    if (e == -1) {
+                        return -1;
+                    }
+                    boolean blank = (e == p) || ((e == p + 1) && (b[p] == '\r'));
+                    p = e + 1;
+                    if (blank) {
+                        return p;
+                    }
+                }
+            }
+            if (p + size >= to) {
+                return -1;
+            }
+            e = indexOf(b, (int) (p + size), to, (byte) '\n');
+            if (e == -1) {
+                return -1;
+            }
+            p = e + 1;
+        }
+    }
+
+    private static byte[] decodeChunked(byte[] b, int from, int to) {
+        byte[] out = new byte[to - from];
+        int n = 0;
+        int p = from;
+        while (p < to) {
+            int e = indexOf(b, p, to, (byte) '\n');
+            long size = parseChunkSize(b, p, e);
+            p = e + 1;
+            if (size <= 0) {
+                break;
+            }
+            System.arraycopy(b, p, out, n, (int) size);
+            n += (int) size;
+            p = indexOf(b, (int) (p + size), to, (byte) '\n') + 1;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Parse the hex chunk size at the start of the line from s to the LF at
+     * e, ignoring any chunk extensions.
+     *
+     * @return Size, or -1 if malformed.
+     */
+    private static long parseChunkSize(byte[] b, int s, int e) {
+        long size = 0;
+        int digits = 0;
+        for (int i = s; i < e; i++) {
+            int c = b[i];
+            int d = -1;
+            if ((c >= '0') && (c <= '9')) {
+                d = c - '0';
+            } else if ((c >= 'a') && (c <= 'f')) {
+                d = c - 'a' + 10;
+            } else if ((c >= 'A') && (c <= 'F')) {
+                d = c - 'A' + 10;
+            }
+            if (d == -1) {
+                break;
+            }
+            if (++digits > 15) {
+                return -1;
+            }
+            size = (size << 4) + d;
+        }
+        return (digits == 0) ? -1 : size;
+    }
+
+    private static int indexOf(byte[] b, int s, int e, byte c) {
+        for (int i = s; i < e; i++) {
+            if (b[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int lower(int c) {
+        return ((c >= 'A') && (c <= 'Z')) ? c + 32 : c;
+    }
+
+    /**
+     * Case-insensitive ASCII comparison of the bytes from s with the string.
+     */
+    private static boolean startsWith(byte[] b, int s, int e, String t) {
+        int l = t.length();
+        if (e - s < l) {
+            return false;
+        }
+        for (int i = 0; i < l; i++) {
+            if (lower(b[s + i]) != lower(t.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfIgnoreCase(byte[] b, int s, int e, String t) {
+        for (int i = s; i + t.length() <= e; i++) {
+            if (startsWith(b, i, e, t)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
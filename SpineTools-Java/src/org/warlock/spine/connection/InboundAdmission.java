@@ -0,0 +1,464 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Bounded work queue in front of inbound message processing, shared by both
+ * listen modes.<BR><BR>
+ *
+ * A fixed number of worker threads run SpineMessageHandlers, and at most the
+ * configured number of requests wait for a worker. A request that arrives
+ * when the workers are busy and the queue is full gets an immediate
+ * "503 Service Unavailable" with a Retry-After header, and its body is never
+ * read, so a spike from Spine is absorbed by the sender's reliable retries
+ * rather than by our heap.<BR><BR>
+ *
+ * With the blocking listener a connection is admitted when it is accepted,
+ * and a rejected connection has its request head read and the 503 written
+ * by a single separate thread, so the accept loop is never held up. With the
+ * NioListener a slot is reserved as soon as the request head has been read,
+ * and the 503 is sent by the selector thread. A blocking connection holds its
+ * worker while its TLS handshake and request are read, so each read there is
+ * limited by the request timeout, and a connection that times out is closed
+ * and counted.<BR><BR>
+ *
+ * Queue depth, rejections and the time requests wait for a worker are
+ * counted. Changes between accepting and rejecting are logged under
+ * org.warlock.spine.connection.InboundAdmission.saturated.<BR><BR>
+ *
+ * This also decides whether a connection is kept alive after its response,
+ * so that Spine and peer MHSs can send several messages over one TLS
+ * session. A kept-alive blocking connection holds its worker while it waits
+ * for the next request, so it waits only briefly, and it is closed instead
+ * when other requests are waiting for a worker. An idle NioListener
+ * connection holds no worker.
+ */
+public class InboundAdmission {
+
+    /**
+     * System property. Number of threads processing inbound requests.
+     * Default 16.
+     */
+    public static final String INBOUND_WORKERS = "org.warlock.spine.connection.inbound.workers";
+
+    /**
+     * System property. Number of inbound requests allowed to wait for a
+     * worker before further requests are refused. Default 64.
+     */
+    public static final String INBOUND_QUEUE = "org.warlock.spine.connection.inbound.queue";
+
+    /**
+     * System property. Value, in seconds, of the Retry-After header sent with
+     * a 503. Default 10.
+     */
+    public static final String INBOUND_RETRY_AFTER = "org.warlock.spine.connection.inbound.retryafter";
+
+    /**
+     * System property. Set to something beginning with "n" or "N" to close
+     * every inbound connection after one request. Default on.
+     */
+    public static final String INBOUND_KEEPALIVE = "org.warlock.spine.connection.inbound.keepalive";
+
+    /**
+     * System property. Time in milliseconds that any one read of the TLS
+     * handshake or of a request on a blocking connection may wait, so that a
+     * client which connects and then sends nothing cannot hold a worker. The
+     * NioListener has its own request timeout. Default 30,000 (30 seconds).
+     */
+    public static final String INBOUND_REQUEST_TIMEOUT = "org.warlock.spine.connection.inbound.requesttimeout";
+
+    /**
+     * System property. Time in milliseconds a kept-alive NioListener
+     * connection may wait for its next request before it is closed. Default
+     * 15,000 (15 seconds).
+     */
+    public static final String INBOUND_IDLE_TIMEOUT = "org.warlock.spine.connection.inbound.idletimeout";
+
+    /**
+     * System property. Time in milliseconds a kept-alive blocking connection
+     * may wait for its next request before it is closed. This is short
+     * because the wait holds a worker. Default 2,000 (2 seconds).
+     */
+    public static final String INBOUND_BLOCKING_IDLE_TIMEOUT = "org.warlock.spine.connection.inbound.blockingidletimeout";
+
+    /**
+     * System property. Most requests served on one connection. The response
+     * to the last of them says "Connection: close". Default 100.
+     */
+    public static final String INBOUND_MAX_REQUESTS = "org.warlock.spine.connection.inbound.maxrequests";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.InboundAdmission.saturated";
+
+    private static final long DEFAULT_WORKERS = 16;
+    private static final long DEFAULT_QUEUE = 64;
+    private static final long DEFAULT_RETRY_AFTER = 10;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+    private static final long DEFAULT_IDLE_TIMEOUT = 15000;
+    private static final long DEFAULT_BLOCKING_IDLE_TIMEOUT = 2000;
+    private static final long DEFAULT_MAX_REQUESTS = 100;
+
+    // Blocking-mode rejections are written by one thread, with this many
+    // waiting at most. Beyond that the connection is just closed.
+    //
+    private static final int REJECT_BACKLOG = 32;
+    private static final int REJECT_TIMEOUT = 5000;
+
+    private final int workerCount;
+    private final int capacity;
+    private final byte[] rejection;
+    private final boolean keepAlive;
+    private final int requestTimeout;
+    private final int idleTimeout;
+    private final int blockingIdleTimeout;
+    private final int maxRequests;
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor rejecter;
+
+    private final AtomicInteger reserved = new AtomicInteger(0);
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong reused = new AtomicLong(0);
+    private final AtomicLong waited = new AtomicLong(0);
+    private final AtomicLong totalWait = new AtomicLong(0);
+    private final AtomicLong maxWait = new AtomicLong(0);
+    private final AtomicLong timedOut = new AtomicLong(0);
+    private volatile boolean saturated = false;
+
+    InboundAdmission() {
+        workerCount = (int) Math.max(1, ConnectionManager.getLongProperty(INBOUND_WORKERS, DEFAULT_WORKERS));
+        capacity = workerCount + (int) Math.max(0, ConnectionManager.getLongProperty(INBOUND_QUEUE, DEFAULT_QUEUE));
+        long retryAfter = Math.max(1, ConnectionManager.getLongProperty(INBOUND_RETRY_AFTER, DEFAULT_RETRY_AFTER));
+        StringBuilder sb = new StringBuilder("HTTP/1.1 503 Service Unavailable\r\nRetry-After: ");
+        sb.append(retryAfter);
+        sb.append("\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+        rejection = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        keepAlive = ConnectionManager.getBooleanProperty(INBOUND_KEEPALIVE, true);
+        requestTimeout = (int) Math.max(1, ConnectionManager.getLongProperty(INBOUND_REQUEST_TIMEOUT, DEFAULT_REQUEST_TIMEOUT));
+        idleTimeout = (int) Math.max(1, ConnectionManager.getLongProperty(INBOUND_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT));
+        blockingIdleTimeout = (int) Math.max(1, ConnectionManager.getLongProperty(INBOUND_BLOCKING_IDLE_TIMEOUT, DEFAULT_BLOCKING_IDLE_TIMEOUT));
+        maxRequests = (int) Math.max(1, ConnectionManager.getLongProperty(INBOUND_MAX_REQUESTS, DEFAULT_MAX_REQUESTS));
+        workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Spine inbound worker-" + count.incrementAndGet());
+                    }
+                });
+        rejecter = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(REJECT_BACKLOG),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "Spine inbound rejecter");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        rejecter.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Take a place in the queue for a request that will be passed to
+     * execute() once it has been read.
+     *
+     * @return false if the queue is full, in which case the request must be
+     * refused.
+     */
+    boolean reserve() {
+        while (true) {
+            int r = reserved.get();
+            if (r >= capacity) {
+                rejected.incrementAndGet();
+                if (!saturated) {
+                    saturated = true;
+                    SpineToolsLogger.getInstance().log(LOGSOURCE, "Inbound queue full with " + r + " requests, refusing with 503");
+                }
+                return false;
+            }
+            if (reserved.compareAndSet(r, r + 1)) {
+                admitted.incrementAndGet();
+                if (saturated) {
+                    saturated = false;
+                    SpineToolsLogger.getInstance().log(LOGSOURCE, "Inbound queue accepting again, " + rejected.get() + " refused in total");
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give back a place taken by reserve() that will not be used, because the
+     * request was never completed.
+     */
+    void cancel() {
+        reserved.decrementAndGet();
+    }
+
+    /**
+     * Queue a request whose place has been reserved.
+     *
+     * @param r Handler
+     * @throws RejectedExecutionException if shutting down. The reservation
+     * has been given back.
+     */
+    void execute(Runnable r) {
+        queued.incrementAndGet();
+        try {
+            workers.execute(new Admitted(r));
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            reserved.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Admit a connection accepted by the blocking listener, or refuse it with
+     * a 503 if the queue is full.
+     *
+     * @param s Accepted socket
+     * @param h Handler for the socket
+     */
+    void submit(Socket s, Runnable h) {
+        if (!reserve()) {
+            reject(s);
+            return;
+        }
+        try {
+            execute(h);
+        } catch (RejectedExecutionException e) {
+            close(s);
+        }
+    }
+
+    /**
+     * @return The complete 503 response.
+     */
+    byte[] getRejection() { return rejection; }
+
+    /**
+     * Count a request whose head has been read, and decide whether its
+     * connection is kept open after the response.
+     *
+     * @param h Codec holding the request head
+     * @param c Connection the request arrived on
+     * @return true if the response should say "Connection: keep-alive".
+     */
+    boolean requestReceived(HttpCodec h, InboundConnection c) {
+        if (c.getServedCount() > 0) {
+            reused.incrementAndGet();
+        }
+        if (!keepAlive || !h.isKeepAlive()) {
+            return false;
+        }
+        if (c.getServedCount() + 1 >= maxRequests) {
+            return false;
+        }
+        return !((c instanceof InboundConnection.SocketConnection) && (queued.get() > 0));
+    }
+
+    /**
+     * @return Time in milliseconds a kept-alive NioListener connection may be
+     * idle.
+     */
+    public int getIdleTimeout() { return idleTimeout; }
+
+    /**
+     * @return Time in milliseconds a kept-alive blocking connection may be
+     * idle.
+     */
+    public int getBlockingIdleTimeout() { return blockingIdleTimeout; }
+
+    /**
+     * @return Time in milliseconds any one read of a blocking connection's
+     * handshake or request may wait.
+     */
+    public int getRequestTimeout() { return requestTimeout; }
+
+    /**
+     * Count a blocking connection closed because its handshake or request
+     * did not arrive within the request timeout.
+     */
+    void requestTimedOut() {
+        timedOut.incrementAndGet();
+    }
+
+    /**
+     * @return Number of blocking connections closed because their handshake
+     * or request did not arrive within the request timeout.
+     */
+    public long getTimedOutCount() { return timedOut.get(); }
+
+    private void reject(final Socket s) {
+        try {
+            rejecter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        s.setSoTimeout(REJECT_TIMEOUT);
+                        HttpCodec codec = new HttpCodec(s.getInputStream());
+                        if (codec.readHead()) {
+                            OutputStream os = s.getOutputStream();
+                            os.write(rejection);
+                            os.flush();
+                        }
+                    } catch (Exception e) {
+                    } finally {
+                        close(s);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            close(s);
+        }
+    }
+
+    private static void close(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * Stop taking work. Requests already queued are still processed.
+     */
+    void shutdown() {
+        workers.shutdown();
+        rejecter.shutdown();
+    }
+
+    /**
+     * Wait for queued and running requests, and any 503 responses being
+     * written, to finish after shutdown().
+     *
+     * @param ms Longest time to wait in milliseconds
+     * @return true if everything finished in time.
+     * @throws InterruptedException
+     */
+    boolean awaitTermination(long ms)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ms;
+        if (!workers.awaitTermination(ms, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        return rejecter.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of worker threads.
+     */
+    public int getWorkerCount() { return workerCount; }
+
+    /**
+     * @return Most requests that may be being processed or waiting at once.
+     */
+    public int getCapacity() { return capacity; }
+
+    /**
+     * @return Number of requests waiting for a worker.
+     */
+    public int getQueueDepth() { return queued.get(); }
+
+    /**
+     * @return Number of workers processing a request.
+     */
+    public int getActiveCount() { return workers.getActiveCount(); }
+
+    /**
+     * @return Number of places taken, including by NioListener requests still
+     * being read.
+     */
+    public int getReservedCount() { return reserved.get(); }
+
+    /**
+     * @return Number of requests admitted.
+     */
+    public long getAdmittedCount() { return admitted.get(); }
+
+    /**
+     * @return Number of requests refused with a 503.
+     */
+    public long getRejectedCount() { return rejected.get(); }
+
+    /**
+     * @return Number of requests received on a connection that had already
+     * been used for an earlier one.
+     */
+    public long getReusedCount() { return reused.get(); }
+
+    /**
+     * @return Mean time, in milliseconds, requests have waited for a worker.
+     */
+    public double getMeanQueueWait() {
+        long n = waited.get();
+        return (n == 0) ? 0.0 : ((double) totalWait.get()) / n;
+    }
+
+    /**
+     * @return Longest time, in milliseconds, a request has waited for a
+     * worker.
+     */
+    public long getMaxQueueWait() { return maxWait.get(); }
+
+    private class Admitted
+            implements Runnable {
+
+        private final Runnable handler;
+        private final long queuedAt = System.currentTimeMillis();
+
+        Admitted(Runnable r) {
+            handler = r;
+        }
+
+        @Override
+        public void run() {
+            long w = System.currentTimeMillis() - queuedAt;
+            queued.decrementAndGet();
+            waited.incrementAndGet();
+            totalWait.addAndGet(w);
+            long m = maxWait.get();
+            while ((w > m) && !maxWait.compareAndSet(m, w)) {
+                m = maxWait.get();
+            }
+            try {
+                handler.run();
+            } finally {
+                reserved.decrementAndGet();
+            }
+        }
+    }
+}
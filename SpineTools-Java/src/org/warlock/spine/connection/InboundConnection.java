@@ -0,0 +1,181 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * The connection an inbound request arrived on, as seen by the
+ * SpineMessageHandler. This is either an accepted blocking socket, or a
+ * request already read in full by the NioListener, whose response is written
+ * back by a selector thread.
+ */
+interface InboundConnection {
+
+    /**
+     * @return Stream from which the request is read.
+     * @throws IOException
+     */
+    InputStream getInputStream()
+            throws IOException;
+
+    /**
+     * @return Stream to which the response is written. With the NioListener
+     * nothing is sent until the connection is closed.
+     * @throws IOException
+     */
+    OutputStream getOutputStream()
+            throws IOException;
+
+    /**
+     * Finish with the connection, sending anything written to it.
+     *
+     * @throws IOException
+     */
+    void close()
+            throws IOException;
+
+    /**
+     * @return Codec holding the parsed head of a request that has already
+     * been read, or null if the request is to be read from getInputStream().
+     */
+    HttpCodec getRequestHead();
+
+    /**
+     * @return Body of the request whose head came from getRequestHead(), with
+     * any chunked encoding removed. The connection keeps its own reference,
+     * so a caller that holds on to the body takes one with retain().
+     */
+    ReceivedBody getRequestBody();
+
+    /**
+     * Called when the head of a request read from getInputStream() has
+     * arrived. A SocketConnection waiting under the idle timeout goes back to
+     * the request timeout for the rest of the request.
+     *
+     * @throws IOException
+     */
+    void requestStarted()
+            throws IOException;
+
+    /**
+     * Finish with the request, sending anything written, but keep the
+     * connection open for another request. After this a SocketConnection is
+     * read from again, whereas an NioListener connection counts as closed
+     * here because the NioListener reads the next request itself.
+     *
+     * @throws IOException
+     */
+    void release()
+            throws IOException;
+
+    boolean isClosed();
+
+    /**
+     * @return Number of requests completed on the connection before the
+     * current one.
+     */
+    int getServedCount();
+
+    /**
+     * An accepted blocking socket.
+     */
+    static class SocketConnection
+            implements InboundConnection {
+
+        private final Socket socket;
+        private final int requestTimeout;
+        private final int idleTimeout;
+        private int served = 0;
+
+        /**
+         * @param s Accepted socket
+         * @param request Time in milliseconds any one read of the TLS
+         * handshake or a request may wait, or zero for no limit. This is set
+         * on the socket straight away, before a worker reads from it.
+         * @param idle Time in milliseconds to wait for the next request on a
+         * kept-alive connection, or zero for no limit.
+         */
+        SocketConnection(Socket s, int request, int idle) {
+            socket = s;
+            requestTimeout = request;
+            idleTimeout = idle;
+            try {
+                s.setSoTimeout(request);
+            } catch (IOException e) {
+                // Closed already, which the first read finds
+            }
+        }
+
+        @Override
+        public InputStream getInputStream()
+                throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream()
+                throws IOException {
+            return socket.getOutputStream();
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public HttpCodec getRequestHead() {
+            return null;
+        }
+
+        @Override
+        public ReceivedBody getRequestBody() {
+            return null;
+        }
+
+        @Override
+        public void requestStarted()
+                throws IOException {
+            if (served > 0) {
+                socket.setSoTimeout(requestTimeout);
+            }
+        }
+
+        @Override
+        public void release()
+                throws IOException {
+            served++;
+            socket.setSoTimeout(idleTimeout);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        @Override
+        public int getServedCount() {
+            return served;
+        }
+    }
+}
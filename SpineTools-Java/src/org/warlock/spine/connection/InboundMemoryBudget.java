@@ -0,0 +1,362 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Limit on the heap used by the bodies of requests being read and
+ * processed, so that many large messages arriving at once cannot exhaust
+ * it.<BR><BR>
+ *
+ * A request whose Content-Length is over the hard maximum is refused with a
+ * 413 from its head, without its body being read. A chunked request is
+ * refused once its body grows past the maximum. A body over the spill
+ * threshold is written to a temporary file as it is read and mapped back
+ * into memory, so it is held in the operating system's page cache rather
+ * than on the heap. The file is deleted straight away, and goes once the
+ * mapping is no longer used.<BR><BR>
+ *
+ * Smaller bodies are read onto the heap, and their size is reserved from
+ * the budget before they are read and given back once the request has been
+ * answered and any handler it was passed to has finished. A chunked body,
+ * whose size isn't known beforehand, is reserved for as it grows, and is
+ * spilled once it passes the threshold. A request that doesn't fit waits a
+ * short time for others to finish, and is then refused with a 503, so that
+ * the sender tries again later.<BR><BR>
+ *
+ * The NioListener has the whole request before a handler sees it, so for
+ * that the budget is reserved when the head arrives, or as the body arrives
+ * for a chunked request, without waiting, and bodies are not spilled.
+ */
+public class InboundMemoryBudget {
+
+    /**
+     * System property. Most bytes of request bodies held on the heap at once.
+     * Default 64MB.
+     */
+    public static final String INBOUND_BUDGET = "org.warlock.spine.connection.inbound.budget";
+
+    /**
+     * System property. Largest request body accepted. Default 20MB.
+     */
+    public static final String INBOUND_MAX_BODY = "org.warlock.spine.connection.inbound.maxbody";
+
+    /**
+     * System property. Request bodies with a Content-Length over this are
+     * spilled to a temporary file instead of being read onto the heap. 0 to
+     * never spill. Default 1MB.
+     */
+    public static final String INBOUND_SPILL_THRESHOLD = "org.warlock.spine.connection.inbound.spillthreshold";
+
+    /**
+     * System property. Directory for spilled request bodies. Default the
+     * system temporary directory.
+     */
+    public static final String INBOUND_SPILL_DIRECTORY = "org.warlock.spine.connection.inbound.spilldirectory";
+
+    /**
+     * System property. Time in milliseconds a request waits for room in the
+     * budget before it is refused. Default 2000.
+     */
+    public static final String INBOUND_BUDGET_WAIT = "org.warlock.spine.connection.inbound.budgetwait";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.InboundMemoryBudget.exhausted";
+
+    private static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+    private static final long DEFAULT_MAX_BODY = 20 * 1024 * 1024;
+    private static final long DEFAULT_SPILL_THRESHOLD = 1024 * 1024;
+    private static final long DEFAULT_BUDGET_WAIT = 2000;
+    private static final int SPILL_BUFFER = 65536;
+    private static final int CHUNKED_BUFFER = 8192;
+
+    private static final byte[] TOO_LARGE = "HTTP/1.1 413 Payload Too Large\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final long budget;
+    private final long maxBody;
+    private final long spillThreshold;
+    private final long budgetWait;
+    private final File spillDirectory;
+
+    private long used = 0;
+    private long peak = 0;
+    private boolean exhausted = false;
+
+    private final AtomicLong spilled = new AtomicLong(0);
+    private final AtomicLong spilledBytes = new AtomicLong(0);
+    private final AtomicLong waited = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong tooLarge = new AtomicLong(0);
+
+    InboundMemoryBudget() {
+        budget = Math.max(1, ConnectionManager.getLongProperty(INBOUND_BUDGET, DEFAULT_BUDGET));
+        maxBody = Math.max(1, ConnectionManager.getLongProperty(INBOUND_MAX_BODY, DEFAULT_MAX_BODY));
+        spillThreshold = Math.max(0, ConnectionManager.getLongProperty(INBOUND_SPILL_THRESHOLD, DEFAULT_SPILL_THRESHOLD));
+        budgetWait = Math.max(0, ConnectionManager.getLongProperty(INBOUND_BUDGET_WAIT, DEFAULT_BUDGET_WAIT));
+        String d = System.getProperty(INBOUND_SPILL_DIRECTORY);
+        spillDirectory = ((d == null) || (d.trim().length() == 0)) ? null : new File(d.trim());
+    }
+
+    /**
+     * Check a request's Content-Length against the hard maximum, counting it
+     * if it is over.
+     *
+     * @param length Content-Length, or -1 if there is none
+     * @return true if the request must be refused.
+     */
+    boolean isTooLarge(long length) {
+        if (length > maxBody) {
+            tooLarge.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return "413 Payload Too Large" response, closing the connection.
+     */
+    byte[] getTooLarge() { return TOO_LARGE; }
+
+    long getMaxBody() { return maxBody; }
+
+    /**
+     * Read the body of a request whose head has been read and passed
+     * isTooLarge().
+     *
+     * @param codec Codec that read the head
+     * @return The body, or null if there was no room in the budget and the
+     * request must be refused. The body may have been partly read in that
+     * case, so the connection must be closed.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    ReceivedBody read(HttpCodec codec)
+            throws IOException, InterruptedException {
+        long cl = codec.getContentLength();
+        if (codec.isChunked() || (cl == -1)) {
+            codec.setMaxBody(maxBody);
+            return readUnknownLength(codec.getBodyStream());
+        }
+        if ((spillThreshold > 0) && (cl > spillThreshold)) {
+            return spill(codec.getBodyStream(), null, 0, cl);
+        }
+        if (!reserve(cl, budgetWait)) {
+            return null;
+        }
+        try {
+            return new ReceivedBody(codec.readBody(), this, cl);
+        } catch (IOException e) {
+            release(cl);
+            throw e;
+        }
+    }
+
+    /**
+     * Read a body with no length to reserve or spill by beforehand. The heap
+     * buffer's size is reserved as it grows, and the body is spilled once it
+     * passes the spill threshold.
+     */
+    private ReceivedBody readUnknownLength(InputStream in)
+            throws IOException, InterruptedException {
+        long held = 0;
+        try {
+            int size = CHUNKED_BUFFER;
+            if (!reserve(size, budgetWait)) {
+                return null;
+            }
+            held = size;
+            byte[] b = new byte[size];
+            int n = 0;
+            while (true) {
+                if (n == b.length) {
+                    if ((spillThreshold > 0) && (n >= spillThreshold)) {
+                        return spill(in, b, n, Long.MAX_VALUE);
+                    }
+                    size = (int) Math.min(Math.min((long) b.length * 2, maxBody + 1), Integer.MAX_VALUE - 8);
+                    if (!reserve(size - held, budgetWait)) {
+                        return null;
+                    }
+                    held = size;
+                    b = Arrays.copyOf(b, size);
+                }
+                int r = in.read(b, n, b.length - n);
+                if (r == -1) {
+                    break;
+                }
+                n += r;
+            }
+            b = Arrays.copyOf(b, n);
+            release(held - n);
+            held = 0;
+            return new ReceivedBody(b, this, n);
+        } finally {
+            if (held > 0) {
+                release(held);
+            }
+        }
+    }
+
+    /**
+     * Write a body to a temporary file and map it.
+     *
+     * @param in Body stream
+     * @param head Part of the body already read, or null
+     * @param n Bytes of head used
+     * @param limit Length of the body, or Long.MAX_VALUE to read to the end of
+     * the stream
+     */
+    private ReceivedBody spill(InputStream in, byte[] head, int n, long limit)
+            throws IOException {
+        File f = File.createTempFile("spine", ".body", spillDirectory);
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            if (head != null) {
+                raf.write(head, 0, n);
+            }
+            byte[] b = new byte[SPILL_BUFFER];
+            long written = n;
+            while (written < limit) {
+                int r = in.read(b, 0, (int) Math.min(b.length, limit - written));
+                if (r == -1) {
+                    break;
+                }
+                raf.write(b, 0, r);
+                written += r;
+            }
+            MappedByteBuffer m = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, written);
+            spilled.incrementAndGet();
+            spilledBytes.addAndGet(written);
+            return new ReceivedBody(m);
+        } finally {
+            if (!f.delete()) {
+                // Can't delete a mapped file on some platforms
+                //
+                f.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Take bytes from the budget. A request bigger than the whole budget is
+     * let through when nothing else holds any of it.
+     *
+     * @param n Bytes wanted
+     * @param ms Longest time in milliseconds to wait for them
+     * @return false if they could not be had.
+     * @throws InterruptedException
+     */
+    boolean reserve(long n, long ms)
+            throws InterruptedException {
+        if (n <= 0) {
+            return true;
+        }
+        boolean logExhausted = false;
+        boolean logRoom = false;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + ms;
+            boolean counted = false;
+            while ((used > 0) && (used + n > budget)) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    rejected.incrementAndGet();
+                    if (!exhausted) {
+                        exhausted = true;
+                        logExhausted = true;
+                    }
+                    break;
+                }
+                if (!counted) {
+                    counted = true;
+                    waited.incrementAndGet();
+                }
+                wait(left);
+            }
+            if (!logExhausted) {
+                used += n;
+                peak = Math.max(peak, used);
+                if (exhausted) {
+                    exhausted = false;
+                    logRoom = true;
+                }
+            }
+        }
+        if (logExhausted) {
+            SpineToolsLogger.getInstance().log(LOGSOURCE, "Inbound memory budget of " + budget + " bytes used up, refusing requests with 503");
+            return false;
+        }
+        if (logRoom) {
+            SpineToolsLogger.getInstance().log(LOGSOURCE, "Inbound memory budget has room again, " + rejected.get() + " requests refused in total");
+        }
+        return true;
+    }
+
+    synchronized void release(long n) {
+        used -= n;
+        notifyAll();
+    }
+
+    /**
+     * @return Most bytes of request bodies held on the heap at once.
+     */
+    public long getBudget() { return budget; }
+
+    /**
+     * @return Bytes of the budget in use.
+     */
+    public synchronized long getUsed() { return used; }
+
+    /**
+     * @return Most bytes of the budget in use at once so far.
+     */
+    public synchronized long getPeakUsed() { return peak; }
+
+    /**
+     * @return Number of request bodies spilled to disk.
+     */
+    public long getSpilledCount() { return spilled.get(); }
+
+    /**
+     * @return Bytes of request bodies spilled to disk.
+     */
+    public long getSpilledBytes() { return spilledBytes.get(); }
+
+    /**
+     * @return Number of requests that had to wait for room in the budget.
+     */
+    public long getWaitedCount() { return waited.get(); }
+
+    /**
+     * @return Number of requests refused because there was no room in the
+     * budget.
+     */
+    public long getRejectedCount() { return rejected.get(); }
+
+    /**
+     * @return Number of requests refused for being over the largest body
+     * size.
+     */
+    public long getTooLargeCount() { return tooLarge.get(); }
+}
@@ -0,0 +1,202 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Per-sender limits on the rate of received ebXML messages, so that one peer
+ * MHS sending too fast cannot take all of the Listener's capacity from the
+ * others.<BR><BR>
+ *
+ * Each sender, identified by the PartyId in the ebXML From element, has a
+ * token bucket which fills at its rate, up to its burst size, and each message
+ * takes one token. A message from a sender with an empty bucket is refused
+ * with a 503 before it is parsed, acknowledged or recorded as received, so
+ * Spine's reliable retry sends it again later. The rate and burst can be set
+ * for every sender, and for a single sender by appending "." and its party
+ * id to the property name.<BR><BR>
+ *
+ * The number of senders tracked separately is capped. Messages from senders
+ * beyond that, and messages with no From PartyId, share one bucket under the
+ * party id "". Each sender's accepted and refused counts are kept, and a
+ * sender starting and stopping being refused is logged.
+ */
+public class InboundRateLimiter {
+
+    /**
+     * System property. Messages per second accepted from each sender. 0 for
+     * no limit. Can be set for a single sender by appending "." and the
+     * party id. Default 0.
+     */
+    public static final String RATELIMIT_RATE = "org.warlock.spine.connection.ratelimit.rate";
+
+    /**
+     * System property. Messages that may be accepted from a sender at once
+     * after it has been quiet. Can be set for a single sender by appending "."
+     * and the party id. Default twice the rate.
+     */
+    public static final String RATELIMIT_BURST = "org.warlock.spine.connection.ratelimit.burst";
+
+    /**
+     * System property. Most senders given a bucket of their own. Default
+     * 10,000.
+     */
+    public static final String RATELIMIT_MAX_PARTIES = "org.warlock.spine.connection.ratelimit.maxparties";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.InboundRateLimiter.limited";
+
+    private static final long DEFAULT_RATE = 0;
+    private static final long DEFAULT_MAX_PARTIES = 10000;
+
+    private final ConcurrentHashMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final long maxParties;
+
+    InboundRateLimiter() {
+        maxParties = Math.max(1, ConnectionManager.getLongProperty(RATELIMIT_MAX_PARTIES, DEFAULT_MAX_PARTIES));
+    }
+
+    /**
+     * Take a token for a message from a sender.
+     *
+     * @param party From PartyId, or null if it couldn't be found
+     * @return false if the sender is over its limit and the request must be
+     * refused.
+     */
+    boolean acquire(String party) {
+        String p = (party == null) ? "" : party;
+        Bucket b = buckets.get(p);
+        if (b == null) {
+            if (buckets.size() >= maxParties) {
+                p = "";
+            }
+            b = getBucket(p);
+        }
+        return b.acquire();
+    }
+
+    private Bucket getBucket(String party) {
+        Bucket b = buckets.get(party);
+        if (b == null) {
+            Bucket n = new Bucket(party);
+            b = buckets.putIfAbsent(party, n);
+            if (b == null) {
+                b = n;
+            }
+        }
+        return b;
+    }
+
+    /**
+     * @return Party ids of the senders seen so far.
+     */
+    public List<String> getParties() { return new ArrayList<>(buckets.keySet()); }
+
+    /**
+     * @param party Party id
+     * @return Messages per second accepted from the sender, or 0 if it is
+     * not limited.
+     */
+    public long getRate(String party) {
+        Bucket b = buckets.get(party);
+        return (b == null) ? 0 : b.rate;
+    }
+
+    /**
+     * @param party Party id
+     * @return Number of messages accepted from the sender.
+     */
+    public long getAcceptedCount(String party) {
+        Bucket b = buckets.get(party);
+        return (b == null) ? 0 : b.accepted.get();
+    }
+
+    /**
+     * @param party Party id
+     * @return Number of messages from the sender refused because it was over
+     * its limit.
+     */
+    public long getRejectedCount(String party) {
+        Bucket b = buckets.get(party);
+        return (b == null) ? 0 : b.rejected.get();
+    }
+
+    private static class Bucket {
+
+        private final String party;
+        private final long rate;
+        private final double burst;
+        private double tokens;
+        private long last;
+        private boolean limited = false;
+
+        private final AtomicLong accepted = new AtomicLong(0);
+        private final AtomicLong rejected = new AtomicLong(0);
+
+        private Bucket(String p) {
+            party = p;
+            long r = ConnectionManager.getLongProperty(RATELIMIT_RATE + "." + p,
+                    ConnectionManager.getLongProperty(RATELIMIT_RATE, DEFAULT_RATE));
+            long bs = ConnectionManager.getLongProperty(RATELIMIT_BURST + "." + p,
+                    ConnectionManager.getLongProperty(RATELIMIT_BURST, 2 * r));
+            rate = Math.max(0, r);
+            burst = Math.max(1, bs);
+            tokens = burst;
+            last = System.nanoTime();
+        }
+
+        private boolean acquire() {
+            if (rate == 0) {
+                accepted.incrementAndGet();
+                return true;
+            }
+            boolean ok = false;
+            boolean changed = false;
+            synchronized (this) {
+                long now = System.nanoTime();
+                tokens = Math.min(burst, tokens + (((now - last) / 1e9) * rate));
+                last = now;
+                if (tokens >= 1) {
+                    tokens -= 1;
+                    ok = true;
+                }
+                if (ok == limited) {
+                    limited = !ok;
+                    changed = true;
+                }
+            }
+            if (ok) {
+                accepted.incrementAndGet();
+            } else {
+                rejected.incrementAndGet();
+            }
+            if (changed) {
+                if (ok) {
+                    SpineToolsLogger.getInstance().log(LOGSOURCE, "Sender \"" + party + "\" back within its rate limit, " + rejected.get() + " messages refused in total");
+                } else {
+                    SpineToolsLogger.getInstance().log(LOGSOURCE, "Sender \"" + party + "\" over its rate limit of " + rate + " per second, refusing with 503");
+                }
+            }
+            return ok;
+        }
+    }
+}
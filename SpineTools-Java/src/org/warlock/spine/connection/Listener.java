@@ -21,9 +21,11 @@ import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketAddress;
-import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 //import javax.net.ServerSocketFactory;
 //import javax.net.ssl.SSLServerSocket;
 //import javax.net.ssl.SSLSocket;
@@ -45,18 +47,29 @@ public class Listener
     private static final String LOGSOURCE = "Spine connection listener";
 
     /**
-     * De-duplication list. Holds receipt times against message ids.
+     * De-duplication list. Holds expiry times against message ids.
      */
-    private HashMap<String, Calendar> receivedIds = null;
+    private final DeduplicationStore receivedIds = new DeduplicationStore();
 
     private SocketAddress listenAddress = null;
     //private SSLServerSocket server = null;
     private ServerSocket server = null;
+    private NioListener nioListener = null;
+    private InboundAdmission admission = null;
+    private HandlerDispatcher dispatcher = null;
+    private InboundRateLimiter rateLimiter = null;
+    private InboundMemoryBudget inboundBudget = null;
     private SpineSecurityContext tlsContext = null;
     private boolean listening = false;
+    private volatile boolean draining = false;
+
+    /**
+     * Kept-alive connections waiting for their next request, in the blocking
+     * listen mode, so that drain() can close them, or to free their workers
+     * for requests waiting for one.
+     */
+    private final Set<InboundConnection> idleConnections = Collections.newSetFromMap(new ConcurrentHashMap<InboundConnection, Boolean>());
 
-    private final Object requestLock = new Object();
-    private boolean cleaning = false;
     private HashMap<String, Long> persistDurations = null;
     private int listenPort = 4430;
 
@@ -121,40 +134,66 @@ public class Listener
     private void init()
             throws Exception {
         tlsContext = ConnectionManager.getInstance().getSecurityContext();
-        receivedIds = new HashMap<>();
     }
 
     public boolean isListening() {
         return listening;
     }
 
+    /**
+     * @return The non-blocking listener, if "nio" listen mode is in use and
+     * the listener has started, otherwise null.
+     */
+    public NioListener getNioListener() {
+        return nioListener;
+    }
+
+    /**
+     * @return The inbound work queue, once the listener has started,
+     * otherwise null.
+     */
+    public InboundAdmission getAdmission() {
+        return admission;
+    }
+
+    /**
+     * @return The dispatcher running handlers for received messages, once the
+     * listener has started, otherwise null.
+     */
+    public HandlerDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    /**
+     * @return The per-sender rate limits on received messages, once the
+     * listener has started, otherwise null.
+     */
+    public InboundRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * @return The limit on heap used by received request bodies, once the
+     * listener has started, otherwise null.
+     */
+    public InboundMemoryBudget getInboundBudget() {
+        return inboundBudget;
+    }
+
+    /**
+     * @return The de-duplication list of received message ids.
+     */
+    public DeduplicationStore getDeduplicationStore() {
+        return receivedIds;
+    }
+
     /**
      * Internal call from the ConnectionManager's processRetries() method, to
      * remove any message ids from the de-duplication list if they've been there
      * longer than their persistDuration.
      */
     void cleanDeduplicationList() {
-        if (cleaning) {
-            return;
-        }
-        ArrayList<String> expiredIds = new ArrayList<>();
-        Calendar now = Calendar.getInstance();
-        cleaning = true;
-        for (String s : receivedIds.keySet()) {
-            Calendar exp = receivedIds.get(s);
-            if (now.compareTo(exp) > 0) {
-                expiredIds.add(s);
-            }
-        }
-        for (String s : expiredIds) {
-            try {
-                synchronized (requestLock) {
-                    receivedIds.remove(s);
-                }
-            } catch (Exception e) {
-            }
-        }
-        cleaning = false;
+        receivedIds.expire();
     }
 
     /**
@@ -169,22 +208,143 @@ public class Listener
         if (persistDurations == null) {
             return false;
         }
-        String id = s.getMessageId();
-        synchronized (requestLock) {
-            if (receivedIds.containsKey(id)) {
-                return true;
+        long l = 0;
+        try {
+            l = persistDurations.get(s.getHeader().getSvcIA());
+        } catch (Exception e) {
+            l = 3600;
+        }
+        return receivedIds.add(s.getMessageId(), System.currentTimeMillis() + (l * 1000));
+    }
+
+    /**
+     * Check for a duplicate without recording the message, so that one which
+     * is then refused can be accepted when the sender tries again.
+     *
+     * @param s The received message
+     * @return true if this message has already been received.
+     */
+    boolean seenId(EbXmlMessage s) {
+        if (persistDurations == null) {
+            return false;
+        }
+        return receivedIds.contains(s.getMessageId());
+    }
+
+    /**
+     * @return true if drain() has been called. Responses are then sent with
+     * the connection closed after them.
+     */
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * Called by a SpineMessageHandler before it waits for the next request on
+     * a kept-alive connection.
+     *
+     * @return false if the listener is draining, or requests are waiting for
+     * a worker, and the connection should be closed instead.
+     */
+    boolean idle(InboundConnection c) {
+        if (draining || ((admission != null) && (admission.getQueueDepth() > 0))) {
+            return false;
+        }
+        idleConnections.add(c);
+        if (draining) {
+            // drain() may have missed it
+            //
+            idleConnections.remove(c);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Close kept-alive connections waiting for their next request, one for
+     * each request waiting for a worker, so that their workers are freed.
+     */
+    private void reclaimIdle() {
+        int waiting = admission.getQueueDepth();
+        Iterator<InboundConnection> it = idleConnections.iterator();
+        while ((waiting > 0) && it.hasNext()) {
+            InboundConnection c = it.next();
+            it.remove();
+            try {
+                c.close();
+            } catch (IOException e) {
             }
-            long l = 0;
+            waiting--;
+        }
+    }
+
+    /**
+     * Called by a SpineMessageHandler when the next request has arrived on, or
+     * it has stopped waiting on, a kept-alive connection.
+     */
+    void busy(InboundConnection c) {
+        idleConnections.remove(c);
+    }
+
+    /**
+     * Stop listening gracefully. New connections are refused at once, then
+     * requests already accepted are read, processed and answered (with the
+     * connection closed after the response), kept-alive connections waiting
+     * for another request are closed, and messages already passed to handlers
+     * are handled, up to the given time. Whatever is still going on then is
+     * stopped as for stopListening(), and the de-duplication state is flushed.
+     *
+     * @param ms Longest time to wait in milliseconds
+     * @return true if all in-flight work finished in time.
+     * @throws InterruptedException
+     */
+    public boolean drain(long ms)
+            throws InterruptedException {
+        if (!listening) {
+            return true;
+        }
+        long deadline = System.currentTimeMillis() + ms;
+        draining = true;
+        listening = false;
+        if (nioListener != null) {
+            nioListener.stopAccepting();
+        }
+        if (server != null) {
             try {
-                l = persistDurations.get(s.getHeader().getSvcIA());
-            } catch (Exception e) {
-                l = 3600;
+                server.close();
+            } catch (IOException e) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Listener.drain", e);
             }
-            Calendar c = Calendar.getInstance();
-            c.add(Calendar.SECOND, (int) l);
-            receivedIds.put(id, c);
-            return false;
         }
+        for (InboundConnection c : idleConnections) {
+            try {
+                c.close();
+            } catch (IOException e) {
+            }
+        }
+        idleConnections.clear();
+
+        // Requests still being read by the NioListener are handed to the
+        // workers once complete, so wait for those before closing the
+        // inbound queue.
+        //
+        boolean done = true;
+        if (nioListener != null) {
+            done = nioListener.awaitClosed(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        if (admission != null) {
+            admission.shutdown();
+            done &= admission.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+            done &= dispatcher.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        if (!done) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Listener.drain", "Inbound work not finished after " + ms + "ms, stopping anyway");
+        }
+        closeDown();
+        return done;
     }
 
     /**
@@ -195,6 +355,20 @@ public class Listener
             return;
         }
         listening = false;
+        closeDown();
+    }
+
+    private void closeDown() {
+        if (nioListener != null) {
+            nioListener.shutdown();
+        }
+        if (admission != null) {
+            admission.shutdown();
+        }
+        if (dispatcher != null) {
+            dispatcher.shutdown();
+        }
+        receivedIds.flush();
         if (server != null) {
             try {
                 server.close();
@@ -237,6 +411,14 @@ public class Listener
         if (listening)
             return;
     this.setName("Listener");
+        admission = new InboundAdmission();
+        dispatcher = new HandlerDispatcher();
+        rateLimiter = new InboundRateLimiter();
+        inboundBudget = new InboundMemoryBudget();
+        if (NioListener.isSelected()) {
+            runNio();
+            return;
+        }
     try {
             //server = (SSLServerSocket)tlsContext.getServerSocketFactory().createServerSocket();
             server = tlsContext.getServerSocketFactory().createServerSocket();
@@ -252,7 +434,9 @@ public class Listener
                 try {
                     //SSLSocket s = (SSLSocket)server.accept();
                     Socket s = server.accept();
-                    (new SpineMessageHandler(this, s)).start();
+                    tlsContext.watchHandshake(s);
+                    admission.submit(s, new SpineMessageHandler(this, s));
+                    reclaimIdle();
                 } catch (java.net.SocketException eSocket) {
                     if (!listening) {
                         System.out.println("Shutting down on command");
@@ -268,6 +452,26 @@ public class Listener
 
     } // run
 
+    /**
+     * Accept loop for the "nio" listen mode, where requests are read by the
+     * NioListener's selector threads and handled on the inbound worker pool.
+     */
+    private void runNio() {
+        try {
+            nioListener = new NioListener(this, tlsContext, admission);
+            nioListener.bind(listenAddress);
+        } catch (IOException e) {
+            System.err.println("Binding...");
+            e.printStackTrace(System.err);
+            if (nioListener != null) {
+                nioListener.shutdown();
+            }
+            return;
+        }
+        listening = true;
+        nioListener.acceptLoop();
+    }
+
     private void substitute(StringBuilder sb, String t, String o)
             throws Exception {
         int tagPoint = -1;
@@ -0,0 +1,303 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * On-disk index of received message ids, in a memory-mapped file, so that
+ * de-duplication carries on across a restart without anything being read in
+ * at startup.<BR><BR>
+ *
+ * The file is a small header followed by a fixed number of buckets of 16
+ * slots. A slot is two longs: a 64-bit hash of the message id and the id's
+ * expiry time in seconds. An id hashes to one bucket, and is looked for only
+ * in that bucket's 16 slots, so a lookup touches one 256-byte run of the
+ * file. A slot with a zero or past expiry time is free, so expired ids need
+ * no clearing out: their slots are simply re-used. If every slot in a bucket
+ * is live, the one nearest expiry is overwritten and counted.<BR><BR>
+ *
+ * Writes to a bucket are made under one of a set of striped locks. Reads take
+ * no lock: each stripe has a sequence number which writers make odd while
+ * they write, and a reader that sees it odd or changed after reading the
+ * bucket reads again. A slot is written by zeroing its expiry time, then
+ * writing the hash, then writing the new expiry time, so a process that dies
+ * part way through a write leaves at worst a free slot, never an id with the
+ * wrong expiry. The header's magic number is written last when the file is
+ * made, and a file without it is made again. Changes are in the operating
+ * system's page cache as soon as they are written and so survive the process
+ * ending. sync() forces them to the disk as well, and is called from the
+ * ConnectionManager's retry timer.<BR><BR>
+ *
+ * A file is mapped once per process, by open(), and the same index is
+ * given to every DeduplicationStore that uses it. A Listener stopped and
+ * started again therefore neither leaves another mapping behind nor writes
+ * the file under a second set of locks.<BR><BR>
+ *
+ * Only the hash of an id is kept, so there is a very small chance (about
+ * one in 2^64 per pair of ids held) that a new message is taken for a
+ * duplicate.
+ */
+class MappedDeduplicationIndex {
+
+    private static final long MAGIC = 0x5350444544555031L; // "SPDEDUP1"
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+    private static final int SLOTS_PER_BUCKET = 16;
+    private static final int BUCKET = SLOT * SLOTS_PER_BUCKET;
+    private static final int MAX_BUCKETS = 1 << 22;
+    private static final int MAX_STRIPES = 1024;
+
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private final int buckets;
+    private final int stripes;
+    private final Object[] locks;
+    private final AtomicLongArray sequence;
+    private volatile boolean dirty = false;
+
+    private final AtomicLong overwritten = new AtomicLong(0);
+
+    private static final HashMap<String, MappedDeduplicationIndex> opened = new HashMap<>();
+
+    /**
+     * Get the index in a file, opening it if this process has not already.
+     *
+     * @param f Index file
+     * @param entries Number of ids to size a new file for, if it has to be
+     * made
+     * @return The index
+     * @throws IOException
+     */
+    static MappedDeduplicationIndex open(File f, long entries)
+            throws IOException {
+        String k = f.getCanonicalPath();
+        synchronized (opened) {
+            MappedDeduplicationIndex m = opened.get(k);
+            if (m == null) {
+                m = new MappedDeduplicationIndex(f, entries);
+                opened.put(k, m);
+            }
+            return m;
+        }
+    }
+
+    /**
+     * Open the index file, making it if it does not exist or is not a valid
+     * index. An existing index keeps its own size.
+     *
+     * @param f Index file
+     * @param entries Number of ids to size a new file for. The file has
+     * twice as many slots as this, to a limit of 64M slots (1GB).
+     * @throws IOException
+     */
+    private MappedDeduplicationIndex(File f, long entries)
+            throws IOException {
+        file = f;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            int b = readHeader(raf);
+            boolean created = false;
+            if (b == 0) {
+                long wanted = Math.max(1, (entries * 2) / SLOTS_PER_BUCKET);
+                b = 1;
+                while ((b < wanted) && (b < MAX_BUCKETS)) {
+                    b <<= 1;
+                }
+                raf.setLength(0);
+                raf.setLength(HEADER + ((long) b * BUCKET));
+                created = true;
+            }
+            buckets = b;
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER + ((long) b * BUCKET));
+            if (created) {
+                buffer.putInt(8, VERSION);
+                buffer.putInt(12, buckets);
+                buffer.force();
+                buffer.putLong(0, MAGIC);
+                buffer.force();
+            }
+        }
+        stripes = Math.min(buckets, MAX_STRIPES);
+        locks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new Object();
+        }
+        sequence = new AtomicLongArray(stripes);
+    }
+
+    /**
+     * @return Number of buckets in a valid existing file, or 0 if the file is
+     * new, was not finished being made, or is not an index.
+     */
+    private static int readHeader(RandomAccessFile raf)
+            throws IOException {
+        if (raf.length() < HEADER) {
+            return 0;
+        }
+        raf.seek(0);
+        long m = raf.readLong();
+        int v = raf.readInt();
+        int b = raf.readInt();
+        if ((m != MAGIC) || (v != VERSION) || (b <= 0) || (b > MAX_BUCKETS) || (Integer.bitCount(b) != 1)) {
+            return 0;
+        }
+        if (raf.length() != HEADER + ((long) b * BUCKET)) {
+            return 0;
+        }
+        return b;
+    }
+
+    /**
+     * Record an id, unless it is already held and has not expired.
+     *
+     * @param id Message id
+     * @param expires Expiry time of the id, in seconds since the epoch
+     * @param now Current time in seconds since the epoch
+     * @return Expiry time of the id already held, or 0 if it was not held and
+     * has been recorded.
+     */
+    long add(String id, long expires, long now) {
+        long h = hash(id);
+        int bucket = bucket(h);
+        int s = bucket & (stripes - 1);
+        int base = HEADER + (bucket * BUCKET);
+        synchronized (locks[s]) {
+            int free = -1;
+            int victim = -1;
+            long earliest = Long.MAX_VALUE;
+            for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+                int p = base + (i * SLOT);
+                long x = buffer.getLong(p + 8);
+                if (x <= now) {
+                    // Prefer this id's own expired slot, so that it is never
+                    // held twice in a bucket
+                    //
+                    if ((free == -1) || ((x != 0) && (buffer.getLong(p) == h))) {
+                        free = p;
+                    }
+                    continue;
+                }
+                if (buffer.getLong(p) == h) {
+                    return x;
+                }
+                if (x < earliest) {
+                    earliest = x;
+                    victim = p;
+                }
+            }
+            if (free == -1) {
+                free = victim;
+                overwritten.incrementAndGet();
+            }
+            sequence.incrementAndGet(s);
+            buffer.putLong(free + 8, 0);
+            buffer.putLong(free, h);
+            buffer.putLong(free + 8, expires);
+            sequence.incrementAndGet(s);
+            dirty = true;
+        }
+        return 0;
+    }
+
+    /**
+     * @param id Message id
+     * @param now Current time in seconds since the epoch
+     * @return true if the id is held and has not expired.
+     */
+    boolean contains(String id, long now) {
+        long h = hash(id);
+        int bucket = bucket(h);
+        int s = bucket & (stripes - 1);
+        int base = HEADER + (bucket * BUCKET);
+        while (true) {
+            long v = sequence.get(s);
+            if ((v & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            boolean found = false;
+            for (int i = 0; i < SLOTS_PER_BUCKET; i++) {
+                int p = base + (i * SLOT);
+                if ((buffer.getLong(p) == h) && (buffer.getLong(p + 8) > now)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (sequence.get(s) == v) {
+                return found;
+            }
+        }
+    }
+
+    /**
+     * Force any changes out to the disk.
+     */
+    void sync() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        buffer.force();
+    }
+
+    File getFile() { return file; }
+
+    /**
+     * @return Number of id slots in the file.
+     */
+    long getCapacity() { return (long) buckets * SLOTS_PER_BUCKET; }
+
+    /**
+     * @return Size of the file in bytes.
+     */
+    long getSize() { return HEADER + ((long) buckets * BUCKET); }
+
+    /**
+     * @return Number of live ids overwritten because their bucket was full.
+     */
+    long getOverwrittenCount() { return overwritten.get(); }
+
+    /**
+     * 64-bit FNV-1a over the id's characters, then mixed so that the low and
+     * high bits are both usable. Never 0, so that a zeroed slot matches
+     * nothing.
+     */
+    private static long hash(String id) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        return (h == 0) ? 1 : h;
+    }
+
+    private int bucket(long h) {
+        return (int) (h >>> 32) & (buckets - 1);
+    }
+}
@@ -0,0 +1,1071 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Non-blocking alternative to the Listener's thread-per-connection accept
+ * loop. The Listener thread accepts connections, and a small number of
+ * selector threads do the TLS handshake (using SSLEngine) and read each
+ * request, however slowly it arrives. Only once a request has been read in
+ * full is it handed to the InboundAdmission worker pool, which runs the
+ * SpineMessageHandler on it. The response the handler writes is sent back by
+ * the selector thread, so a slow client doesn't hold a worker either. A place
+ * in the inbound queue is reserved when the request head has been read, and
+ * if there is none the 503 is sent without reading the body. The slow parts
+ * of a TLS handshake, which SSLEngine hands out as delegated tasks, are run
+ * on a few separate threads so that one handshake doesn't hold up every other
+ * connection on its selector.<BR><BR>
+ *
+ * A connection that has not delivered a complete request, or taken its
+ * response, within the request timeout is closed. When the handler keeps the
+ * connection alive, it goes back to reading once the response has been
+ * written, and is closed if the next request doesn't start within the
+ * InboundAdmission idle timeout. An idle connection holds no worker.<BR><BR>
+ *
+ * Selected by setting <code>org.warlock.spine.connection.listenmode</code> to
+ * "nio". The default, "blocking", starts a SpineMessageHandler thread for
+ * each accepted socket.
+ */
+public class NioListener {
+
+    /**
+     * System property. Inbound transport, either "blocking" (the default) or
+     * "nio".
+     */
+    public static final String LISTEN_MODE = "org.warlock.spine.connection.listenmode";
+
+    /**
+     * System property. Number of selector threads for inbound connections.
+     * Default 2.
+     */
+    public static final String NIO_LISTEN_SELECTORS = "org.warlock.spine.connection.nio.listenselectors";
+
+    /**
+     * System property. Time in milliseconds allowed from accepting a
+     * connection to having read the whole request, including the TLS
+     * handshake, and again for writing the response. Default 60,000 (1
+     * minute).
+     */
+    public static final String NIO_REQUEST_TIMEOUT = "org.warlock.spine.connection.nio.requesttimeout";
+
+    /**
+     * System property. Number of threads running the delegated tasks of TLS
+     * handshakes. Default 2.
+     */
+    public static final String NIO_TASK_THREADS = "org.warlock.spine.connection.nio.taskthreads";
+
+    private static final String LOGSOURCE = "org.warlock.spine.connection.NioListener.connection";
+
+    private static final int DEFAULT_SELECTORS = 2;
+    private static final long DEFAULT_REQUEST_TIMEOUT = 60000;
+    private static final long DEFAULT_TASK_THREADS = 2;
+    private static final long SELECT_PERIOD = 1000;
+    private static final int INITIAL_BUFFER = 16384;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    // Connection states
+    //
+    private static final int READING = 0;
+    private static final int PROCESSING = 1;
+    private static final int WRITING = 2;
+    private static final int CLOSED = 3;
+    private static final int TASK = 4;
+
+    private final Listener listener;
+    private final SpineSecurityContext securityContext;
+    private final long requestTimeout;
+    private final SelectorThread[] selectors;
+    private final ThreadPoolExecutor tasks;
+    private final InboundAdmission admission;
+    private final InboundMemoryBudget budget;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final AtomicInteger open = new AtomicInteger(0);
+    private final AtomicLong accepted = new AtomicLong(0);
+    private final AtomicLong dispatched = new AtomicLong(0);
+    private final AtomicLong timedOut = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private ServerSocketChannel server = null;
+    private volatile boolean running = true;
+    private volatile boolean draining = false;
+
+    /**
+     * @return true if the non-blocking listener has been asked for.
+     */
+    static boolean isSelected() {
+        String m = System.getProperty(LISTEN_MODE);
+        return ((m != null) && m.trim().equalsIgnoreCase("nio"));
+    }
+
+    NioListener(Listener l, SpineSecurityContext c, InboundAdmission a)
+            throws IOException {
+        listener = l;
+        securityContext = c;
+        admission = a;
+        budget = l.getInboundBudget();
+        requestTimeout = ConnectionManager.getLongProperty(NIO_REQUEST_TIMEOUT, DEFAULT_REQUEST_TIMEOUT);
+        int t = (int) Math.max(1, ConnectionManager.getLongProperty(NIO_TASK_THREADS, DEFAULT_TASK_THREADS));
+        tasks = new ThreadPoolExecutor(t, t, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread th = new Thread(r, "Spine NIO TLS task-" + count.incrementAndGet());
+                        th.setDaemon(true);
+                        return th;
+                    }
+                });
+        int n = (int) Math.max(1, ConnectionManager.getLongProperty(NIO_LISTEN_SELECTORS, DEFAULT_SELECTORS));
+        selectors = new SelectorThread[n];
+        for (int i = 0; i < n; i++) {
+            selectors[i] = new SelectorThread(i + 1);
+            selectors[i].start();
+        }
+    }
+
+    /**
+     * Bind the listening socket.
+     *
+     * @param a Address to listen on
+     * @throws IOException
+     */
+    void bind(SocketAddress a)
+            throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(a);
+    }
+
+    /**
+     * Accept connections, handing each to a selector thread, until shut down.
+     * This runs on the Listener thread.
+     */
+    void acceptLoop() {
+        while (running) {
+            SocketChannel ch = null;
+            try {
+                ch = server.accept();
+            } catch (ClosedChannelException e) {
+                // Includes AsynchronousCloseException from shutdown()
+                return;
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Listener.listenLoop", e);
+                continue;
+            }
+            try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Connection c = new Connection(ch, securityContext.createServerSSLEngine());
+                if (c.engine != null) {
+                    c.engine.beginHandshake();
+                }
+                accepted.incrementAndGet();
+                open.incrementAndGet();
+                SelectorThread s = selectors[Math.abs(next.getAndIncrement() % selectors.length)];
+                c.selector = s;
+                s.add(c);
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                try {
+                    ch.close();
+                } catch (IOException ex) {
+                }
+                SpineToolsLogger.getInstance().log(LOGSOURCE, e);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting, but carry on with connections already open. Requests
+     * being read are read and dispatched, responses are sent with the
+     * connection closed after them, and idle kept-alive connections are
+     * closed.
+     */
+    void stopAccepting() {
+        draining = true;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+            }
+        }
+        for (SelectorThread s : selectors) {
+            s.selector.wakeup();
+        }
+    }
+
+    /**
+     * Wait for open connections to be finished with after stopAccepting().
+     *
+     * @param ms Longest time to wait in milliseconds
+     * @return true if none are left open.
+     * @throws InterruptedException
+     */
+    boolean awaitClosed(long ms)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ms;
+        while (open.get() > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                return false;
+            }
+            Thread.sleep(Math.min(left, 50));
+        }
+        return true;
+    }
+
+    /**
+     * Stop accepting, and close the selector threads and any connections they
+     * hold.
+     */
+    void shutdown() {
+        running = false;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+            }
+        }
+        tasks.shutdownNow();
+        for (SelectorThread s : selectors) {
+            s.selector.wakeup();
+        }
+    }
+
+    /**
+     * @return Number of connections currently open.
+     */
+    public int getOpenConnectionCount() { return open.get(); }
+
+    /**
+     * @return Number of connections accepted.
+     */
+    public long getAcceptedCount() { return accepted.get(); }
+
+    /**
+     * @return Number of complete requests given to the inbound workers.
+     */
+    public long getDispatchedCount() { return dispatched.get(); }
+
+    /**
+     * @return Number of connections closed for taking longer than the request
+     * timeout.
+     */
+    public long getTimedOutCount() { return timedOut.get(); }
+
+    /**
+     * @return Number of connections dropped because of a network or TLS error.
+     */
+    public long getFailedCount() { return failed.get(); }
+
+    /**
+     * Hand a complete request to the workers. Called on the selector thread.
+     */
+    private void dispatch(final Connection c) {
+        c.state = PROCESSING;
+        c.key.interestOps(0);
+        c.admitted = false;
+        final long reserved = c.reserved;
+        c.reserved = 0;
+        try {
+            admission.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Exchange x = new Exchange(c, reserved);
+                    try {
+                        (new SpineMessageHandler(listener, x)).run();
+                    } finally {
+                        if (!x.isClosed()) {
+                            x.close();
+                        }
+                        // The budget is given back once any handler given
+                        // the message has finished with it as well
+                        //
+                        x.body.release();
+                    }
+                }
+            });
+            dispatched.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            if (reserved > 0) {
+                budget.release(reserved);
+            }
+            close(c);
+        }
+    }
+
+    /**
+     * Refuse a request whose head has been read. Called on the selector
+     * thread.
+     *
+     * @param r Response to send before closing the connection
+     */
+    private void reject(Connection c, byte[] r) {
+        c.state = WRITING;
+        c.started = System.currentTimeMillis();
+        c.response = ByteBuffer.wrap(r);
+        c.key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void close(Connection c) {
+        if (c.state == CLOSED) {
+            return;
+        }
+        c.state = CLOSED;
+        open.decrementAndGet();
+        if (c.admitted) {
+            c.admitted = false;
+            admission.cancel();
+        }
+        if (c.reserved > 0) {
+            budget.release(c.reserved);
+            c.reserved = 0;
+        }
+        if (c.key != null) {
+            c.key.cancel();
+        }
+        try {
+            c.channel.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private void fail(Connection c, Exception e) {
+        if (c.state == CLOSED) {
+            return;
+        }
+        failed.incrementAndGet();
+        close(c);
+        SpineToolsLogger.getInstance().log(LOGSOURCE, "Dropped inbound connection: " + e.toString());
+    }
+
+    /**
+     * Move the connection along as far as it will go without blocking, and
+     * set the interest ops for whatever it is waiting for.
+     */
+    private void drive(Connection c)
+            throws IOException {
+        if (c.engine == null) {
+            if (c.state == READING) {
+                readClear(c);
+            } else if (c.state == WRITING) {
+                writeClear(c);
+            }
+        } else {
+            if (c.state == READING) {
+                readTls(c);
+            } else if (c.state == WRITING) {
+                writeTls(c);
+            }
+        }
+    }
+
+    private void readClear(Connection c)
+            throws IOException {
+        while (true) {
+            int r = c.channel.read(c.appIn);
+            if (r == 0) {
+                c.key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (r == -1) {
+                close(c);
+                return;
+            }
+            take(c);
+            if (c.state != READING) {
+                return;
+            }
+        }
+    }
+
+    private void writeClear(Connection c)
+            throws IOException {
+        c.channel.write(c.response);
+        if (c.response.hasRemaining()) {
+            c.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        if (c.keepAlive) {
+            resume(c);
+            return;
+        }
+        close(c);
+    }
+
+    private void readTls(Connection c)
+            throws IOException {
+        while (c.state == READING) {
+            if (!flush(c)) {
+                c.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            SSLEngineResult.HandshakeStatus hs = c.engine.getHandshakeStatus();
+            switch (hs) {
+                case NEED_TASK:
+                    runTasks(c);
+                    return;
+                case NEED_WRAP:
+                    wrap(c, EMPTY);
+                    continue;
+                case NEED_UNWRAP:
+                    if (!unwrap(c) && !readNet(c)) {
+                        return;
+                    }
+                    continue;
+                default:
+                    break;
+            }
+            if (unwrap(c)) {
+                continue;
+            }
+            if (!readNet(c)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run the handshake's delegated tasks on the task threads, ignoring the
+     * connection until they are done. It then goes back to its selector
+     * thread, which carries on reading. Called on the selector thread.
+     */
+    private void runTasks(final Connection c) {
+        c.state = TASK;
+        c.key.interestOps(0);
+        try {
+            tasks.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Runnable task = null;
+                        while ((task = c.engine.getDelegatedTask()) != null) {
+                            task.run();
+                        }
+                    } finally {
+                        c.selector.tasksDone(c);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            close(c);
+        }
+    }
+
+    private void writeTls(Connection c)
+            throws IOException {
+        while (true) {
+            if (!flush(c)) {
+                c.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            if (c.response.hasRemaining()) {
+                wrap(c, c.response);
+                continue;
+            }
+            if (c.keepAlive) {
+                resume(c);
+                return;
+            }
+            if (!c.engine.isOutboundDone()) {
+                // Send close_notify
+                //
+                c.engine.closeOutbound();
+                SSLEngineResult r = c.engine.wrap(EMPTY, c.netOut);
+                if (r.bytesProduced() > 0) {
+                    continue;
+                }
+            }
+            close(c);
+            return;
+        }
+    }
+
+    /**
+     * The response on a kept-alive connection has been written. Start reading
+     * the next request, beginning with anything the client sent after the
+     * last one.
+     */
+    private void resume(Connection c)
+            throws IOException {
+        byte[] rest = c.request.getRemainder();
+        c.keepAlive = false;
+        c.response = null;
+        c.request = new RequestReader();
+        c.state = READING;
+        c.idle = true;
+        c.started = System.currentTimeMillis();
+        if (rest.length > 0) {
+            feed(c, ByteBuffer.wrap(rest));
+            if (c.state != READING) {
+                return;
+            }
+        }
+        drive(c);
+    }
+
+    /**
+     * Pass decrypted (or clear-text) request data to the request reader.
+     */
+    private void take(Connection c)
+            throws IOException {
+        c.appIn.flip();
+        try {
+            feed(c, c.appIn);
+        } finally {
+            c.appIn.clear();
+        }
+    }
+
+    /**
+     * Add request data, reserve a place in the inbound queue once the head is
+     * there, and dispatch the request if it is complete.
+     */
+    private void feed(Connection c, ByteBuffer b)
+            throws IOException {
+        if (c.idle) {
+            c.idle = false;
+            c.started = System.currentTimeMillis();
+        }
+        boolean done = c.request.feed(b);
+        if (!c.admitted && c.request.isHeadRead()) {
+            if (!admission.reserve()) {
+                reject(c, admission.getRejection());
+                return;
+            }
+            c.admitted = true;
+
+            // The whole request is held here before a handler sees it, so
+            // its size is checked and taken from the memory budget now,
+            // without waiting on the selector thread.
+            //
+            if (budget != null) {
+                long cl = c.request.codec.getContentLength();
+                if (budget.isTooLarge(cl)) {
+                    reject(c, budget.getTooLarge());
+                    return;
+                }
+                try {
+                    if (!budget.reserve(cl, 0)) {
+                        reject(c, admission.getRejection());
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted reserving inbound memory budget");
+                }
+                c.reserved = Math.max(0, cl);
+            }
+        }
+        if ((budget != null) && c.admitted && c.request.codec.isChunked()) {
+            // A chunked request has no length to reserve beforehand, so what
+            // has been read is reserved as it arrives
+            //
+            if (!done && budget.isTooLarge(c.request.length)) {
+                reject(c, budget.getTooLarge());
+                return;
+            }
+            if (c.request.length > c.reserved) {
+                try {
+                    if (!budget.reserve(c.request.length - c.reserved, 0)) {
+                        reject(c, admission.getRejection());
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted reserving inbound memory budget");
+                }
+                c.reserved = c.request.length;
+            }
+        }
+        if (done) {
+            dispatch(c);
+        }
+    }
+
+    /**
+     * Write any pending network data.
+     *
+     * @return true if it has all been written.
+     */
+    private boolean flush(Connection c)
+            throws IOException {
+        if (c.netOut.position() == 0) {
+            return true;
+        }
+        c.netOut.flip();
+        c.channel.write(c.netOut);
+        boolean done = !c.netOut.hasRemaining();
+        c.netOut.compact();
+        return done;
+    }
+
+    private void wrap(Connection c, ByteBuffer src)
+            throws IOException {
+        while (true) {
+            SSLEngineResult r = c.engine.wrap(src, c.netOut);
+            handshakeFinished(c, r);
+            switch (r.getStatus()) {
+                case OK:
+                    return;
+                case BUFFER_OVERFLOW:
+                    if (c.netOut.position() > 0) {
+                        if (!flush(c)) {
+                            return;
+                        }
+                    } else {
+                        c.netOut = enlarge(c.netOut, c.engine.getSession().getPacketBufferSize());
+                    }
+                    break;
+                case CLOSED:
+                    throw new SSLException("TLS connection closed while sending");
+                default:
+                    throw new SSLException("Unexpected TLS wrap status " + r.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Unwrap whatever network data is buffered, passing any request data on.
+     *
+     * @return true if anything was consumed or produced, false if more network
+     * data is needed.
+     */
+    private boolean unwrap(Connection c)
+            throws IOException {
+        if (c.netIn.position() == 0) {
+            return false;
+        }
+        while (true) {
+            c.netIn.flip();
+            SSLEngineResult r = null;
+            try {
+                r = c.engine.unwrap(c.netIn, c.appIn);
+            } finally {
+                c.netIn.compact();
+            }
+            handshakeFinished(c, r);
+            switch (r.getStatus()) {
+                case OK:
+                    if (c.appIn.position() > 0) {
+                        take(c);
+                    }
+                    return ((r.bytesConsumed() > 0) || (r.bytesProduced() > 0));
+                case BUFFER_UNDERFLOW:
+                    if (c.netIn.remaining() == 0) {
+                        c.netIn = enlarge(c.netIn, c.engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case BUFFER_OVERFLOW:
+                    if (c.appIn.position() > 0) {
+                        take(c);
+                        if (c.state != READING) {
+                            return true;
+                        }
+                    } else {
+                        c.appIn = enlarge(c.appIn, c.engine.getSession().getApplicationBufferSize());
+                    }
+                    break;
+                case CLOSED:
+                    // Client gave up before sending the whole request
+                    //
+                    close(c);
+                    return false;
+                default:
+                    throw new SSLException("Unexpected TLS unwrap status " + r.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Read network data.
+     *
+     * @return true if something was read, false if the caller should return
+     * and wait for the selector.
+     */
+    private boolean readNet(Connection c)
+            throws IOException {
+        if (c.state == CLOSED) {
+            return false;
+        }
+        int r = c.channel.read(c.netIn);
+        if (r > 0) {
+            return true;
+        }
+        if (r == 0) {
+            c.key.interestOps(SelectionKey.OP_READ);
+            return false;
+        }
+        close(c);
+        return false;
+    }
+
+    private void handshakeFinished(Connection c, SSLEngineResult r) {
+        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            securityContext.recordHandshake(c.engine.getSession(), c.started);
+        }
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer b, int size) {
+        ByteBuffer n = ByteBuffer.allocate(Math.max(size, b.capacity() * 2));
+        b.flip();
+        n.put(b);
+        return n;
+    }
+
+    /**
+     * State of a single inbound connection. Only touched by its selector
+     * thread once it has been added.
+     */
+    private static class Connection {
+
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private RequestReader request = new RequestReader();
+        private SelectorThread selector = null;
+        private SelectionKey key = null;
+        private ByteBuffer netOut;
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private ByteBuffer response = null;
+        private int state = READING;
+        private boolean admitted = false;
+        private long reserved = 0;
+        private volatile boolean keepAlive = false;
+        private volatile int served = 0;
+        private boolean idle = false;
+        private long started = System.currentTimeMillis();
+
+        Connection(SocketChannel ch, SSLEngine e) {
+            channel = ch;
+            engine = e;
+            if (e == null) {
+                appIn = ByteBuffer.allocate(INITIAL_BUFFER);
+            } else {
+                netOut = ByteBuffer.allocate(e.getSession().getPacketBufferSize());
+                netIn = ByteBuffer.allocate(e.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(e.getSession().getApplicationBufferSize());
+            }
+        }
+    }
+
+    /**
+     * Accumulates a request, and uses an HttpCodec to work out from its
+     * headers when it is complete.
+     */
+    private static class RequestReader {
+
+        private final HttpCodec codec = new HttpCodec();
+        private byte[] raw = new byte[INITIAL_BUFFER];
+        private int length = 0;
+        private boolean headRead = false;
+        private int messageLength = -1;
+
+        /**
+         * @return true when the whole request has been read.
+         */
+        boolean feed(ByteBuffer b)
+                throws IOException {
+            if (messageLength != -1) {
+                // Not read again until the response has been written. Anything
+                // already read after the request is kept as the remainder.
+                //
+                return true;
+            }
+            if (length + b.remaining() > raw.length) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, length + b.remaining()));
+            }
+            int n = b.remaining();
+            b.get(raw, length, n);
+            length += n;
+            if (!headRead) {
+                headRead = codec.parseHead(raw, length);
+                if (!headRead) {
+                    return false;
+                }
+            }
+            messageLength = codec.messageLength(raw, length, false);
+            return messageLength != -1;
+        }
+
+        boolean isHeadRead() {
+            return headRead;
+        }
+
+        InputStream getInputStream() {
+            return new ByteArrayInputStream(raw, 0, messageLength);
+        }
+
+        byte[] getBody() {
+            return codec.getBody(raw, messageLength);
+        }
+
+        /**
+         * @return Bytes read after the end of the request, which belong to the
+         * next one.
+         */
+        byte[] getRemainder() {
+            if ((messageLength == -1) || (messageLength >= length)) {
+                return new byte[0];
+            }
+            return Arrays.copyOfRange(raw, messageLength, length);
+        }
+    }
+
+    /**
+     * The InboundConnection given to the SpineMessageHandler. The request has
+     * already been read, and the response is collected and passed to the
+     * selector thread to send when the handler closes or releases the
+     * connection.
+     */
+    private class Exchange
+            implements InboundConnection {
+
+        private final Connection connection;
+        private final RequestReader request;
+        private final int served;
+        private final ReceivedBody body;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private volatile boolean closed = false;
+
+        /**
+         * @param c Connection
+         * @param reserved Bytes of the memory budget held for the request
+         */
+        Exchange(Connection c, long reserved) {
+            connection = c;
+            request = c.request;
+            served = c.served;
+            body = new ReceivedBody(request.getBody(), budget, reserved);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return request.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public HttpCodec getRequestHead() {
+            return request.codec;
+        }
+
+        @Override
+        public ReceivedBody getRequestBody() {
+            return body;
+        }
+
+        @Override
+        public void requestStarted() {
+            // The request has been read already
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connection.selector.respond(connection, out.toByteArray(), false);
+        }
+
+        @Override
+        public void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connection.selector.respond(connection, out.toByteArray(), !draining);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public int getServedCount() {
+            return served;
+        }
+    }
+
+    private class SelectorThread
+            extends Thread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Connection> added = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Connection> responding = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<Connection> tasked = new ConcurrentLinkedQueue<>();
+        private final HashSet<Connection> active = new HashSet<>();
+
+        SelectorThread(int n)
+                throws IOException {
+            super("Spine NIO listener-" + n);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(Connection c) {
+            added.add(c);
+            selector.wakeup();
+        }
+
+        /**
+         * Called on a worker thread when the handler has finished.
+         */
+        void respond(Connection c, byte[] r, boolean keepAlive) {
+            c.response = ByteBuffer.wrap(r);
+            c.keepAlive = keepAlive;
+            if (keepAlive) {
+                c.served++;
+            }
+            responding.add(c);
+            selector.wakeup();
+        }
+
+        /**
+         * Called on a task thread when a handshake's delegated tasks are done.
+         */
+        void tasksDone(Connection c) {
+            tasked.add(c);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_PERIOD);
+                    Connection c = null;
+                    while ((c = added.poll()) != null) {
+                        try {
+                            c.key = c.channel.register(selector, 0, c);
+                            active.add(c);
+                            drive(c);
+                        } catch (Exception e) {
+                            fail(c, e);
+                        }
+                    }
+                    while ((c = responding.poll()) != null) {
+                        if (c.state != PROCESSING) {
+                            continue;
+                        }
+                        c.state = WRITING;
+                        c.started = System.currentTimeMillis();
+                        try {
+                            drive(c);
+                        } catch (Exception e) {
+                            fail(c, e);
+                        }
+                    }
+                    while ((c = tasked.poll()) != null) {
+                        if (c.state != TASK) {
+                            continue;
+                        }
+                        c.state = READING;
+                        try {
+                            drive(c);
+                        } catch (Exception e) {
+                            fail(c, e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        c = (Connection) k.attachment();
+                        if ((c.state == CLOSED) || (c.state == PROCESSING) || (c.state == TASK)) {
+                            continue;
+                        }
+                        try {
+                            drive(c);
+                        } catch (Exception e) {
+                            fail(c, e);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    Iterator<Connection> ai = active.iterator();
+                    while (ai.hasNext()) {
+                        c = ai.next();
+                        if (c.state == CLOSED) {
+                            ai.remove();
+                        } else if (c.idle) {
+                            if (draining || (now - c.started > admission.getIdleTimeout())) {
+                                ai.remove();
+                                close(c);
+                            }
+                        } else if ((c.state != PROCESSING) && (now - c.started > requestTimeout)) {
+                            ai.remove();
+                            timedOut.incrementAndGet();
+                            close(c);
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException | IOException e) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.NioListener.selector", e);
+            }
+            for (Connection c : active) {
+                close(c);
+            }
+            Connection c = null;
+            while ((c = added.poll()) != null) {
+                close(c);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,675 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import org.warlock.spine.logging.SpineToolsLogger;
+
+/**
+ * Non-blocking alternative to the blocking socket exchange in the Transmitter.
+ * A small number of selector threads drive all outbound connections using
+ * SocketChannel and SSLEngine, so that a slow Spine endpoint doesn't hold a
+ * transmitter thread for each message in flight to it.<BR><BR>
+ *
+ * The Transmitter still does the work of deciding whether and where to send,
+ * and serialises the message to a buffer on a transmit executor thread. It
+ * then submits the buffer here, and its run() method returns. The response is
+ * read incrementally by the selector thread, using an HttpCodec, and handed
+ * back to the Transmitter on a completion thread, so that synchronous response
+ * handlers and ebXML ack processing never run on a selector thread.<BR><BR>
+ *
+ * Each exchange uses its own connection, closed after the response has been
+ * read. Repeat connections to an endpoint are made cheaper by TLS session
+ * resumption rather than by keeping connections open.<BR><BR>
+ *
+ * Selected by setting <code>org.warlock.spine.connection.transmitmode</code> to
+ * "nio". The default, "blocking", uses the pooled blocking sockets.
+ */
+public class NioTransmitEngine {
+
+    /**
+     * System property. Outbound transport, either "blocking" (the default) or
+     * "nio".
+     */
+    public static final String TRANSMIT_MODE = "org.warlock.spine.connection.transmitmode";
+
+    /**
+     * System property. Number of selector threads. Default 2.
+     */
+    public static final String NIO_SELECTORS = "org.warlock.spine.connection.nio.selectors";
+
+    /**
+     * System property. Number of threads used to process responses. Default 4.
+     */
+    public static final String NIO_COMPLETION_THREADS = "org.warlock.spine.connection.nio.completionthreads";
+
+    /**
+     * System property. Time in milliseconds allowed for a complete exchange,
+     * from connect to the end of the response. Default 120,000 (2 minutes).
+     * The connect, handshake and read timeouts in TransmitTimeouts also apply.
+     */
+    public static final String NIO_TIMEOUT = "org.warlock.spine.connection.nio.timeout";
+
+    private static final int DEFAULT_SELECTORS = 2;
+    private static final int DEFAULT_COMPLETION_THREADS = 4;
+    private static final long DEFAULT_TIMEOUT = 120000;
+    private static final long SELECT_PERIOD = 1000;
+    private static final int INITIAL_BUFFER = 16384;
+
+    private final SpineSecurityContext securityContext;
+    private final TransmitTimeouts timeouts;
+    private final long timeout;
+    private final SelectorThread[] selectors;
+    private final ExecutorService completions;
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile boolean running = true;
+
+    /**
+     * @return true if the non-blocking engine has been asked for.
+     */
+    static boolean isSelected() {
+        String m = System.getProperty(TRANSMIT_MODE);
+        return ((m != null) && m.trim().equalsIgnoreCase("nio"));
+    }
+
+    NioTransmitEngine(SpineSecurityContext c, TransmitTimeouts to)
+            throws IOException {
+        securityContext = c;
+        timeouts = to;
+        timeout = ConnectionManager.getLongProperty(NIO_TIMEOUT, DEFAULT_TIMEOUT);
+        int n = (int) ConnectionManager.getLongProperty(NIO_SELECTORS, DEFAULT_SELECTORS);
+        int t = (int) ConnectionManager.getLongProperty(NIO_COMPLETION_THREADS, DEFAULT_COMPLETION_THREADS);
+        completions = new ThreadPoolExecutor(t, t, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Spine NIO completion-" + count.incrementAndGet());
+                    }
+                });
+        selectors = new SelectorThread[n];
+        for (int i = 0; i < n; i++) {
+            selectors[i] = new SelectorThread(i + 1);
+            selectors[i].start();
+        }
+    }
+
+    /**
+     * Start sending a serialised message. This returns once the connection
+     * has been started, and the Transmitter is called back when the exchange
+     * completes or fails.
+     *
+     * @param t Transmitter to call back
+     * @param host Host name
+     * @param port Port
+     * @param request Complete HTTP request
+     * @throws IOException if the engine has been shut down or the connection
+     * can't be started.
+     */
+    void submit(Transmitter t, String host, int port, byte[] request)
+            throws IOException {
+        if (!running) {
+            throw new IOException("Non-blocking transmit engine is shut down");
+        }
+        InetSocketAddress a = new InetSocketAddress(host, port);
+        SocketChannel ch = SocketChannel.open();
+        try {
+            ch.configureBlocking(false);
+            ch.socket().setTcpNoDelay(true);
+            Exchange x = new Exchange(t, ch, securityContext.createSSLEngine(host, port), request);
+            if (ch.connect(a)) {
+                x.connected();
+            }
+            if (x.engine != null) {
+                x.engine.beginHandshake();
+            }
+            inFlight.incrementAndGet();
+            SelectorThread s = selectors[Math.abs(next.getAndIncrement() % selectors.length)];
+            s.add(x);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of exchanges started and not yet completed.
+     */
+    public int getInFlightCount() { return inFlight.get(); }
+
+    /**
+     * Stop the selector threads. Any exchanges still in flight are failed.
+     */
+    void shutdown() {
+        running = false;
+        for (SelectorThread s : selectors) {
+            s.selector.wakeup();
+        }
+        completions.shutdown();
+    }
+
+    private void finish(final Exchange x, final Exception failure) {
+        if (x.finished) {
+            return;
+        }
+        x.finished = true;
+        inFlight.decrementAndGet();
+        if (x.key != null) {
+            x.key.cancel();
+        }
+        try {
+            x.channel.close();
+        } catch (IOException e) {
+        }
+        Runnable r = new Runnable() {
+            @Override
+            public void run() {
+                if (failure != null) {
+                    x.transmitter.nioFailed(failure);
+                } else {
+                    x.transmitter.nioResponse(x.response.getHeader(), x.response.getStatus(), x.response.getBody(), x.response.getRaw());
+                }
+            }
+        };
+        try {
+            completions.execute(r);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            r.run();
+        }
+    }
+
+    /**
+     * Move the exchange along as far as it will go without blocking, and set
+     * the interest ops for whatever it is waiting for.
+     */
+    private void drive(Exchange x)
+            throws IOException {
+        if (!x.connected) {
+            if (!x.channel.finishConnect()) {
+                x.key.interestOps(SelectionKey.OP_CONNECT);
+                return;
+            }
+            x.connected();
+        }
+        if (x.engine == null) {
+            driveClear(x);
+        } else {
+            driveTls(x);
+        }
+    }
+
+    private void driveClear(Exchange x)
+            throws IOException {
+        if (x.request.hasRemaining()) {
+            x.channel.write(x.request);
+            if (x.request.hasRemaining()) {
+                x.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        while (true) {
+            int r = x.channel.read(x.appIn);
+            if (r == 0) {
+                x.key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            if (r == -1) {
+                x.response.endOfStream();
+                finish(x, null);
+                return;
+            }
+            x.lastRead = System.currentTimeMillis();
+            x.appIn.flip();
+            boolean done = x.response.feed(x.appIn);
+            x.appIn.clear();
+            if (done) {
+                finish(x, null);
+                return;
+            }
+        }
+    }
+
+    private void driveTls(Exchange x)
+            throws IOException {
+        while (true) {
+            if (!flush(x)) {
+                x.key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            SSLEngineResult.HandshakeStatus hs = x.engine.getHandshakeStatus();
+            switch (hs) {
+                case NEED_TASK:
+                    Runnable task = null;
+                    while ((task = x.engine.getDelegatedTask()) != null) {
+                        task.run();
+                    }
+                    continue;
+                case NEED_WRAP:
+                    wrap(x, EMPTY);
+                    continue;
+                case NEED_UNWRAP:
+                    if (!unwrap(x) && !readNet(x)) {
+                        return;
+                    }
+                    continue;
+                default:
+                    break;
+            }
+            if (x.request.hasRemaining()) {
+                wrap(x, x.request);
+                continue;
+            }
+            if (unwrap(x)) {
+                if (x.appIn.position() > 0) {
+                    x.appIn.flip();
+                    x.response.feed(x.appIn);
+                    x.appIn.clear();
+                }
+                if (x.response.isComplete()) {
+                    finish(x, null);
+                    return;
+                }
+                continue;
+            }
+            if (!readNet(x)) {
+                return;
+            }
+        }
+    }
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Write any pending network data.
+     *
+     * @return true if it has all been written.
+     */
+    private boolean flush(Exchange x)
+            throws IOException {
+        if (x.netOut.position() == 0) {
+            return true;
+        }
+        x.netOut.flip();
+        x.channel.write(x.netOut);
+        boolean done = !x.netOut.hasRemaining();
+        x.netOut.compact();
+        return done;
+    }
+
+    private void wrap(Exchange x, ByteBuffer src)
+            throws IOException {
+        while (true) {
+            SSLEngineResult r = x.engine.wrap(src, x.netOut);
+            handshakeFinished(x, r);
+            switch (r.getStatus()) {
+                case OK:
+                    return;
+                case BUFFER_OVERFLOW:
+                    if (x.netOut.position() > 0) {
+                        // Make room by writing what we have. If that can't all go,
+                        // the caller finds out on its next flush().
+                        //
+                        if (!flush(x)) {
+                            return;
+                        }
+                    } else {
+                        x.netOut = enlarge(x.netOut, x.engine.getSession().getPacketBufferSize());
+                    }
+                    break;
+                case CLOSED:
+                    throw new SSLException("TLS connection closed while sending");
+                default:
+                    throw new SSLException("Unexpected TLS wrap status " + r.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Unwrap whatever network data is buffered into the application buffer.
+     *
+     * @return true if anything was consumed or produced, false if more network
+     * data is needed.
+     */
+    private boolean unwrap(Exchange x)
+            throws IOException {
+        if (x.netIn.position() == 0) {
+            return false;
+        }
+        while (true) {
+            x.netIn.flip();
+            SSLEngineResult r = null;
+            try {
+                r = x.engine.unwrap(x.netIn, x.appIn);
+            } finally {
+                x.netIn.compact();
+            }
+            handshakeFinished(x, r);
+            switch (r.getStatus()) {
+                case OK:
+                    return ((r.bytesConsumed() > 0) || (r.bytesProduced() > 0));
+                case BUFFER_UNDERFLOW:
+                    if (x.netIn.remaining() == 0) {
+                        x.netIn = enlarge(x.netIn, x.engine.getSession().getPacketBufferSize());
+                    }
+                    return false;
+                case BUFFER_OVERFLOW:
+                    if (x.appIn.position() > 0) {
+                        x.appIn.flip();
+                        x.response.feed(x.appIn);
+                        x.appIn.clear();
+                    } else {
+                        x.appIn = enlarge(x.appIn, x.engine.getSession().getApplicationBufferSize());
+                    }
+                    break;
+                case CLOSED:
+                    x.response.endOfStream();
+                    finish(x, null);
+                    return false;
+                default:
+                    throw new SSLException("Unexpected TLS unwrap status " + r.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Read network data.
+     *
+     * @return true if something was read, false if the caller should return
+     * and wait for the selector.
+     */
+    private boolean readNet(Exchange x)
+            throws IOException {
+        if (x.finished) {
+            return false;
+        }
+        int r = x.channel.read(x.netIn);
+        if (r > 0) {
+            x.lastRead = System.currentTimeMillis();
+            return true;
+        }
+        if (r == 0) {
+            x.key.interestOps(SelectionKey.OP_READ);
+            return false;
+        }
+        if (x.request.hasRemaining() || (x.engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING)) {
+            throw new IOException("Connection closed by remote end before the request was sent");
+        }
+        x.response.endOfStream();
+        finish(x, null);
+        return false;
+    }
+
+    private void handshakeFinished(Exchange x, SSLEngineResult r) {
+        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            securityContext.recordHandshake(x.engine.getSession(), x.started);
+            x.handshaken = true;
+            x.lastRead = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return A timeout exception for the phase the exchange is stuck in, or
+     * null if it has not timed out.
+     */
+    private IOException checkTimeouts(Exchange x, long now) {
+        if (!x.connected) {
+            if (now - x.started > timeouts.getConnectTimeout()) {
+                return new TransmitTimeouts.PhaseTimeoutException(TransmitTimeouts.CONNECT, "Connect timed out after " + timeouts.getConnectTimeout() + "ms");
+            }
+        } else if (!x.handshaken) {
+            if (now - x.connectedAt > timeouts.getHandshakeTimeout()) {
+                return new TransmitTimeouts.PhaseTimeoutException(TransmitTimeouts.HANDSHAKE, "TLS handshake timed out after " + timeouts.getHandshakeTimeout() + "ms");
+            }
+        } else if (now - x.lastRead > timeouts.getReadTimeout()) {
+            return new TransmitTimeouts.PhaseTimeoutException(TransmitTimeouts.READ, "Read timed out after " + timeouts.getReadTimeout() + "ms");
+        }
+        if (now - x.started > timeout) {
+            return new TransmitTimeouts.PhaseTimeoutException(TransmitTimeouts.READ, "Timed out after " + timeout + "ms");
+        }
+        return null;
+    }
+
+    private static ByteBuffer enlarge(ByteBuffer b, int size) {
+        ByteBuffer n = ByteBuffer.allocate(Math.max(size, b.capacity() * 2));
+        b.flip();
+        n.put(b);
+        return n;
+    }
+
+    /**
+     * State of a single outbound exchange. Only touched by its selector thread
+     * once it has been added.
+     */
+    private static class Exchange {
+
+        void connected() {
+            connected = true;
+            connectedAt = System.currentTimeMillis();
+            lastRead = connectedAt;
+        }
+
+        private final Transmitter transmitter;
+        private final SocketChannel channel;
+        private final SSLEngine engine;
+        private final ByteBuffer request;
+        private final ResponseReader response = new ResponseReader();
+        private final long started = System.currentTimeMillis();
+        private ByteBuffer netOut;
+        private ByteBuffer netIn;
+        private ByteBuffer appIn;
+        private SelectionKey key = null;
+        private boolean connected = false;
+        private boolean handshaken = false;
+        private boolean finished = false;
+        private long connectedAt = 0;
+        private long lastRead = 0;
+
+        Exchange(Transmitter t, SocketChannel ch, SSLEngine e, byte[] r) {
+            transmitter = t;
+            channel = ch;
+            engine = e;
+            request = ByteBuffer.wrap(r);
+            if (e == null) {
+                handshaken = true;
+                appIn = ByteBuffer.allocate(INITIAL_BUFFER);
+            } else {
+                netOut = ByteBuffer.allocate(e.getSession().getPacketBufferSize());
+                netIn = ByteBuffer.allocate(e.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(e.getSession().getApplicationBufferSize());
+            }
+        }
+    }
+
+    /**
+     * Accumulates the response, and uses an HttpCodec to work out from its
+     * headers when it is complete.
+     */
+    private static class ResponseReader {
+
+        private final HttpCodec codec = new HttpCodec();
+        private byte[] raw = new byte[INITIAL_BUFFER];
+        private int length = 0;
+        private boolean headRead = false;
+        private int messageLength = -1;
+
+        /**
+         * @return true when the whole response has been read.
+         */
+        boolean feed(ByteBuffer b)
+                throws IOException {
+            if (length + b.remaining() > raw.length) {
+                raw = Arrays.copyOf(raw, Math.max(raw.length * 2, length + b.remaining()));
+            }
+            int n = b.remaining();
+            b.get(raw, length, n);
+            length += n;
+            check(false);
+            return isComplete();
+        }
+
+        /**
+         * The connection has closed. With no content length, the body is
+         * whatever has been read.
+         */
+        void endOfStream()
+                throws IOException {
+            check(true);
+        }
+
+        private void check(boolean eof)
+                throws IOException {
+            if (messageLength != -1) {
+                return;
+            }
+            if (!headRead) {
+                headRead = codec.parseHead(raw, length);
+                if (!headRead) {
+                    return;
+                }
+            }
+            messageLength = codec.messageLength(raw, length, eof);
+        }
+
+        boolean isComplete() {
+            return messageLength != -1;
+        }
+
+        String getHeader() {
+            return isComplete() ? codec.getHeaderBlock() : null;
+        }
+
+        int getStatus() {
+            return isComplete() ? codec.getStatus() : -1;
+        }
+
+        byte[] getBody() {
+            if (!isComplete()) {
+                return new byte[0];
+            }
+            return codec.getBody(raw, messageLength);
+        }
+
+        byte[] getRaw() {
+            return Arrays.copyOf(raw, length);
+        }
+    }
+
+    private class SelectorThread
+            extends Thread {
+
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Exchange> added = new ConcurrentLinkedQueue<>();
+        private final HashSet<Exchange> active = new HashSet<>();
+
+        SelectorThread(int n)
+                throws IOException {
+            super("Spine NIO transmitter-" + n);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void add(Exchange x) {
+            added.add(x);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select(SELECT_PERIOD);
+                    Exchange x = null;
+                    while ((x = added.poll()) != null) {
+                        try {
+                            x.key = x.channel.register(selector, 0, x);
+                            active.add(x);
+                            drive(x);
+                        } catch (Exception e) {
+                            finish(x, e);
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        x = (Exchange) k.attachment();
+                        if (x.finished) {
+                            continue;
+                        }
+                        try {
+                            drive(x);
+                        } catch (Exception e) {
+                            finish(x, e);
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    Iterator<Exchange> ai = active.iterator();
+                    while (ai.hasNext()) {
+                        x = ai.next();
+                        if (x.finished) {
+                            ai.remove();
+                        } else {
+                            IOException t = checkTimeouts(x, now);
+                            if (t != null) {
+                                ai.remove();
+                                finish(x, t);
+                            }
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException | IOException e) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.NioTransmitEngine.selector", e);
+            }
+            for (Exchange x : active) {
+                finish(x, new IOException("Non-blocking transmit engine shut down"));
+            }
+            Exchange x = null;
+            while ((x = added.poll()) != null) {
+                finish(x, new IOException("Non-blocking transmit engine shut down"));
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * A TLS connection to a Spine endpoint, as issued by the ConnectionPool. This
+ * records when the connection was made and last used so that the pool can apply
+ * its idle and lifetime limits, and whether the connection has been used before
+ * so that the Transmitter can tell a stale keep-alive connection from a real
+ * transmission failure.
+ */
+class PooledConnection {
+
+    private final Socket socket;
+    private final String endpoint;
+    private final long created;
+    private long lastUsed;
+    private int uses = 0;
+    private boolean reserved = false;
+    private HttpCodec codec = null;
+
+    PooledConnection(Socket s, String e) {
+        socket = s;
+        endpoint = e;
+        created = System.currentTimeMillis();
+        lastUsed = created;
+    }
+
+    Socket getSocket() { return socket; }
+    String getEndpoint() { return endpoint; }
+    InputStream getInputStream() throws IOException { return socket.getInputStream(); }
+    OutputStream getOutputStream() throws IOException { return socket.getOutputStream(); }
+
+    /**
+     * @return Response parser for this connection, kept for the life of the
+     * connection so that its buffer is re-used.
+     */
+    HttpCodec getCodec()
+            throws IOException {
+        if (codec == null) {
+            codec = new HttpCodec(socket.getInputStream());
+        }
+        return codec;
+    }
+
+    /**
+     * @return true if this connection carried at least one request/response
+     * exchange before the current borrower got it.
+     */
+    boolean isReused() { return uses > 1; }
+
+    /**
+     * Called by the pool when a connection is handed out.
+     *
+     * @param r true if the connection is one of the endpoint's reserved
+     * priority connections for this use.
+     */
+    void borrowed(boolean r) {
+        uses++;
+        reserved = r;
+    }
+
+    boolean isReserved() { return reserved; }
+
+    /**
+     * Called by the pool when a connection is returned for re-use.
+     */
+    void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Checks the connection against the pool's limits.
+     *
+     * @param now Current time in milliseconds
+     * @param maxIdle Maximum idle period in milliseconds
+     * @param maxLifetime Maximum lifetime in milliseconds, or zero for no limit
+     * @return true if the connection should be discarded.
+     */
+    boolean isExpired(long now, long maxIdle, long maxLifetime) {
+        if (now - lastUsed > maxIdle) {
+            return true;
+        }
+        return ((maxLifetime > 0) && (now - created > maxLifetime));
+    }
+
+    /**
+     * Validation on borrow. The remote end may have closed an idle keep-alive
+     * connection, which we only find out about by reading from it. Do a very
+     * short read: a timeout means the connection is open and quiet, which is
+     * what we want. End of stream, or any unsolicited data, means it can't be
+     * used.
+     *
+     * @return true if the connection looks usable.
+     */
+    boolean validate() {
+        if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+            return false;
+        }
+        if ((codec != null) && codec.hasBuffered()) {
+            return false;
+        }
+        int timeout = 0;
+        try {
+            timeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            try {
+                socket.getInputStream().read();
+                return false;
+            } catch (SocketTimeoutException expected) {
+                return true;
+            } finally {
+                socket.setSoTimeout(timeout);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Body of a received request, either read onto the heap or spilled to a
+ * temporary file and mapped into memory. A heap body may hold part of the
+ * InboundMemoryBudget, which is given back when the last reference to the
+ * body is released. A body starts with one reference, its reader's, and
+ * anything else that keeps it, such as the EbXmlMessage passed to a handler
+ * group, takes another with retain().
+ */
+class ReceivedBody {
+
+    private final byte[] array;
+    private final ByteBuffer buffer;
+    private final InboundMemoryBudget budget;
+    private long reserved;
+    private int references = 1;
+
+    /**
+     * @param b Body read onto the heap, outside any budget
+     */
+    ReceivedBody(byte[] b) {
+        this(b, null, 0);
+    }
+
+    /**
+     * @param b Body read onto the heap
+     * @param m Budget the body's size was reserved from
+     * @param r Bytes reserved
+     */
+    ReceivedBody(byte[] b, InboundMemoryBudget m, long r) {
+        array = b;
+        buffer = ByteBuffer.wrap(b);
+        budget = m;
+        reserved = r;
+    }
+
+    /**
+     * @param b Body in a mapped file
+     */
+    ReceivedBody(ByteBuffer b) {
+        array = null;
+        buffer = b;
+        budget = null;
+        reserved = 0;
+    }
+
+    /**
+     * @return The body, from position zero to its length. Each call returns
+     * a new buffer over the same bytes.
+     */
+    ByteBuffer getBuffer() { return buffer.duplicate(); }
+
+    int getLength() { return buffer.limit(); }
+
+    /**
+     * @return true if the body is in a file rather than on the heap.
+     */
+    boolean isSpilled() { return array == null; }
+
+    /**
+     * @param n Number of bytes wanted
+     * @return An array starting with at least the first n bytes of the body,
+     * or all of it if it is shorter. A heap body is returned whole, without
+     * being copied.
+     */
+    byte[] getHead(int n) {
+        if (array != null) {
+            return array;
+        }
+        byte[] b = new byte[Math.min(n, buffer.limit())];
+        getBuffer().get(b);
+        return b;
+    }
+
+    /**
+     * @param cs Charset of the body
+     * @return The whole body decoded.
+     */
+    String getText(Charset cs) {
+        if (array != null) {
+            return new String(array, cs);
+        }
+        return cs.decode(getBuffer()).toString();
+    }
+
+    /**
+     * Take another reference to the body.
+     */
+    synchronized void retain() {
+        references++;
+    }
+
+    /**
+     * Give up a reference to the body. When the last is given up, any part of
+     * the memory budget the body holds is given back. The body can still be
+     * used afterwards.
+     */
+    synchronized void release() {
+        if (references == 0) {
+            return;
+        }
+        if ((--references == 0) && (budget != null) && (reserved > 0)) {
+            budget.release(reserved);
+            reserved = 0;
+        }
+    }
+}
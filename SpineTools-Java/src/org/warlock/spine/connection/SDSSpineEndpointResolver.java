@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import javax.naming.NamingEnumeration;
 import javax.naming.directory.Attributes;
 import javax.naming.directory.SearchResult;
@@ -204,6 +205,34 @@ public class SDSSpineEndpointResolver
     public String getMyAsid() { return myAsid; }
     public String getMyPartyKey() { return myPartyKey; }
   
+    /**
+     * Get the distinct URLs that messages can currently be sent to without asking SDS: the
+     * endpoint URLs in the local cache (or their resolved replacements), and everything in
+     * the URL resolver file.
+     * 
+     * @return Distinct URLs
+     */
+    HashSet<String> getKnownUrls()
+    {
+        HashSet<String> urls = new HashSet<>();
+        if (cache != null) {
+            for (SdsTransmissionDetails sds : cache.getAllTransmissionDetails()) {
+                String u = resolveUrl(sds.getSvcIA());
+                if (u == null)
+                    u = sds.getUrl();
+                if (isUsable(u))
+                    urls.add(u);
+            }
+        }
+        if (urlResolver != null) {
+            for (String u : urlResolver.values()) {
+                if (isUsable(u))
+                    urls.add(u);
+            }
+        }
+        return urls;
+    }
+    
     /**
      * Work around the design flaw in SDS that the nhsMhsEndpoint URL doesn't always contain
      * the URL that a sender needs to use. If there is a "resolved" URL, return it, if not
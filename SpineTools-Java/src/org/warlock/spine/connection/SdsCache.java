@@ -277,6 +277,18 @@ public class SdsCache
         return sds;
     }
     
+    /**
+     * @return Every SdsTransmissionDetails in the cache, for start-up connection warming.
+     */
+    ArrayList<SdsTransmissionDetails> getAllTransmissionDetails()
+    {
+        ArrayList<SdsTransmissionDetails> all = new ArrayList<>();
+        for (ArrayList<SdsTransmissionDetails> tx : transmission.values()) {
+            all.addAll(tx);
+        }
+        return all;
+    }
+    
     /**
      *  Retrieve a list of SdsTransmissionDetails matching the given parameters
      *  
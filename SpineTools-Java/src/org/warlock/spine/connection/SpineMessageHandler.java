@@ -22,12 +22,12 @@ import org.warlock.spine.messaging.EbXmlAcknowledgment;
 import org.warlock.spine.messaging.EbXmlMessage;
 import org.warlock.spine.messaging.SpineEbXmlHandler;
 import java.net.Socket;
-import java.net.URL;
 //import javax.net.ssl.SSLSocket;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStreamWriter;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 //import javax.net.ssl.SSLSocketFactory;
 
 /**
@@ -43,92 +43,152 @@ public class SpineMessageHandler
 
     private static final String EBXMLERROR = "urn:oasis:names:tc:ebxml-msg:service/MessageError";
     private static final String EBXMLACK = "urn:oasis:names:tc:ebxml-msg:service/Acknowledgment";
+    private static final byte[] MESSAGEID_TAG = "MessageId".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] FROM_TAG = "From".getBytes(StandardCharsets.ISO_8859_1);
+    private static final byte[] PARTYID_TAG = "PartyId".getBytes(StandardCharsets.ISO_8859_1);
+    // The ebXML header is the first MIME part, so header elements are not
+    // looked for past this far into the body.
+    //
+    private static final int HEADER_SCAN_LIMIT = 65536;
     //private SSLSocket socket = null;
-    private Socket socket = null;
+    private InboundConnection connection = null;
     private Listener listener = null;
 
     //public SpineMessageHandler(Listener l, SSLSocket s) {
     public SpineMessageHandler(Listener l, Socket s) {
-        socket = s;
+        InboundAdmission a = l.getAdmission();
+        connection = (a == null) ? new InboundConnection.SocketConnection(s, 0, 0)
+                : new InboundConnection.SocketConnection(s, a.getRequestTimeout(), a.getBlockingIdleTimeout());
+        listener = l;
+    }
+
+    /**
+     * Handler for a request on a connection other than a blocking socket,
+     * used by the NioListener.
+     *
+     * @param l Listener
+     * @param c Connection
+     */
+    SpineMessageHandler(Listener l, InboundConnection c) {
+        connection = c;
         listener = l;
     }
     // private string to contain a reference to originating message Id for logging in test harness mode ONLY
     private String refMessage = null;
 
-    private String getLine()
-            throws Exception {
-        InputStream in = socket.getInputStream();
-        StringBuilder sb = new StringBuilder();
-        int r = 0;
-        while ((r = in.read()) != (int) '\r') {
-            if (r == -1) {
-                break;
-            }
-            sb.append((char) r);
-        }
-        r = in.read();
-        return sb.toString();
-    }
+    // Kept between requests on a keep-alive connection, as it may have read
+    // ahead into the next one.
+    //
+    private HttpCodec codec = null;
+    private boolean keepAlive = false;
+    private boolean responded = false;
 
     @Override
     public void run() {
+        do {
+            keepAlive = false;
+            responded = false;
+            handleRequest();
+        } while (keepAlive && !connection.isClosed());
+    }
+
+    /**
+     * Read, acknowledge and handle one request.
+     */
+    private void handleRequest() {
         ConnectionManager cm = ConnectionManager.getInstance();
-        boolean readingHeader = true;
-        String line = null;
-        int clen = -1;
+        long clen = -1;
         String soapAction = null;
-        byte[] buffer = null;
+        ReceivedBody body = null;
         try {
-            StringBuilder sb = new StringBuilder();
-            while (readingHeader) {
-                line = getLine();
-                if (line != null) {
-                    sb.append(line);
-                    sb.append("\r\n");
-                    if (line.trim().length() == 0) {
-                        readingHeader = false;
-                    } else {
-                        String clc = line.toLowerCase();
-                        if (clc.contains("content-length")) {
-                            String[] p = clc.split(":");
-                            clen = Integer.parseInt(p[1].trim());
-                        }
-                        if (clc.contains("soapaction:")) {
-                            soapAction = line.substring(line.indexOf(": ") + 1).trim();
-                        }
+            // The NioListener has already parsed the head. Otherwise read it
+            // from the socket.
+            //
+            HttpCodec request = connection.getRequestHead();
+            if (request == null) {
+                if (codec == null) {
+                    codec = new HttpCodec(connection.getInputStream());
+                }
+                boolean gotHead = false;
+                boolean waiting = (connection.getServedCount() > 0);
+                if (waiting && !listener.idle(connection)) {
+                    connection.close();
+                    return;
+                }
+                try {
+                    gotHead = codec.readHead();
+                } catch (SocketTimeoutException e) {
+                    // Idle keep-alive connection
+                    //
+                    if (!waiting) {
+                        throw e;
+                    }
+                } catch (IOException e) {
+                    // Idle keep-alive connection closed by the Listener, for
+                    // drain() or to free the worker
+                    //
+                    if (!waiting || !connection.isClosed()) {
+                        throw e;
                     }
+                } finally {
+                    if (waiting) {
+                        listener.busy(connection);
+                    }
+                }
+                if (!gotHead) {
+                    connection.close();
+                    return;
                 }
+                connection.requestStarted();
+                request = codec;
             }
+            clen = request.getContentLength();
+            soapAction = request.getHeader("SOAPAction");
             System.out.println();
-            int left = clen;
-            int right = 0;
-            int r = -1;
 
             // Sanity check. If this doesn't work on a reliable message, there should be a retry. If it
             // doesn't work on an unreliable message, well, it is unreliable. If it happens for any other
             // reason then the requestor shouldn't be trying to talk to us anyway.
             //
-            if (clen == -1) {
+            if ((clen == -1) && !request.isChunked()) {
                 SpineToolsLogger.getInstance().log("org.warlock.spine.messaging.sendable.message", "Failed to get inbound content length, aborting");
-                socket.close();
+                connection.close();
                 return;
             }
-            buffer = new byte[clen];
-            while (left > 0) {
-                r = socket.getInputStream().read(buffer, right, left);
-                left -= r;
-                right += r;
-                if (r == -1) {
-                    System.err.println("EOF");
-                    left = 0;
+            // Bodies read here are held to the listener's memory budget. A
+            // request refused for its size or for lack of room is closed
+            // without its body being read.
+            //
+            InboundMemoryBudget budget = listener.getInboundBudget();
+            if (request != codec) {
+                body = connection.getRequestBody();
+                body.retain();
+            } else if (budget == null) {
+                body = new ReceivedBody(codec.readBody());
+            } else {
+                if (budget.isTooLarge(clen)) {
+                    doSynchronousResponse(new String(budget.getTooLarge(), StandardCharsets.ISO_8859_1), "");
+                    connection.close();
+                    return;
+                }
+                body = budget.read(codec);
+                if (body == null) {
+                    doSynchronousResponse(rejection(), "");
+                    connection.close();
+                    return;
                 }
             }
-            // Make an "ebXML object" and return an ack from it
+            byte[] head = body.getHead(HEADER_SCAN_LIMIT);
+            if (!request.isBodyComplete()) {
+                System.err.println("EOF");
+            }
+            // The head is not parsed again, and the body is only decoded where
+            // it is used, with the charset the sender gave or UTF-8.
             //
-            sb.append(new String(buffer));
-            String message = sb.toString();
+            Charset charset = request.getCharset(StandardCharsets.UTF_8);
             if (ConditionalCompilationControls.TESTHARNESS) {
                 if (ConditionalCompilationControls.otwMessageLogging) {
+                    String message = request.getHeadText() + body.getText(charset);
                     refMessage = message;
                     SpineToolsLogger.getInstance().log("org.warlock.spine.messaging.sendable.message", "\r\nON THE WIRE INBOUND: \r\n\r\n" + message);
                 }
@@ -147,24 +207,34 @@ public class SpineMessageHandler
                     }
                 }
             }
+            InboundAdmission admission = listener.getAdmission();
+            if (admission != null) {
+                keepAlive = admission.requestReceived(request, connection);
+            }
+            if (listener.isDraining()) {
+                keepAlive = false;
+            }
 
             if (soapAction == null) {
                 SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.noSoapAction", "SOAPaction not found in received message");
                 doSynchronousResponse("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n", "");
-                socket.close();
+                connection.close();
             } else {
                 // "contains" to allow for some systems quoting the soap action
                 if (soapAction.contains(EBXMLACK) || soapAction.contains(EBXMLERROR)) {
-                    String ackedId = getAckedMessageId(message);
+                    String ackedId = getAckedMessageId(body.getText(charset));
                     if (ackedId == null) {
                         SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.noAckedId", "Could not resolve RefToMessageId in received asynchronous acknowledgment");
+                    } else if (soapAction.contains(EBXMLERROR)) {
+                        cm.registerMessageError(ackedId, "MessageError received");
                     } else {
                         cm.registerAck(ackedId);
                     }
                     response = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Length: 0");
-                    response.append("\r\nConnection: close\r\nContent-Type: text/xml\r\nSOAPAction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n");
+                    response.append(connectionField());
+                    response.append("Content-Type: text/xml\r\nSOAPAction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n");
                     doSynchronousResponse(response.toString(), "");
-                    socket.close();
+                    endResponse();
                 } else {
                     // In TEST_HARNESS mode allow a soapFault response to be configured
                     if (ConditionalCompilationControls.TESTHARNESS) {
@@ -172,7 +242,7 @@ public class SpineMessageHandler
                         String prop = System.getProperty(SOAPFAULT);
                         if (prop != null && prop.trim().toLowerCase().equals("y")) {
                             doSynchronousResponse("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n", "");
-                            socket.close();
+                            connection.close();
                             return;
                         }
                     }
@@ -181,14 +251,32 @@ public class SpineMessageHandler
                         // The code below is "true" for the SpineTools being used to implement a
                         // Spine client. Be careful making it not true...
                         doSynchronousResponse("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n", "");
-                        socket.close();
+                        connection.close();
                         throw new UnsupportedOperationException("Spine-client SpineSOAP not implemented: nothing does this (yet)");
 
                     } else {
-                        EbXmlMessage msg = new EbXmlMessage(new ByteArrayInputStream(message.getBytes()));
+                        // Refuse the message before doing anything else with
+                        // it if its sender is over its rate limit.
+                        //
+                        InboundRateLimiter limiter = listener.getRateLimiter();
+                        if ((limiter != null) && !limiter.acquire(scanElement(head, FROM_TAG, PARTYID_TAG))) {
+                            keepAlive = false;
+                            doSynchronousResponse(rejection(), "");
+                            endResponse();
+                            return;
+                        }
+
+                        // A duplicate whose acknowledgment is still cached is
+                        // answered with it, without parsing the message again.
+                        //
+                        if (replayResponse(head)) {
+                            return;
+                        }
+
+                        // Make an "ebXML object" and return an ack from it
+                        //
+                        EbXmlMessage msg = new EbXmlMessage(request, body.getBuffer(), charset);
                         Exception ebxmlException = msg.getParseException();
-                        boolean duplicate = listener.receiveId(msg);
-                        boolean synchronousAck = msg.getHeader().getSyncReply();
                         // In TEST_HARNESS mode allow a negative ebXML response to be configured
                         if (ConditionalCompilationControls.TESTHARNESS) {
                             final String NEGEBXMLACK = "org.warlock.spine.connection.negativeebxmloverride";
@@ -197,67 +285,274 @@ public class SpineMessageHandler
                                 ebxmlException = new Exception();
                             }
                         }
-                        if (ebxmlException == null) {
-                            ack = msg.makeEbXmlAck(!synchronousAck);
-                        } else {
-                            ack = msg.makeEbXmlNack("1000", ebxmlException.getMessage(), "ebXml Parser");
-                        }
-                        String asyncAck = null;
-                        if (!synchronousAck) {
-                            asyncAck = ack;
-                            ack = "";
-                        }
-                        if (ack.length() == 0) {
-                            response = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Length: 0");
-                            response.append("\r\nConnection: close\r\nContent-Type: text/xml\r\nSOAPAction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n");
-                        } else {
+                        // Take a place for the handler before acknowledging, and
+                        // refuse the message if its handler group is full so that
+                        // the sender tries again later. A duplicate needs no place.
+                        // The place is given back unless the message is handed to
+                        // the group.
+                        //
+                        SpineEbXmlHandler handler = null;
+                        HandlerDispatcher.Group group = null;
+                        HandlerDispatcher dispatcher = listener.getDispatcher();
+                        boolean handed = false;
+                        try {
+                            if (ebxmlException == null) {
+                                handler = (SpineEbXmlHandler) cm.getEbXmlHandler(soapAction);
+                                if ((handler != null) && (dispatcher != null) && dispatcher.isEnabled()
+                                        && !listener.seenId(msg)) {
+                                    group = dispatcher.reserve(msg.getSoapAction(), handler);
+                                    if (group == null) {
+                                        keepAlive = false;
+                                        doSynchronousResponse(rejection(), "");
+                                        endResponse();
+                                        return;
+                                    }
+                                }
+                            }
+                            boolean duplicate = listener.receiveId(msg);
+                            boolean synchronousAck = msg.getHeader().getSyncReply();
                             if (ebxmlException == null) {
-                                response = new StringBuilder("HTTP/1.1 202 OK\r\nContent-Length: ");
+                                ack = msg.makeEbXmlAck(!synchronousAck);
                             } else {
-                                response = new StringBuilder("HTTP/1.1 500 Internal Server Error\r\nContent-Length: ");
+                                ack = msg.makeEbXmlNack("1000", ebxmlException.getMessage(), "ebXml Parser");
+                            }
+                            listener.getDeduplicationStore().setResponse(msg.getMessageId(),
+                                    new DeduplicationStore.CachedResponse(ack, synchronousAck, ebxmlException != null));
+                            String asyncAck = null;
+                            if (!synchronousAck) {
+                                asyncAck = ack;
+                                ack = "";
+                            }
+                            doSynchronousResponse(responseHead(ack, ebxmlException != null), ack);
+                            endResponse();
+                            if (asyncAck != null) {
+                                doAsynchronousAck(asyncAck);
+                            }
+                            // Only call the handler if we've not seen this one before.
+                            //
+                            if (ConditionalCompilationControls.DUMP_RECEIVED_MESSAGE) {
+                                System.out.append(request.getHeadText());
+                                System.out.append(body.getText(charset));
+                            }
+                            if (duplicate || (ebxmlException != null)) {
+                                return;
+                            }
+                            if (group != null) {
+                                handed = true;
+                                group.execute(handler, msg, body);
+                            } else if (handler != null) {
+                                handler.handle(msg);
+                            } else {
+                                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.noHandler", "Could not resolve message handler, and error initialising the default one");
+                            }
+                        } finally {
+                            if ((group != null) && !handed) {
+                                group.cancel();
                             }
-                            response.append(ack.length());
-                            response.append("\r\nConnection: close\r\nContent-Type: text/xml\r\nSOAPAction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n");
-                        }
-                        doSynchronousResponse(response.toString(), ack);
-                        socket.close();
-                        if (asyncAck != null) {
-                            doAsynchronousAck(asyncAck);
-                        }
-                        // Only call the handler if we've not seen this one before.
-                        //
-                        if (ConditionalCompilationControls.DUMP_RECEIVED_MESSAGE) {
-                            System.out.append(message);
-                        }
-                        if (duplicate) {
-                            return;
-                        }
-                        if (ebxmlException != null) {
-                            return;
-                        }
-                        SpineEbXmlHandler handler = (SpineEbXmlHandler) cm.getEbXmlHandler(soapAction);
-                        if (handler != null) {
-                            handler.handle(msg);
-                        } else {
-                            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.noHandler", "Could not resolve message handler, and error initialising the default one");
                         }
                     }
                 }
             }
 
+        } catch (SocketTimeoutException e) {
+            // Handshake or request not received within the request timeout.
+            // Nothing is sent back, the client is not sending.
+            //
+            keepAlive = false;
+            InboundAdmission admission = listener.getAdmission();
+            if (admission != null) {
+                admission.requestTimedOut();
+            }
+            try {
+                connection.close();
+            } catch (IOException eClose) {
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            if (!socket.isClosed()) {
+            keepAlive = false;
+            if (!connection.isClosed() && !responded) {
                 try {
                     doSynchronousResponse("HTTP/1.1 500 Internal Server Error\r\nContent-Length: 0\r\n\r\n", "");
-                    socket.close();
+                    connection.close();
                     SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.run-clientnotified", e);
                 } catch (Exception eLast) {
                     SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.run-notifyingclient", e);
                 }
             } else {
+                // Failed after responding on a keep-alive connection
+                //
+                if (!connection.isClosed()) {
+                    try {
+                        connection.close();
+                    } catch (IOException eClose) {
+                    }
+                }
                 SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.run-client-not-notified", e);
             }
+        } finally {
+            // A handler group given the message holds its own reference to
+            // the body until the handler has finished.
+            //
+            if (body != null) {
+                body.release();
+            }
+        }
+    }
+
+    /**
+     * @return The Connection header field for a response, with its leading
+     * line end.
+     */
+    private String connectionField() {
+        return keepAlive ? "\r\nConnection: keep-alive\r\n" : "\r\nConnection: close\r\n";
+    }
+
+    /**
+     * @param ack Synchronous acknowledgment, or "" if it is sent separately
+     * @param error true if the acknowledgment is negative
+     * @return HTTP response head for an ebXML message.
+     */
+    private String responseHead(String ack, boolean error) {
+        StringBuilder response = null;
+        if (ack.length() == 0) {
+            response = new StringBuilder("HTTP/1.1 200 OK\r\nContent-Length: 0");
+        } else {
+            if (!error) {
+                response = new StringBuilder("HTTP/1.1 202 OK\r\nContent-Length: ");
+            } else {
+                response = new StringBuilder("HTTP/1.1 500 Internal Server Error\r\nContent-Length: ");
+            }
+            response.append(ack.length());
+        }
+        response.append(connectionField());
+        response.append("Content-Type: text/xml\r\nSOAPAction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n");
+        return response.toString();
+    }
+
+    /**
+     * If the request is a duplicate of a message whose acknowledgment is
+     * still cached, send that acknowledgment again the way it was sent the
+     * first time. Only the message id is read from the request.
+     *
+     * @param buffer Start of the request body
+     * @return true if the request has been answered.
+     * @throws Exception
+     */
+    private boolean replayResponse(byte[] buffer)
+            throws Exception {
+        String id = scanElement(buffer, null, MESSAGEID_TAG);
+        if (id == null) {
+            return false;
+        }
+        DeduplicationStore.CachedResponse r = listener.getDeduplicationStore().getResponse(id);
+        if (r == null) {
+            return false;
+        }
+        String ack = r.getAck();
+        if (r.isSynchronous()) {
+            doSynchronousResponse(responseHead(ack, r.isError()), ack);
+            endResponse();
+        } else {
+            doSynchronousResponse(responseHead("", false), "");
+            endResponse();
+            doAsynchronousAck(ack);
+        }
+        return true;
+    }
+
+    /**
+     * Find the text of an ebXML header element in the first part of a request
+     * body, without decoding or parsing the body. Elements are matched on
+     * their local name, so RefToMessageId is not taken for MessageId, and
+     * closing tags are skipped.
+     *
+     * @param b Request body
+     * @param parent Name of an element the wanted one follows, or null
+     * @param name Name of the element
+     * @return The element's text, trimmed, or null if it was not found.
+     */
+    private static String scanElement(byte[] b, byte[] parent, byte[] name) {
+        int limit = Math.min(b.length, HEADER_SCAN_LIMIT);
+        int s = 0;
+        if (parent != null) {
+            s = findStartTag(b, parent, 0, limit);
+            if (s == -1) {
+                return null;
+            }
+        }
+        s = findStartTag(b, name, s, limit);
+        if (s == -1) {
+            return null;
+        }
+        int e = s;
+        while ((e < b.length) && (b[e] != '<')) {
+            e++;
+        }
+        if (e == b.length) {
+            return null;
+        }
+        String t = new String(b, s, e - s, StandardCharsets.ISO_8859_1).trim();
+        return (t.length() == 0) ? null : t;
+    }
+
+    /**
+     * @return Offset just after the first start tag with the given local
+     * name, at or after "from" and starting before "limit", or -1.
+     */
+    private static int findStartTag(byte[] b, byte[] name, int from, int limit) {
+        for (int i = Math.max(1, from); i + name.length < limit; i++) {
+            int j = 0;
+            while ((j < name.length) && (b[i + j] == name[j])) {
+                j++;
+            }
+            if ((j < name.length) || ((b[i - 1] != ':') && (b[i - 1] != '<'))) {
+                continue;
+            }
+            byte c = b[i + name.length];
+            if ((c != '>') && (c != ' ') && (c != '\t') && (c != '\r') && (c != '\n')) {
+                continue;
+            }
+            int t = i - 1;
+            while ((t >= 0) && (b[t] != '<') && (b[t] != '>')) {
+                t--;
+            }
+            if ((t < 0) || (b[t] != '<') || (b[t + 1] == '/')) {
+                continue;
+            }
+            int e = i + name.length;
+            while ((e < b.length) && (b[e] != '>')) {
+                e++;
+            }
+            return (e == b.length) ? -1 : e + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return A "503 Service Unavailable" response, for a message whose
+     * handler group is full.
+     */
+    private String rejection() {
+        InboundAdmission a = listener.getAdmission();
+        if (a == null) {
+            return "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        }
+        return new String(a.getRejection(), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * The response has been written. Close the connection, or hand it back for
+     * the next request if it is being kept alive.
+     *
+     * @throws IOException
+     */
+    private void endResponse()
+            throws IOException {
+        responded = true;
+        if (keepAlive) {
+            connection.release();
+        } else {
+            connection.close();
         }
     }
 
@@ -270,7 +565,7 @@ public class SpineMessageHandler
      */
     private void doSynchronousResponse(String r, String a)
             throws Exception {
-        OutputStreamWriter osw = new OutputStreamWriter(socket.getOutputStream());
+        OutputStreamWriter osw = new OutputStreamWriter(connection.getOutputStream());
         osw.write(r);
         osw.flush();
         if (a == null) {
@@ -326,7 +621,8 @@ public class SpineMessageHandler
     }
 
     /**
-     * Create and return an asynchronous ebXML acknowledgment.
+     * Queue an asynchronous ebXML acknowledgment on the ConnectionManager's
+     * AckOutbox.
      *
      * @param ack
      */
@@ -355,106 +651,8 @@ public class SpineMessageHandler
             }
             if(ConditionalCompilationControls.otwMessageLogging){refMessage = ack;}
         }
-        try {
-            ConnectionManager c = ConnectionManager.getInstance();
-            SpineSecurityContext tlsContext = c.getSecurityContext();
-            // SSLSocketFactory sf = tlsContext.getSocketFactory();            
-            EbXmlAcknowledgment ebxmlack = new EbXmlAcknowledgment(ack);
-            URL u = new URL(ebxmlack.getResolvedUrl());
-            // try (SSLSocket s = (SSLSocket)sf.createSocket(u.getHost(), 443)) {
-            // URL.getPort() is borken and returns -1 for https://something when the 
-            // default port is assumed from the scheme.
-            try (Socket s = tlsContext.createSocket(u.getHost(), (u.getPort() == -1) ? u.getDefaultPort() : u.getPort())) {
-                //s.startHandshake();
-                ebxmlack.write(s.getOutputStream());
-                int rlength = getHeader(s.getInputStream());
-                if (rlength == -1) {
-                    SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.doAsynchronousAck", "Failed to get HTTP response to asynchronous ack");
-                }
-            }
-        } catch (Exception e) {
-            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.doAsynchronousAck", e);
-        }
-
-    }
-
-    /**
-     * Reads a single line from the given InputStream. This is used rather than
-     * a BufferedReader to retain control over the read position on the stream.
-     *
-     * @param is
-     * @return
-     * @throws IOException
-     */
-    private String readLine(InputStream is)
-            throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int i = 0;
-        do {
-            i = is.read();
-            if (i == -1) {
-                break;
-            }
-            if (i == 0xa) // \n
-            {
-                break;
-            }
-            if (i != 0xd) {  // \r
-                sb.append(new Character((char) i));
-            }
-        } while (true);
-        return sb.toString();
-    }
-
-    /**
-     * Reads a received HTTP header.
-     *
-     * @param is InputStream from where the header is read
-     * @return Content-length value
-     * @throws IOException
-     */
-    private int getHeader(InputStream is)
-            throws IOException {
-        int length = -1;
-        String line = null;
-        StringBuilder sb = new StringBuilder();
-        do {
-            line = readLine(is);
-            sb.append(line).append("\r\n");
-            if (line == null) {
-                break;
-            }
-            if (line.toLowerCase().contains("content-length: ")) {
-                String l = line.substring("content-length: ".length()).trim();
-                length = Integer.parseInt(l);
-            }
-
-        } while (line.length() != 0);
-
-        if (ConditionalCompilationControls.TESTHARNESS) {
-            if (ConditionalCompilationControls.otwMessageLogging) {
-                String originatingMessageId = null;
-                if (refMessage == null) {
-                    originatingMessageId = null;
-                } else {
-                    int start = refMessage.indexOf("MessageId>");
-                    if (start == -1) {
-                        originatingMessageId = null;
-                    } else {
-                        start += "MessageId>".length();
-                        int end = refMessage.indexOf("<", start);
-                        if (end == -1) {
-                            originatingMessageId = null;
-                        } else {
-                            originatingMessageId = refMessage.substring(start, end);
-                        }
-                    }
-                }
-                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.SpineMessageHandler.message", "\r\nReference to Message ID " + originatingMessageId + " - ON THE WIRE SYNC INBOUND: \r\n\r\n" + sb.toString());
-            }
-        }
-
-        return length;
+        ConnectionManager c = ConnectionManager.getInstance();
+        c.getAckOutbox().send(new EbXmlAcknowledgment(ack));
     }
 
     /**
@@ -28,11 +28,22 @@ import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
 import javax.net.ServerSocketFactory;
 import javax.net.SocketFactory;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocketFactory;
 //import javax.net.ssl.SSLServerSocketFactory;
 import java.security.cert.X509Certificate;
@@ -62,6 +73,13 @@ import java.security.cert.CertificateFactory;
  * Using the resultant keystore file allows the certificate chain to be resolved, and the
  * certificates at both the endpoint and the Spine side to pass the mutual authentication checks.
  * 
+ * A single context is shared by the Transmitter, the Listener and SDS LDAP connections. The
+ * ConnectionManager makes it with getShared(), and getDefault() (which is what JNDI calls for
+ * each LDAPS socket) returns the same instance rather than re-loading the key stores. Its client
+ * and server session caches are sized so that repeat connections use abbreviated handshakes,
+ * and the protocols and cipher suites it enables are set from a configurable profile. Counts of
+ * full and resumed handshakes are kept.
+ * 
  * @author Damian Murphy <murff@warlock.org>
  */
 public class SpineSecurityContext 
@@ -72,6 +90,11 @@ public class SpineSecurityContext
     private static Properties properties = null;
     private static KeyStore keyStore = null;
     private static KeyStore trustStore = null;
+    private static volatile SpineSecurityContext shared = null;
+    private static String[] enabledProtocols = null;
+    private static String[] enabledCipherSuites = null;
+    private static final AtomicLong fullHandshakes = new AtomicLong(0);
+    private static final AtomicLong resumedHandshakes = new AtomicLong(0);
 
     private boolean ready = false;
     
@@ -100,6 +123,47 @@ public class SpineSecurityContext
      * be set if the local Java platform's default algorithm is NOT "SunX509".
      */
     public static final String SSLALGORITHM = "org.warlock.http.spine.sslalgorithm";
+
+    /**
+     * System property name for the number of sessions held in each of the client and
+     * server session caches. Default 1000.
+     */
+    public static final String SESSIONCACHESIZE = "org.warlock.http.spine.sessioncachesize";
+
+    /**
+     * System property name for the time in seconds for which a cached session may be
+     * resumed. Default 86400 (24 hours).
+     */
+    public static final String SESSIONTIMEOUT = "org.warlock.http.spine.sessiontimeout";
+
+    /**
+     * System property name for a comma-separated list of the TLS protocols to enable.
+     * Any not supported by the platform are ignored. Default "TLSv1.3,TLSv1.2".
+     */
+    public static final String PROTOCOLS = "org.warlock.http.spine.protocols";
+
+    /**
+     * System property name for a comma-separated list of the cipher suites to enable, in
+     * order of preference. Any not supported by the platform are ignored. If not set, the
+     * platform's default suites are used with the AES-GCM suites moved to the front.
+     */
+    public static final String CIPHERSUITES = "org.warlock.http.spine.ciphersuites";
+
+    private static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+    private static final int DEFAULT_SESSION_TIMEOUT = 86400;
+    private static final String DEFAULT_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    private static final String[] PREFERRED_CIPHER_SUITES = {
+        "TLS_AES_256_GCM_SHA384",
+        "TLS_AES_128_GCM_SHA256",
+        "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+        "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_DHE_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+        "TLS_RSA_WITH_AES_256_GCM_SHA384",
+        "TLS_RSA_WITH_AES_128_GCM_SHA256"
+    };
     
     // This is static because the security context will be called from the LdapContext
     // using the default constructpr, and we need to have the provider available to it.
@@ -235,6 +299,8 @@ public class SpineSecurityContext
                 tmf.init(trustStore);
                 context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), new SecureRandom());            
             }
+            configureSessionCaches();
+            selectProfile();
             ready = true;
         }
         catch (NoSuchAlgorithmException | KeyStoreException | UnrecoverableKeyException | KeyManagementException e) {
@@ -243,6 +309,207 @@ public class SpineSecurityContext
         }
     }
     
+    private void configureSessionCaches() {
+        int size = getIntProperty(SESSIONCACHESIZE, DEFAULT_SESSION_CACHE_SIZE);
+        int timeout = getIntProperty(SESSIONTIMEOUT, DEFAULT_SESSION_TIMEOUT);
+        SSLSessionContext[] caches = {context.getClientSessionContext(), context.getServerSessionContext()};
+        for (SSLSessionContext sc : caches) {
+            if (sc != null) {
+                sc.setSessionCacheSize(size);
+                sc.setSessionTimeout(timeout);
+            }
+        }
+    }
+
+    private void selectProfile() {
+        SSLParameters supported = context.getSupportedSSLParameters();
+        SSLParameters defaults = context.getDefaultSSLParameters();
+        String p = properties.getProperty(PROTOCOLS, DEFAULT_PROTOCOLS);
+        enabledProtocols = select(p.split(","), supported.getProtocols());
+        if (enabledProtocols.length == 0) {
+            System.err.println("None of the TLS protocols " + p + " are supported, using platform defaults");
+            enabledProtocols = defaults.getProtocols();
+        }
+        String c = properties.getProperty(CIPHERSUITES);
+        if (c == null) {
+            ArrayList<String> l = new ArrayList<>(Arrays.asList(select(PREFERRED_CIPHER_SUITES, defaults.getCipherSuites())));
+            for (String s : defaults.getCipherSuites()) {
+                if (!l.contains(s)) {
+                    l.add(s);
+                }
+            }
+            enabledCipherSuites = l.toArray(new String[l.size()]);
+        } else {
+            enabledCipherSuites = select(c.split(","), supported.getCipherSuites());
+            if (enabledCipherSuites.length == 0) {
+                System.err.println("None of the cipher suites " + c + " are supported, using platform defaults");
+                enabledCipherSuites = defaults.getCipherSuites();
+            }
+        }
+    }
+
+    /**
+     * @return Those of the wanted names that are available, in the wanted order.
+     */
+    private static String[] select(String[] wanted, String[] available) {
+        ArrayList<String> a = new ArrayList<>(Arrays.asList(available));
+        ArrayList<String> l = new ArrayList<>();
+        for (String w : wanted) {
+            String t = w.trim();
+            if (a.contains(t) && !l.contains(t)) {
+                l.add(t);
+            }
+        }
+        return l.toArray(new String[l.size()]);
+    }
+
+    private int getIntProperty(String n, int d) {
+        String v = properties.getProperty(n);
+        if ((v == null) || (v.trim().length() == 0)) {
+            return d;
+        }
+        try {
+            return Integer.parseInt(v.trim());
+        }
+        catch (NumberFormatException e) {
+            System.err.println("Invalid " + n + " value " + v + ", using " + d);
+            return d;
+        }
+    }
+
+    private static SSLSocket configure(SSLSocket s) {
+        if (enabledProtocols != null) {
+            s.setEnabledProtocols(enabledProtocols);
+            s.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return s;
+    }
+
+    private static SSLServerSocket configure(SSLServerSocket s) {
+        if (enabledProtocols != null) {
+            s.setEnabledProtocols(enabledProtocols);
+            s.setEnabledCipherSuites(enabledCipherSuites);
+            SSLParameters p = s.getSSLParameters();
+            p.setUseCipherSuitesOrder(true);
+            s.setSSLParameters(p);
+        }
+        return s;
+    }
+
+    /**
+     * Configure a client socket and do the handshake, counting whether it was
+     * a full or resumed one.
+     */
+    private SSLSocket handshake(SSLSocket s) 
+            throws IOException
+    {
+        configure(s);
+        long start = System.currentTimeMillis();
+        s.startHandshake();
+        recordHandshake(s.getSession(), start);
+        return s;
+    }
+
+    /**
+     * Make an outbound connection with the given timeouts, and do the handshake.
+     * The returned socket has the read timeout set. A connect or handshake timeout
+     * is reported as a TransmitTimeouts.PhaseTimeoutException so that it can be
+     * counted separately.
+     * 
+     * @param h Host name
+     * @param p Port
+     * @param t Timeouts
+     * @return Connected socket
+     * @throws IOException 
+     */
+    java.net.Socket connect(String h, int p, TransmitTimeouts t)
+            throws IOException
+    {
+        java.net.Socket raw = new java.net.Socket();
+        try {
+            try {
+                raw.connect(new java.net.InetSocketAddress(h, p), t.getConnectTimeout());
+            }
+            catch (java.net.SocketTimeoutException e) {
+                throw new TransmitTimeouts.PhaseTimeoutException(TransmitTimeouts.CONNECT, "Connect to " + h + ":" + p + " timed out after " + t.getConnectTimeout() + "ms");
+            }
+            if (ConditionalCompilationControls.TESTHARNESS) {
+                if (ConditionalCompilationControls.cleartext) {
+                    raw.setSoTimeout(t.getReadTimeout());
+                    return raw;
+                }
+            }
+            SSLSocket s = (SSLSocket)context.getSocketFactory().createSocket(raw, h, p, true);
+            s.setSoTimeout(t.getHandshakeTimeout());
+            try {
+                handshake(s);
+            }
+            catch (java.net.SocketTimeoutException e) {
+                throw new TransmitTimeouts.PhaseTimeoutException(TransmitTimeouts.HANDSHAKE, "TLS handshake with " + h + ":" + p + " timed out after " + t.getHandshakeTimeout() + "ms");
+            }
+            s.setSoTimeout(t.getReadTimeout());
+            return s;
+        }
+        catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Count a completed handshake. A session which was created before the
+     * handshake started must have been resumed from the cache.
+     * 
+     * @param s Session
+     * @param start Time the connection or handshake was started
+     */
+    void recordHandshake(SSLSession s, long start) {
+        if ((s != null) && (s.getCreationTime() < start)) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Arrange for the handshake on an accepted server socket, which happens on
+     * the first read, to be counted.
+     * 
+     * @param s Accepted socket
+     */
+    public void watchHandshake(java.net.Socket s) {
+        if (!(s instanceof SSLSocket))
+            return;
+        final long accepted = System.currentTimeMillis();
+        ((SSLSocket)s).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+            @Override
+            public void handshakeCompleted(HandshakeCompletedEvent e) {
+                recordHandshake(e.getSession(), accepted);
+            }
+        });
+    }
+
+    /**
+     * @return Number of full TLS handshakes, inbound and outbound.
+     */
+    public long getFullHandshakeCount() { return fullHandshakes.get(); }
+
+    /**
+     * @return Number of abbreviated (resumed session) TLS handshakes, inbound and outbound.
+     */
+    public long getResumedHandshakeCount() { return resumedHandshakes.get(); }
+
+    /**
+     * @return The TLS protocols enabled on sockets and engines from this context.
+     */
+    public String[] getEnabledProtocols() { return (enabledProtocols == null) ? null : enabledProtocols.clone(); }
+
+    /**
+     * @return The cipher suites enabled on sockets and engines from this context, in
+     * order of preference.
+     */
+    public String[] getEnabledCipherSuites() { return (enabledCipherSuites == null) ? null : enabledCipherSuites.clone(); }
+
     /**
      * Check that everything was initialised correctly. Applications should call
      * this as a sanity check before trying to use the context to create sockets.
@@ -276,7 +543,51 @@ public class SpineSecurityContext
     public SSLSocketFactory getSocketFactory() { return context.getSocketFactory(); }
     
     /**
-     * Get the server socket factory from the underlying SSL context.
+     * Make a client-mode SSLEngine for the given peer, for non-blocking
+     * connections. The handshake is not started.
+     * @param h Peer host name
+     * @param p Peer port
+     * @return Client SSLEngine, or null if clear-text sockets are in use.
+     */
+    public SSLEngine createSSLEngine(String h, int p) {
+        if (ConditionalCompilationControls.TESTHARNESS) {
+            if (ConditionalCompilationControls.cleartext)
+                return null;
+        }
+        SSLEngine e = context.createSSLEngine(h, p);
+        e.setUseClientMode(true);
+        if (enabledProtocols != null) {
+            e.setEnabledProtocols(enabledProtocols);
+            e.setEnabledCipherSuites(enabledCipherSuites);
+        }
+        return e;
+    }
+
+    /**
+     * Make a server-mode SSLEngine for an accepted connection, configured as
+     * for server sockets from this context. The handshake is not started.
+     * @return Server SSLEngine, or null if clear-text sockets are in use.
+     */
+    public SSLEngine createServerSSLEngine() {
+        if (ConditionalCompilationControls.TESTHARNESS) {
+            if (ConditionalCompilationControls.cleartext)
+                return null;
+        }
+        SSLEngine e = context.createSSLEngine();
+        e.setUseClientMode(false);
+        if (enabledProtocols != null) {
+            e.setEnabledProtocols(enabledProtocols);
+            e.setEnabledCipherSuites(enabledCipherSuites);
+            SSLParameters p = e.getSSLParameters();
+            p.setUseCipherSuitesOrder(true);
+            e.setSSLParameters(p);
+        }
+        return e;
+    }
+
+    /**
+     * Get a server socket factory from the underlying SSL context, which issues
+     * server sockets configured with the protocol and cipher suite profile.
      * @return Server socket factory
      */
     public ServerSocketFactory getServerSocketFactory() { 
@@ -284,7 +595,32 @@ public class SpineSecurityContext
             if (ConditionalCompilationControls.cleartext)
                 return ServerSocketFactory.getDefault();
         }
-        return context.getServerSocketFactory(); 
+        final SSLServerSocketFactory f = context.getServerSocketFactory(); 
+        return new ServerSocketFactory() {
+            @Override
+            public java.net.ServerSocket createServerSocket() 
+                    throws IOException {
+                return configure((SSLServerSocket)f.createServerSocket());
+            }
+
+            @Override
+            public java.net.ServerSocket createServerSocket(int p) 
+                    throws IOException {
+                return configure((SSLServerSocket)f.createServerSocket(p));
+            }
+
+            @Override
+            public java.net.ServerSocket createServerSocket(int p, int b) 
+                    throws IOException {
+                return configure((SSLServerSocket)f.createServerSocket(p, b));
+            }
+
+            @Override
+            public java.net.ServerSocket createServerSocket(int p, int b, java.net.InetAddress a) 
+                    throws IOException {
+                return configure((SSLServerSocket)f.createServerSocket(p, b, a));
+            }
+        };
     }
     
     /**
@@ -311,8 +647,10 @@ public class SpineSecurityContext
             if (ConditionalCompilationControls.cleartext)
                 return SocketFactory.getDefault().createSocket();
         }
-        SSLSocket s = (SSLSocket)context.getSocketFactory().createSocket();
-        s.startHandshake();
+        // Not connected yet, so the handshake happens on first use
+        //
+        SSLSocket s = configure((SSLSocket)context.getSocketFactory().createSocket());
+        watchHandshake(s);
         return s;
     }
     
@@ -325,8 +663,7 @@ public class SpineSecurityContext
                 return SocketFactory.getDefault().createSocket(h, p);
         }
         SSLSocket s = (SSLSocket)context.getSocketFactory().createSocket(h, p);
-        s.startHandshake();
-        return s;
+        return handshake(s);
     }
 
     @Override
@@ -339,8 +676,7 @@ public class SpineSecurityContext
         }
 
         SSLSocket s = (SSLSocket)context.getSocketFactory().createSocket(h, p, la, lp);
-        s.startHandshake();
-        return s;
+        return handshake(s);
     }
 
     @Override
@@ -352,8 +688,7 @@ public class SpineSecurityContext
                 return SocketFactory.getDefault().createSocket(a, p);
         }
         SSLSocket s = (SSLSocket)context.getSocketFactory().createSocket(a, p);
-        s.startHandshake();
-        return s;
+        return handshake(s);
     }
    
     @Override
@@ -366,17 +701,56 @@ public class SpineSecurityContext
         }
         
         SSLSocket s = (SSLSocket)context.getSocketFactory().createSocket(a, p, la, lp);
-        s.startHandshake();
-        return s;
+        return handshake(s);
     }
     
+    /**
+     * Get the shared context, making it with the given password provider if it
+     * has not been made already.
+     * 
+     * @param p Password provider
+     * @return Shared context
+     * @throws Exception if the context has to be made, and that fails.
+     */
+    public static synchronized SpineSecurityContext getShared(PasswordProvider p)
+            throws Exception
+    {
+        if (shared == null) {
+            shared = new SpineSecurityContext(p);
+        }
+        return shared;
+    }
+
+    /**
+     * Socket factory method called by JNDI for LDAPS connections. This returns the
+     * shared context, normally the one made by the ConnectionManager, so that
+     * the key stores are not re-loaded and TLS sessions are re-used.
+     * 
+     * @return Shared context
+     */
    public static javax.net.SocketFactory getDefault() {
        if (ConditionalCompilationControls.TESTHARNESS) {
            if (ConditionalCompilationControls.cleartext)
                return SocketFactory.getDefault();
        }
+       SpineSecurityContext s = shared;
+       if (s != null)
+           return s;
+       // Let the ConnectionManager make it, if it hasn't already, so that it is made
+       // with the ConnectionManager's password provider. Don't hold the lock while
+       // doing this because the ConnectionManager also calls getShared().
+       //
+       ConnectionManager cm = ConnectionManager.getInstance();
+       s = (cm == null) ? null : cm.getSecurityContext();
+       if (s != null)
+           return s;
        try {
-            return new SpineSecurityContext();
+           synchronized (SpineSecurityContext.class) {
+               if (shared == null) {
+                   shared = new SpineSecurityContext();
+               }
+               return shared;
+           }
        }
        catch (Exception e) {
            e.printStackTrace();
@@ -0,0 +1,399 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.warlock.spine.logging.SpineToolsLogger;
+import org.warlock.spine.messaging.Sendable;
+
+/**
+ * Bounded pool of threads which run Transmitter tasks, used by the
+ * ConnectionManager for both first sends and retries.<BR><BR>
+ *
+ * The pool has a fixed maximum number of threads and a fixed-size queue. What
+ * happens when a send is made with all threads busy and the queue full is set
+ * by the rejection policy: "callerruns" (the default) sends on the calling
+ * thread, which slows down the caller; "abort" throws a
+ * RejectedExecutionException to the caller of ConnectionManager.send();
+ * "discard" logs and drops the send, relying on the retry process to pick up
+ * reliable messages later.<BR><BR>
+ *
+ * Retries are never run on the retry timer thread. If the queue is full when a
+ * retry is due, the retry is left for the next run of the retry timer. A
+ * message that is already queued or being sent is not queued again.<BR><BR>
+ *
+ * A send that the ConcurrencyLimiter queued and later admits is run on a
+ * separate, unbounded set of threads rather than on this pool. It already
+ * holds one of its endpoint's places, so there are never more of these than
+ * the endpoints' limits add up to. This keeps an admitted send from waiting
+ * for a pool thread while every pool thread is a batch drain waiting for a
+ * queued send to finish.
+ */
+public class TransmitExecutor {
+
+    /**
+     * System property. Maximum number of transmitter threads. Default 16.
+     */
+    public static final String TRANSMIT_THREADS = "org.warlock.spine.connection.transmit.threads";
+
+    /**
+     * System property. Number of sends that may wait for a transmitter thread.
+     * Default 1000.
+     */
+    public static final String TRANSMIT_QUEUE_SIZE = "org.warlock.spine.connection.transmit.queuesize";
+
+    /**
+     * System property. What to do with a send when the queue is full. One of
+     * "callerruns", "abort" or "discard". Default "callerruns".
+     */
+    public static final String TRANSMIT_REJECTION_POLICY = "org.warlock.spine.connection.transmit.rejectionpolicy";
+
+    private static final int DEFAULT_THREADS = 16;
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+    private static final long THREAD_KEEPALIVE = 60;
+
+    private final ThreadPoolExecutor executor;
+    private final ThreadPoolExecutor resumer;
+    private final int queueCapacity;
+    private final Set<String> pending = ConcurrentHashMap.<String>newKeySet();
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong deferred = new AtomicLong(0);
+
+    TransmitExecutor() {
+        int threads = (int) ConnectionManager.getLongProperty(TRANSMIT_THREADS, DEFAULT_THREADS);
+        queueCapacity = (int) ConnectionManager.getLongProperty(TRANSMIT_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+        RejectedExecutionHandler policy = null;
+        String p = System.getProperty(TRANSMIT_REJECTION_POLICY);
+        if ((p == null) || p.trim().equalsIgnoreCase("callerruns")) {
+            policy = new ThreadPoolExecutor.CallerRunsPolicy();
+        } else if (p.trim().equalsIgnoreCase("abort")) {
+            policy = new ThreadPoolExecutor.AbortPolicy();
+        } else if (p.trim().equalsIgnoreCase("discard")) {
+            policy = new ThreadPoolExecutor.DiscardPolicy();
+        } else {
+            System.err.println("Unrecognised " + TRANSMIT_REJECTION_POLICY + " " + p + ", using callerruns");
+            policy = new ThreadPoolExecutor.CallerRunsPolicy();
+        }
+        final RejectedExecutionHandler delegate = policy;
+        executor = new ThreadPoolExecutor(threads, threads, THREAD_KEEPALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Spine transmitter-" + count.incrementAndGet());
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor e) {
+                        rejected.incrementAndGet();
+                        if (r instanceof Task) {
+                            ((Task) r).done();
+                        }
+                        SpineToolsLogger.getInstance().log("org.warlock.spine.connection.TransmitExecutor.rejected", "Transmit queue full, active " + e.getActiveCount() + " queued " + e.getQueue().size());
+                        if (r instanceof Drain) {
+                            // The batch caller is waiting for this anyway, so
+                            // drain on its thread whatever the policy says
+                            //
+                            ((Drain) r).rejected(e.isShutdown());
+                            return;
+                        }
+                        delegate.rejectedExecution(r, e);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        resumer = new ThreadPoolExecutor(0, Integer.MAX_VALUE, THREAD_KEEPALIVE, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "Spine transmitter resume-" + count.incrementAndGet());
+                    }
+                });
+    }
+
+    /**
+     * Queue a message for sending. If the queue is full the rejection policy
+     * is applied.
+     *
+     * @param s Message to send
+     * @throws RejectedExecutionException if the queue is full and the policy is
+     * "abort", or if the executor has been shut down.
+     */
+    void execute(Sendable s) {
+        if (s.getMessageId() != null) {
+            pending.add(s.getMessageId());
+        }
+        executor.execute(new Task(s));
+    }
+
+    /**
+     * Queue a reliable message for a retry, without blocking, without running
+     * it on the calling thread, and without queueing a message that is already
+     * waiting or in progress.
+     *
+     * @param s Message to send
+     * @return false if the queue is full, in which case the caller should stop
+     * offering retries for now.
+     */
+    boolean offerRetry(Sendable s) {
+        if (executor.isShutdown() || (executor.getQueue().remainingCapacity() == 0)) {
+            deferred.incrementAndGet();
+            return false;
+        }
+        if (!pending.add(s.getMessageId())) {
+            return true;
+        }
+        try {
+            executor.execute(new Task(s));
+        } catch (RejectedExecutionException e) {
+            pending.remove(s.getMessageId());
+            deferred.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Run a Transmitter that the ConcurrencyLimiter had queued and has now
+     * admitted, on a resume thread. After shutdown it is run on the calling
+     * thread, because the message has already been counted as a try.
+     *
+     * @param t Transmitter to run
+     */
+    void resume(Transmitter t) {
+        try {
+            resumer.execute(new Resume(t));
+        } catch (RejectedExecutionException e) {
+            t.run();
+        }
+    }
+
+    /**
+     * Queue a batch of messages to one endpoint, to be sent one after another
+     * by a fixed number of drain tasks. Each drain sends its next message only
+     * when the previous exchange has finished, so that the endpoint sees no
+     * more than "drains" concurrent exchanges and, when pooling is on, each
+     * drain keeps re-using the same connection.
+     *
+     * @param q Messages to send, all to the same endpoint
+     * @param drains Number of drain tasks
+     * @param finished Counted down once by each drain when the queue is empty
+     */
+    void executeBatch(Queue<BatchResult.Entry> q, int drains, CountDownLatch finished) {
+        for (BatchResult.Entry e : q) {
+            if (e.getSendable().getMessageId() != null) {
+                pending.add(e.getSendable().getMessageId());
+            }
+        }
+        for (int i = 0; i < drains; i++) {
+            executor.execute(new Drain(q, finished));
+        }
+    }
+
+    /**
+     * Stop taking new sends. Anything already queued is still sent.
+     */
+    void shutdown() {
+        executor.shutdown();
+        resumer.shutdown();
+    }
+
+    /**
+     * Wait for queued and running sends to finish after shutdown().
+     *
+     * @param ms Longest time to wait in milliseconds
+     * @return true if everything finished in time.
+     * @throws InterruptedException
+     */
+    boolean awaitTermination(long ms)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + ms;
+        if (!executor.awaitTermination(ms, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        return resumer.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Number of sends waiting for a transmitter thread.
+     */
+    public int getQueueDepth() { return executor.getQueue().size(); }
+
+    /**
+     * @return Maximum number of sends that may wait for a transmitter thread.
+     */
+    public int getQueueCapacity() { return queueCapacity; }
+
+    /**
+     * @return Approximate number of transmitter threads currently sending.
+     */
+    public int getActiveCount() { return executor.getActiveCount(); }
+
+    /**
+     * @return Current number of transmitter threads, busy or idle.
+     */
+    public int getPoolSize() { return executor.getPoolSize(); }
+
+    /**
+     * @return Maximum number of transmitter threads.
+     */
+    public int getMaximumPoolSize() { return executor.getMaximumPoolSize(); }
+
+    /**
+     * @return Approximate number of sends completed.
+     */
+    public long getCompletedCount() { return executor.getCompletedTaskCount(); }
+
+    /**
+     * @return Number of sends that found the queue full and had the
+     * rejection policy applied.
+     */
+    public long getRejectedCount() { return rejected.get(); }
+
+    /**
+     * @return Number of retries left for a later run of the retry timer
+     * because the queue was full.
+     */
+    public long getDeferredRetryCount() { return deferred.get(); }
+
+    private class Task
+            implements Runnable {
+
+        private final Sendable sendable;
+
+        Task(Sendable s) {
+            sendable = s;
+        }
+
+        @Override
+        public void run() {
+            // The Transmitter calls done() when it has finished with the message,
+            // which in the non-blocking mode is after this returns.
+            //
+            Transmitter t = new Transmitter(sendable);
+            t.setCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    done();
+                }
+            });
+            t.run();
+        }
+
+        private void done() {
+            if (sendable.getMessageId() != null) {
+                pending.remove(sendable.getMessageId());
+            }
+        }
+    }
+
+    private static class Resume
+            implements Runnable {
+
+        private final Transmitter transmitter;
+
+        Resume(Transmitter t) {
+            transmitter = t;
+        }
+
+        @Override
+        public void run() {
+            transmitter.run();
+        }
+    }
+
+    private class Drain
+            implements Runnable {
+
+        private final Queue<BatchResult.Entry> queue;
+        private final CountDownLatch finished;
+
+        Drain(Queue<BatchResult.Entry> q, CountDownLatch f) {
+            queue = q;
+            finished = f;
+        }
+
+        @Override
+        public void run() {
+            try {
+                BatchResult.Entry e = null;
+                while ((e = queue.poll()) != null) {
+                    send(e);
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+
+        private void send(final BatchResult.Entry e) {
+            final Sendable s = e.getSendable();
+            e.starting();
+            Transmitter t = new Transmitter(s);
+            t.setCompletion(new Runnable() {
+                @Override
+                public void run() {
+                    if (s.getMessageId() != null) {
+                        pending.remove(s.getMessageId());
+                    }
+                    e.exchanged();
+                }
+            });
+            t.run();
+            try {
+                e.awaitExchange();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void rejected(boolean shutdown) {
+            if (!shutdown) {
+                run();
+                return;
+            }
+            try {
+                BatchResult.Entry e = null;
+                while ((e = queue.poll()) != null) {
+                    if (e.getSendable().getMessageId() != null) {
+                        pending.remove(e.getSendable().getMessageId());
+                    }
+                    e.notSent("Transmitter shut down");
+                }
+            } finally {
+                finished.countDown();
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.connection;
+
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Connect, TLS handshake and read timeouts for outbound connections, and
+ * counters for the ways a send can fail. Timeouts are counted by phase,
+ * separately from other IO errors, and so are messages dropped because their
+ * deadline (see Sendable.setDeadline()) passed before they were sent.<BR><BR>
+ *
+ * The read timeout is the longest wait for any data from the remote end once
+ * the request has been sent, not a limit on the whole exchange.
+ */
+public class TransmitTimeouts {
+
+    /**
+     * System property. Time in milliseconds allowed to make the TCP connection.
+     * Default 30,000 (30 seconds).
+     */
+    public static final String CONNECT_TIMEOUT = "org.warlock.spine.connection.connecttimeout";
+
+    /**
+     * System property. Time in milliseconds allowed for the TLS handshake.
+     * Default 30,000 (30 seconds).
+     */
+    public static final String HANDSHAKE_TIMEOUT = "org.warlock.spine.connection.handshaketimeout";
+
+    /**
+     * System property. Time in milliseconds to wait for data while reading the
+     * response. Default 120,000 (2 minutes).
+     */
+    public static final String READ_TIMEOUT = "org.warlock.spine.connection.readtimeout";
+
+    // Phases
+    //
+    public static final int CONNECT = 1;
+    public static final int HANDSHAKE = 2;
+    public static final int READ = 3;
+
+    private static final long DEFAULT_CONNECT_TIMEOUT = 30000;
+    private static final long DEFAULT_HANDSHAKE_TIMEOUT = 30000;
+    private static final long DEFAULT_READ_TIMEOUT = 120000;
+
+    private final int connectTimeout;
+    private final int handshakeTimeout;
+    private final int readTimeout;
+
+    private final AtomicLong connectTimeouts = new AtomicLong(0);
+    private final AtomicLong handshakeTimeouts = new AtomicLong(0);
+    private final AtomicLong readTimeouts = new AtomicLong(0);
+    private final AtomicLong ioErrors = new AtomicLong(0);
+    private final AtomicLong deadlinesPassed = new AtomicLong(0);
+
+    TransmitTimeouts() {
+        connectTimeout = (int) ConnectionManager.getLongProperty(CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT);
+        handshakeTimeout = (int) ConnectionManager.getLongProperty(HANDSHAKE_TIMEOUT, DEFAULT_HANDSHAKE_TIMEOUT);
+        readTimeout = (int) ConnectionManager.getLongProperty(READ_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public int getConnectTimeout() { return connectTimeout; }
+    public int getHandshakeTimeout() { return handshakeTimeout; }
+    public int getReadTimeout() { return readTimeout; }
+
+    /**
+     * Count a failed send.
+     *
+     * @param e What went wrong
+     * @return The phase that timed out, or zero if it wasn't a timeout.
+     */
+    int recordFailure(Exception e) {
+        int phase = 0;
+        if (e instanceof PhaseTimeoutException) {
+            phase = ((PhaseTimeoutException) e).getPhase();
+        } else if (e instanceof SocketTimeoutException) {
+            phase = READ;
+        }
+        switch (phase) {
+            case CONNECT:
+                connectTimeouts.incrementAndGet();
+                break;
+            case HANDSHAKE:
+                handshakeTimeouts.incrementAndGet();
+                break;
+            case READ:
+                readTimeouts.incrementAndGet();
+                break;
+            default:
+                ioErrors.incrementAndGet();
+                break;
+        }
+        return phase;
+    }
+
+    void recordDeadlinePassed() {
+        deadlinesPassed.incrementAndGet();
+    }
+
+    public long getConnectTimeoutCount() { return connectTimeouts.get(); }
+    public long getHandshakeTimeoutCount() { return handshakeTimeouts.get(); }
+    public long getReadTimeoutCount() { return readTimeouts.get(); }
+
+    /**
+     * @return Number of sends that failed other than by timing out.
+     */
+    public long getIoErrorCount() { return ioErrors.get(); }
+
+    /**
+     * @return Number of messages dropped or expired because their deadline
+     * passed before they were sent.
+     */
+    public long getDeadlinePassedCount() { return deadlinesPassed.get(); }
+
+    /**
+     * A timeout in a known phase of an outbound exchange.
+     */
+    static class PhaseTimeoutException
+            extends SocketTimeoutException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int phase;
+
+        PhaseTimeoutException(int p, String m) {
+            super(m);
+            phase = p;
+        }
+
+        int getPhase() { return phase; }
+    }
+}
@@ -18,22 +18,24 @@
 package org.warlock.spine.connection;
 
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
-import java.net.Socket;
-import org.apache.commons.io.input.TeeInputStream;
 import org.apache.commons.io.output.TeeOutputStream;
 //import javax.net.ssl.SSLSocket;
 //import javax.net.ssl.SSLSocketFactory;
 import org.warlock.spine.logging.SpineToolsLogger;
+import org.warlock.spine.messaging.DeliveryOutcome;
+import org.warlock.spine.messaging.RetryPolicy;
 import org.warlock.spine.messaging.Sendable;
 import org.warlock.spine.messaging.SpineSOAPRequest;
 import org.warlock.spine.messaging.SynchronousResponseHandler;
 
 /**
- * Thread to handle sending messages. The run() method of this class opens a TLS
- * connection to Spine, and gets the Sendable message to serialise itself to the
+ * Task to handle sending messages, run on the ConnectionManager's
+ * TransmitExecutor. The run() method of this class gets a TLS connection to
+ * Spine from the ConnectionPool, and gets the Sendable message to serialise itself to the
  * connection's OutputStream. It then waits for an HTTP response.<BR><BR>
  *
  * For a synchronous request the appropriate SynchronousResponseHandler is
@@ -47,188 +49,445 @@ import org.warlock.spine.messaging.SynchronousResponseHandler;
  * For an asynchronous request, the Transmitter handles synchronous acks or
  * errors signalling termination of retries.<BR><BR>
  *
+ * Before anything is sent the ConnectionManager's ConcurrencyLimiter is asked
+ * for room at the endpoint. If there is none the Transmitter is queued there,
+ * and run again on the TransmitExecutor when an exchange with the endpoint
+ * finishes. Before that, the ConnectionManager's CircuitBreaker is checked:
+ * while the endpoint's circuit is open nothing is sent, reliable messages are
+ * left for the retry timer without using up a try, and anything else fails
+ * straight away.<BR><BR>
+ *
  * @author Damian Murphy damian.murphy@hscic.gov.uk
  */
 public class Transmitter
-        extends java.lang.Thread {
+        implements java.lang.Runnable {
 
     private static final String PROXYHOST = "org.warlock.spine.proxyhost";
     private static final String PROXYPORT = "org.warlock.spine.proxyport";
     private Sendable sendable = null;
     private String responseHeader = null;
+    private int responseStatus = -1;
+    private boolean reusable = false;
+    private String host = null;
+    private int port = 443;
+    private Runnable completion = null;
+    private String endpoint = null;
+    private long admitted = 0;
+    private boolean resumed = false;
+    private boolean breakerAllowed = false;
+    private boolean limited = false;
+    private boolean attempted = false;
 
     Transmitter(Sendable s) {
         sendable = s;
     }
 
-    @Override
-    public void run() {
+    /**
+     * Called when this Transmitter has finished with the message, whether or
+     * not the send succeeded. For the non-blocking engine this is after the
+     * response has been processed, rather than when run() returns.
+     */
+    void setCompletion(Runnable r) {
+        completion = r;
+    }
+
+    private void complete() {
         ConnectionManager c = ConnectionManager.getInstance();
-        if (!sendable.recordTry()) {
-            if (sendable.getMessageId() != null) {
-                c.removeRequest(sendable.getMessageId());
-                sendable.expire();
+        boolean ok = (responseHeader != null) && (responseStatus < 500);
+        if (breakerAllowed) {
+            breakerAllowed = false;
+            if (!attempted) {
+                c.getCircuitBreaker().abandon(endpoint);
+            } else if (ok) {
+                c.getCircuitBreaker().recordSuccess(endpoint);
+            } else {
+                c.getCircuitBreaker().recordFailure(endpoint);
             }
-            return;
         }
+        if (limited) {
+            limited = false;
+            Transmitter next = null;
+            if (attempted) {
+                next = c.getConcurrencyLimiter().release(endpoint, System.currentTimeMillis() - admitted, ok);
+            } else {
+                next = c.getConcurrencyLimiter().cancel(endpoint);
+            }
+            if (next != null) {
+                next.resumed = true;
+                next.limited = true;
+                c.getTransmitExecutor().resume(next);
+            }
+        }
+        if (completion != null) {
+            completion.run();
+        }
+    }
 
-        SpineSecurityContext tlsContext = c.getSecurityContext();
-//        SSLSocketFactory sf = tlsContext.getSocketFactory();
-        String h = sendable.getResolvedUrl();
-        String host = null;
-        int port = 443;
+    @Override
+    public void run() {
+        boolean handedOff = false;
         try {
-            if (h == null) {
-                // Retry of persisted reliable message from previous MHS session
-                //
-                host = ((org.warlock.spine.messaging.EbXmlMessage) sendable).getHost();
-            } else {
-                sendable.persist();
-                URL u = new URL(h);
-                host = u.getHost();
-                port = (u.getPort() == -1) ? u.getDefaultPort() : u.getPort();
-            }
-            //Override host and port when using Proxy
-            String proxyhost = System.getProperty(PROXYHOST);
-            if(proxyhost != null && (proxyhost.trim().length() != 0)){
-                host = proxyhost;
-            }
-            String p = System.getProperty(PROXYPORT);
-            if ((p != null) && (p.trim().length() != 0)) {
-                try {
-                    int proxyport = Integer.parseInt(p);
-                    port = proxyport;
-                } catch (NumberFormatException e) {
-                    System.err.println("Asynchronous wait period not a valid integer - " + e.toString());
-                }
+            ConnectionManager c = ConnectionManager.getInstance();
+            if (sendable.isPastDeadline()) {
+                pastDeadline(c);
+                return;
             }
-            try (Socket s = tlsContext.createSocket(host, port)) {
-                int replyLength = -1;
-                SessionCaptor sc = c.getSessionCaptor();
-                if (sc == null) {
-                    sendable.write(s.getOutputStream());
-                    replyLength = getHeader(s.getInputStream());
-                    if (replyLength == -1) {
-                        SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponse", "Could not read response sending " + sendable.getMessageId());
-                        s.close();
-                        return;
-                    }
-                    if (replyLength > 0)
-                        readSynchronousReply(s.getInputStream(), replyLength);
-                } else {
-                    ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-                    TeeOutputStream tos = new TeeOutputStream(s.getOutputStream(), outStream);
-                    sendable.write(tos);
-                    sendable.setOnTheWireRequest(outStream.toByteArray());
-                    ByteArrayOutputStream inStream = new ByteArrayOutputStream();
-                    TeeInputStream tis = new TeeInputStream(s.getInputStream(), inStream);                    
-                    replyLength = getHeader(tis);
-                    if (replyLength == -1) {
-                        SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponse", "Could not read response sending " + sendable.getMessageId());
-                        s.close();
-                        sc.capture(sendable);
-                        return;
+            if (!resumed) {
+                resolveEndpoint();
+                endpoint = ConnectionPool.endpointKey(host, port);
+                CircuitBreaker breaker = c.getCircuitBreaker();
+                if (!breaker.allowRequest(endpoint)) {
+                    if (c.isAwaitingAck(sendable.getMessageId())) {
+                        sendable.recordDeferral();
+                    } else {
+                        sendFailed("Circuit open for " + endpoint);
                     }
-                    if (replyLength > 0) {
-                        readSynchronousReply(tis, replyLength);
-                        sendable.setOnTheWireResponse(inStream.toByteArray());
+                    return;
+                }
+                if (!sendable.recordTry()) {
+                    breaker.abandon(endpoint);
+                    if (sendable.getMessageId() != null) {
+                        c.removeRequest(sendable.getMessageId());
+                        sendable.expire();
                     }
-                    sc.capture(sendable);
+                    return;
                 }
-            }
-            if (sendable.getType() == Sendable.SOAP) {
-                if (sendable.getSynchronousResponse() == null) {
-                    SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponseReceived", "No response to " + sendable.getMessageId());
+                breakerAllowed = true;
+                if (c.isAwaitingAck(sendable.getMessageId())) {
+                    RetryPolicy policy = c.getRetryPolicy(sendable.getSoapAction());
+                    sendable.setRetryDelay(policy.getRetryDelay(sendable, sendable.getRetryDelay()));
+                }
+                if (!c.getConcurrencyLimiter().acquire(endpoint, this)) {
+                    handedOff = true;
                     return;
                 }
-                SynchronousResponseHandler handler = c.getSynchronousResponseHandler(sendable.getSoapAction());
-                handler.handle((SpineSOAPRequest) sendable);
+                limited = true;
+            }
+            admitted = System.currentTimeMillis();
+            attempted = true;
+            NioTransmitEngine engine = c.getNioTransmitEngine();
+            if (engine != null) {
+                ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+                sendable.write(outStream);
+                byte[] request = outStream.toByteArray();
+                if (c.getSessionCaptor() != null) {
+                    sendable.setOnTheWireRequest(request);
+                }
+                engine.submit(this, host, port, request);
+                handedOff = true;
                 return;
             }
-            if (sendable.getMessageId() != null) { // Don't do this for asynchronous acks
-                if (sendable.getSynchronousResponse() != null) {
-                    if ((responseHeader != null) && (responseHeader.contains("HTTP 5"))) {
-                        SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.HTTP500received", "HTTP 500 received sending " + sendable.getMessageId());
-                        c.removeRequest(sendable.getMessageId());
-
-                    } else {
-                        if (sendable.getSynchronousResponse().contains(sendable.getMessageId())) {
-                            c.registerAck(sendable.getMessageId());
-                        }
-                        if (sendable.getSynchronousResponse().contains("Bad request")) {
-                            c.registerAck(sendable.getMessageId());
-                            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.HTTP500received", "Bad request received sending " + sendable.getMessageId());
-                        }
+            ConnectionPool pool = c.getConnectionPool();
+            PooledConnection pc = pool.borrow(host, port);
+            int replyLength = -1;
+            try {
+                try {
+                    replyLength = exchange(pc, c.getSessionCaptor());
+                } catch (IOException eStale) {
+                    // A re-used keep-alive connection may have been closed by the other
+                    // end since it was validated. If we didn't get any of a response,
+                    // discard it along with any other idle connections to the same
+                    // endpoint, and try once more on a new connection.
+                    //
+                    if (!pc.isReused() || (responseHeader != null) || (eStale instanceof SocketTimeoutException)) {
+                        throw eStale;
                     }
+                    pool.release(pc, false);
+                    pc = null;
+                    pool.purge(host, port);
+                    pc = pool.borrow(host, port);
+                    replyLength = exchange(pc, c.getSessionCaptor());
                 }
+            } finally {
+                pool.release(pc, reusable);
             }
+            processResponse(replyLength);
         } catch (Exception eIo) {
-            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.IOException", "IOException sending " + sendable.getMessageId() + eIo.getMessage());
+            logFailure(eIo);
+            sendFailed(eIo.toString());
+        } finally {
+            if (!handedOff) {
+                complete();
+            }
         }
     }
-    
-    private void readSynchronousReply(InputStream is, int replyLength) 
-    {
-        // Read the response. If the request was synchronous, process the response
-        // using the handler. Otherwise do ebXML ack processing.
-        //
-        byte[] buffer = new byte[replyLength];
-        int rd = 0;
-        int r = -1;
-        do {
+
+    /**
+     * Called by the NioTransmitEngine, on one of its completion threads, when a
+     * response has been read.
+     *
+     * @param header Response status line and headers, or null if the connection
+     * closed without a response.
+     * @param status HTTP status code
+     * @param body Response body
+     * @param raw Complete response as read, for the session captor
+     */
+    void nioResponse(String header, int status, byte[] body, byte[] raw) {
+        try {
+            ConnectionManager c = ConnectionManager.getInstance();
+            responseHeader = header;
+            responseStatus = status;
+            int replyLength = -1;
+            if (header == null) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponse", "Could not read response sending " + sendable.getMessageId());
+            } else {
+                replyLength = body.length;
+                if (replyLength > 0) {
+                    sendable.setSynchronousResponse(new String(body));
+                }
+            }
+            if (c.getSessionCaptor() != null) {
+                if (replyLength > 0) {
+                    sendable.setOnTheWireResponse(raw);
+                }
+                c.getSessionCaptor().capture(sendable);
+            }
+            processResponse(replyLength);
+        } catch (Exception eIo) {
+            logFailure(eIo);
+            sendFailed(eIo.toString());
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * Called by the NioTransmitEngine, on one of its completion threads, when
+     * the exchange failed or timed out.
+     */
+    void nioFailed(Exception e) {
+        try {
+            logFailure(e);
+            sendFailed(e.toString());
+        } finally {
+            complete();
+        }
+    }
+
+    private void resolveEndpoint()
+            throws Exception {
+        String h = sendable.getResolvedUrl();
+        if (h == null) {
+            // Retry of persisted reliable message from previous MHS session
+            //
+            host = ((org.warlock.spine.messaging.EbXmlMessage) sendable).getHost();
+        } else {
+            sendable.persist();
+            URL u = new URL(h);
+            host = u.getHost();
+            port = (u.getPort() == -1) ? u.getDefaultPort() : u.getPort();
+        }
+        host = proxyHost(host);
+        port = proxyPort(port);
+    }
+
+    /**
+     * Work out the "host:port" endpoint key that a message will be sent to,
+     * after any proxy override.
+     *
+     * @param s Message
+     * @return Endpoint key
+     * @throws MalformedURLException
+     */
+    static String endpointFor(Sendable s)
+            throws MalformedURLException {
+        if (s.getResolvedUrl() == null) {
+            // Persisted reliable message from previous MHS session
+            //
+            return ConnectionPool.endpointKey(proxyHost(((org.warlock.spine.messaging.EbXmlMessage) s).getHost()), proxyPort(443));
+        }
+        return endpointFor(s.getResolvedUrl());
+    }
+
+    /**
+     * Work out the "host:port" endpoint key that a message to the given URL
+     * will be sent to, after any proxy override.
+     *
+     * @param url Resolved URL
+     * @return Endpoint key
+     * @throws MalformedURLException
+     */
+    static String endpointFor(String url)
+            throws MalformedURLException {
+        URL u = new URL(url);
+        int p = (u.getPort() == -1) ? u.getDefaultPort() : u.getPort();
+        return ConnectionPool.endpointKey(proxyHost(u.getHost()), proxyPort(p));
+    }
+
+    //Override host and port when using Proxy
+    static String proxyHost(String h) {
+        String proxyhost = System.getProperty(PROXYHOST);
+        if(proxyhost != null && (proxyhost.trim().length() != 0)){
+            return proxyhost;
+        }
+        return h;
+    }
+
+    static int proxyPort(int port) {
+        String p = System.getProperty(PROXYPORT);
+        if ((p != null) && (p.trim().length() != 0)) {
             try {
-                r = is.read(buffer, rd, replyLength - rd);
+                return Integer.parseInt(p);
+            } catch (NumberFormatException e) {
+                System.err.println("Asynchronous wait period not a valid integer - " + e.toString());
+            }
+        }
+        return port;
+    }
+
+    /**
+     * Count and log a failed send, with timeouts logged separately.
+     */
+    private void logFailure(Exception e) {
+        if (ConnectionManager.getInstance().getTransmitTimeouts().recordFailure(e) != 0) {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.timeout", "Timeout sending " + sendable.getMessageId() + " to " + endpoint + ": " + e.getMessage());
+        } else {
+            SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.IOException", "IOException sending " + sendable.getMessageId() + e.getMessage());
+        }
+    }
+
+    /**
+     * The message's deadline passed before it got to the wire. A reliable
+     * message is expired rather than retried.
+     */
+    private void pastDeadline(ConnectionManager c) {
+        c.getTransmitTimeouts().recordDeadlinePassed();
+        SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.deadline", "Deadline passed before sending " + sendable.getMessageId());
+        if (c.isAwaitingAck(sendable.getMessageId())) {
+            c.removeRequest(sendable.getMessageId());
+            sendable.expire();
+        } else {
+            sendable.completeOutcome(DeliveryOutcome.EXPIRED, 0, "Deadline passed before sending");
+        }
+    }
+
+    /**
+     * Records a failed exchange on the message's outcome, unless it is a reliable
+     * message that will be retried.
+     */
+    private void sendFailed(String detail) {
+        if (!ConnectionManager.getInstance().isAwaitingAck(sendable.getMessageId())) {
+            sendable.completeOutcome(DeliveryOutcome.FAILED, Math.max(responseStatus, 0), detail);
+        }
+    }
+
+    private void processResponse(int replyLength)
+            throws Exception {
+        if (replyLength == -1) {
+            sendFailed("No response");
+            return;
+        }
+        ConnectionManager c = ConnectionManager.getInstance();
+        if (sendable.getType() == Sendable.SOAP) {
+            if (sendable.getSynchronousResponse() == null) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponseReceived", "No response to " + sendable.getMessageId());
+                sendable.completeOutcome(DeliveryOutcome.FAILED, responseStatus, "No response");
+                return;
             }
-            catch (IOException e) {
-                SpineToolsLogger.getInstance().log("IOException caught reading reply: " + e.toString());
-                break;
+            SynchronousResponseHandler handler = c.getSynchronousResponseHandler(sendable.getSoapAction());
+            handler.handle((SpineSOAPRequest) sendable);
+            sendable.completeOutcome(DeliveryOutcome.DELIVERED, responseStatus, null);
+            return;
+        }
+        String id = sendable.getMessageId();
+        if (id != null) { // Don't do this for asynchronous acks
+            // Classify on the status first: a 5xx may have no body at all
+            //
+            if (responseStatus >= 500) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.HTTP500received", "HTTP " + responseStatus + " received sending " + id);
+                c.removeRequest(id);
+                sendable.completeOutcome(DeliveryOutcome.HTTP_ERROR, responseStatus, "HTTP " + responseStatus + " received");
+                return;
             }
-            if (r == -1) {
-                SpineToolsLogger.getInstance().log("Unexpected EOF after reading " + rd + " of " + replyLength + " bytes");
-                break;
+            String r = sendable.getSynchronousResponse();
+            if (r != null) {
+                if (r.contains("Bad request")) {
+                    c.registerMessageError(id, "Bad request");
+                    SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.HTTP500received", "Bad request received sending " + id);
+                } else if (r.contains(id)) {
+                    // Synchronous ack, or a synchronous MessageError
+                    //
+                    if (r.contains("ErrorList")) {
+                        c.registerMessageError(id, "ErrorList in synchronous response");
+                    } else {
+                        c.registerAck(id);
+                    }
+                }
+            }
+        }
+        // Anything not waiting for an asynchronous ack is finished with
+        //
+        if (!c.isAwaitingAck(id)) {
+            if (responseStatus < 300) {
+                sendable.completeOutcome(DeliveryOutcome.DELIVERED, responseStatus, null);
+            } else {
+                sendable.completeOutcome(DeliveryOutcome.FAILED, responseStatus, "HTTP " + responseStatus + " received");
             }
-            rd += r;
-        } while (replyLength > rd);
-        sendable.setSynchronousResponse(new String(buffer));
+        }
     }
-    
-    private int getHeader(InputStream is)
-            throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int length = -1;
-        String line = null;
-        do {
-            line = readLine(is);
-            if (line == null) {
-                break;
+
+    /**
+     * Write the message to the connection and read the response. Sets "reusable"
+     * if the connection can go back into the pool afterwards.
+     *
+     * @param pc Connection
+     * @param sc Session captor, or null
+     * @return Response content length, or -1 if no response was read.
+     * @throws IOException if the connection was closed before any response was
+     * received, so that the caller can tell a stale pooled connection.
+     * @throws Exception
+     */
+    private int exchange(PooledConnection pc, SessionCaptor sc)
+            throws Exception {
+        responseHeader = null;
+        reusable = false;
+        HttpCodec codec = pc.getCodec();
+        ByteArrayOutputStream inStream = null;
+        if (sc == null) {
+            sendable.write(pc.getOutputStream());
+        } else {
+            ByteArrayOutputStream outStream = new ByteArrayOutputStream();
+            TeeOutputStream tos = new TeeOutputStream(pc.getOutputStream(), outStream);
+            sendable.write(tos);
+            sendable.setOnTheWireRequest(outStream.toByteArray());
+            inStream = new ByteArrayOutputStream();
+            codec.setCapture(inStream);
+        }
+        try {
+            if (!codec.readHead()) {
+                noResponse(pc);
+                if (sc != null) {
+                    sc.capture(sendable);
+                }
+                return -1;
+            }
+            responseHeader = codec.getHeaderBlock();
+            responseStatus = codec.getStatus();
+            byte[] body = codec.readBody();
+            if (body.length > 0) {
+                sendable.setSynchronousResponse(new String(body));
+            }
+            if (!codec.isBodyComplete()) {
+                SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponse", "Unexpected EOF after reading " + body.length + " bytes of response to " + sendable.getMessageId());
             }
-            if (line.toLowerCase().contains("content-length: ")) {
-                String l = line.substring("content-length: ".length()).trim();
-                length = Integer.parseInt(l);
+            if (sc != null) {
+                if (body.length > 0) {
+                    sendable.setOnTheWireResponse(inStream.toByteArray());
+                }
+                sc.capture(sendable);
             }
-            sb.append(line);
-        } while (line.length() != 0);
-        responseHeader = sb.toString();
-        return length;
+            reusable = codec.isKeepAlive() && codec.isBodyComplete() && !codec.hasBuffered();
+            return body.length;
+        } finally {
+            codec.setCapture(null);
+        }
     }
 
-    private String readLine(InputStream is)
+    private void noResponse(PooledConnection pc)
             throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int i = 0;
-        do {
-            i = is.read();
-            if (i == -1) {
-                break;
-            }
-            if (i == 0xa) // \n
-            {
-                break;
-            }
-            if (i != 0xd) {  // \r
-                sb.append(new Character((char) i));
-            }
-        } while (true);
-        return sb.toString();
+        if (pc.isReused()) {
+            throw new IOException("Pooled connection closed by remote end");
+        }
+        SpineToolsLogger.getInstance().log("org.warlock.spine.connection.Transmitter.noResponse", "Could not read response sending " + sendable.getMessageId());
     }
 }
@@ -16,6 +16,8 @@
  */
 package org.warlock.spine.messaging;
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.UUID;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -43,6 +45,11 @@ public abstract class Attachment {
 
     protected String schema = null;
 
+    /**
+     * For a received attachment, the part of the message it was read from.
+     */
+    protected MimeMultipart.Part receivedPart = null;
+
     /**
      *
      * @param m MIME Type
@@ -148,6 +155,26 @@ public abstract class Attachment {
         return headerserialisation;
     }
 
+    /**
+     * Read-only view of the body of a received attachment, as it was
+     * received and without decoding it.
+     *
+     * @return Body, or null if the attachment was not received.
+     */
+    public ByteBuffer getReceivedBody() {
+        return (receivedPart == null) ? null : receivedPart.getBody();
+    }
+
+    /**
+     * Stream over the body of a received attachment, as it was received and
+     * without decoding it.
+     *
+     * @return Body stream, or null if the attachment was not received.
+     */
+    public InputStream getReceivedBodyStream() {
+        return (receivedPart == null) ? null : receivedPart.getBodyStream();
+    }
+
     /**
      *
      * @return Content Id
@@ -0,0 +1,78 @@
+/*
+
+Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance <damian.murphy@hscic.gov.uk>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.warlock.spine.messaging;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with decorrelated jitter, so that a backlog of messages
+ * built up during an outage doesn't all retry on the same timer tick. Each
+ * delay is picked at random between the SDS nhsMHSRetryInterval and three times
+ * the previous delay, capped at a multiple of the retry interval.<BR><BR>
+ * 
+ * The retry interval is always the floor. The delay is also capped so that the
+ * retries left can still all be made inside the message's persistDuration.
+ */
+public class BackoffRetryPolicy 
+        implements RetryPolicy
+{
+    /**
+     * System property. Largest delay, as a multiple of the retry interval. Default 8.
+     */
+    public static final String MAX_MULTIPLIER = "org.warlock.spine.messaging.retrybackoff.maxmultiplier";
+    
+    private static final long DEFAULT_MAX_MULTIPLIER = 8;
+    
+    private long maxMultiplier = DEFAULT_MAX_MULTIPLIER;
+    
+    public BackoffRetryPolicy() {
+        String p = System.getProperty(MAX_MULTIPLIER);
+        if (p != null) {
+            try {
+                maxMultiplier = Math.max(1, Long.parseLong(p.trim()));
+            }
+            catch (NumberFormatException e) {
+                System.err.println("Invalid " + MAX_MULTIPLIER + " " + p + ", using " + DEFAULT_MAX_MULTIPLIER);
+            }
+        }
+    }
+    
+    @Override
+    public long getRetryDelay(Sendable s, long previous) {
+        long floor = Math.max(0, s.getRetryInterval() * 1000L);
+        if (floor == 0)
+            return 0;
+        long cap = floor * maxMultiplier;
+        long upper = Math.min(cap, Math.max(floor, previous) * 3);
+        long delay = floor;
+        if (upper > floor)
+            delay = ThreadLocalRandom.current().nextLong(floor, upper + 1);
+        
+        // Leave room for the remaining retries before the persistDuration runs out
+        //
+        int left = s.getRetryCount() - s.getTries();
+        if ((left > 0) && (s.getPersistDuration() > 0)) {
+            long expiry = s.getStarted().getTimeInMillis() + (s.getPersistDuration() * 1000L);
+            long room = (expiry - System.currentTimeMillis()) / left;
+            if (room < delay)
+                delay = Math.max(floor, room);
+        }
+        return delay;
+    }
+}
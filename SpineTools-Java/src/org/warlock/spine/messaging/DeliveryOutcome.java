@@ -0,0 +1,129 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.messaging;
+
+/**
+ * Final result of sending a message, as delivered through the future returned
+ * by ConnectionManager.sendAsync(). Reliable ebXML messages get an outcome
+ * when they are acknowledged, have an error returned, or expire. Everything
+ * else gets an outcome when the exchange with the remote end finishes.
+ */
+public class DeliveryOutcome {
+
+    // Status values
+    //
+    /**
+     * A reliable message was acknowledged, either synchronously or asynchronously.
+     */
+    public static final int ACKNOWLEDGED = 1;
+
+    /**
+     * An ebXML MessageError was received for the message, or the remote end
+     * reported a bad request.
+     */
+    public static final int MESSAGE_ERROR = 2;
+
+    /**
+     * The remote end returned an HTTP 5xx status, so the message will not be
+     * retried.
+     */
+    public static final int HTTP_ERROR = 3;
+
+    /**
+     * Retries or the persist duration ran out without an acknowledgment.
+     */
+    public static final int EXPIRED = 4;
+
+    /**
+     * A message not needing an acknowledgment was sent and a response read.
+     * For synchronous requests the response is available from the Sendable.
+     */
+    public static final int DELIVERED = 5;
+
+    /**
+     * A message not needing an acknowledgment could not be sent, or no
+     * response was read.
+     */
+    public static final int FAILED = 6;
+
+    private static final String[] STATUSNAMES = {"UNDEFINED", "ACKNOWLEDGED", "MESSAGE_ERROR", "HTTP_ERROR", "EXPIRED", "DELIVERED", "FAILED"};
+
+    private final int status;
+    private final String messageId;
+    private final int httpStatus;
+    private final String detail;
+    private final int tries;
+    private final long completed;
+
+    /**
+     * @param s Status, one of the constants on this class
+     * @param m Message id, may be null for messages such as asynchronous acks
+     * @param h HTTP status code of the last response, or zero if none was read
+     * @param d Free-text detail, may be null
+     * @param t Number of attempts made
+     */
+    public DeliveryOutcome(int s, String m, int h, String d, int t) {
+        status = s;
+        messageId = m;
+        httpStatus = h;
+        detail = d;
+        tries = t;
+        completed = System.currentTimeMillis();
+    }
+
+    public int getStatus() { return status; }
+    public String getMessageId() { return messageId; }
+    public int getHttpStatus() { return httpStatus; }
+    public String getDetail() { return detail; }
+    public int getTries() { return tries; }
+
+    /**
+     * @return Time, in milliseconds since the epoch, that the outcome was known.
+     */
+    public long getCompleted() { return completed; }
+
+    /**
+     * @return true if the status is ACKNOWLEDGED or DELIVERED.
+     */
+    public boolean isSuccess() {
+        return ((status == ACKNOWLEDGED) || (status == DELIVERED));
+    }
+
+    public String getStatusName() {
+        if ((status < 0) || (status >= STATUSNAMES.length)) {
+            return STATUSNAMES[0];
+        }
+        return STATUSNAMES[status];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(getStatusName());
+        sb.append(" ");
+        sb.append(messageId);
+        if (httpStatus != 0) {
+            sb.append(" HTTP ");
+            sb.append(httpStatus);
+        }
+        if (detail != null) {
+            sb.append(": ");
+            sb.append(detail);
+        }
+        return sb.toString();
+    }
+}
@@ -34,7 +34,7 @@ import org.warlock.spine.logging.SpineToolsLogger;
 public class EbXmlAcknowledgment 
     extends Sendable
 {
-    public static final String ACK_HTTP_HEADER = "POST /reliablemessaging/intermediary HTTP/1.1\r\nHost: __HOST__\r\nContent-Length: __CONTENT_LENGTH__\r\nConnection: close\r\nContent-Type: text/xml\r\nSOAPaction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n";
+    public static final String ACK_HTTP_HEADER = "POST /reliablemessaging/intermediary HTTP/1.1\r\nHost: __HOST__\r\nContent-Length: __CONTENT_LENGTH__\r\nConnection: __CONNECTION__\r\nContent-Type: text/xml\r\nSOAPaction: urn:urn:oasis:names:tc:ebxml-msg:service/Acknowledgment\r\n\r\n";
     public static final String ACKSERVICE = "urn:oasis:names:tc:ebxml-msg:service:Acknowledgment";
     
     private String ack = null;
@@ -61,6 +61,8 @@ public class EbXmlAcknowledgment
         sb.replace(i, i + "__HOST__".length(), url.getHost());
         i = sb.indexOf("__CONTENT_LENGTH__");
         sb.replace(i, i + "__CONTENT_LENGTH__".length(), Integer.toString(ack.length()));
+        i = sb.indexOf("__CONNECTION__");
+        sb.replace(i, i + "__CONNECTION__".length(), ConnectionManager.getInstance().getOutboundConnectionHeader());
         sb.append(ack);
         s.write(sb.toString().getBytes());
         if(ConditionalCompilationControls.TESTHARNESS){
@@ -22,16 +22,19 @@ import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
-import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.UUID;
 import org.warlock.spine.connection.ConnectionManager;
+import org.warlock.spine.connection.HttpCodec;
 
 import org.warlock.spine.connection.SdsTransmissionDetails;
 import org.warlock.spine.connection.ConditionalCompilationControls;
@@ -48,12 +51,14 @@ public class EbXmlMessage extends Sendable {
     private static String MIMEPREFIX = "\r\n--";
     private static String MIMEPOSTFIX = "--";
     private static int MAX_MESSAGE_SIZE = 5242880; // 5MB Spine maximum message size for ebXML messages
-    private static String HTTPHEADER = "POST __CONTEXT_PATH__ HTTP/1.1\r\nHost: __HOST__\r\nSOAPAction: \"__SOAP_ACTION__\"\r\nContent-Length: __CONTENT_LENGTH__\r\nContent-Type: multipart/related; boundary=\"__MIME_BOUNDARY__\"; type=\"text/xml\"; start=\"<__START_ID__>\"\r\nConnection: close\r\n\r\n";
+    private static String HTTPHEADER = "POST __CONTEXT_PATH__ HTTP/1.1\r\nHost: __HOST__\r\nSOAPAction: \"__SOAP_ACTION__\"\r\nContent-Length: __CONTENT_LENGTH__\r\nContent-Type: multipart/related; boundary=\"__MIME_BOUNDARY__\"; type=\"text/xml\"; start=\"<__START_ID__>\"\r\nConnection: __CONNECTION__\r\n\r\n";
 
     private EbXmlMessage response = null;
     private EbXmlHeader header = null;
     private SpineHL7Message hl7message = null;
     private ArrayList<Attachment> attachments = null;
+    private MimeMultipart received = null;
+    private Charset receivedCharset = null;
     private String mimeboundary = "--=_MIME-Boundary";
     private String host = null;
     
@@ -83,7 +88,58 @@ public class EbXmlMessage extends Sendable {
      */
     public EbXmlMessage(InputStream instream)
             throws Exception {
-        synchronized (this) {
+        loadTemplates();
+
+        // Assemble from network
+        //
+        HttpCodec codec = new HttpCodec(instream);
+        if (!codec.readHead()) {
+            throw new Exception("No HTTP request received");
+        }
+        byte[] wire = codec.readBody();
+        if (!codec.isBodyComplete()) {
+            throw new Exception("Connection closed after " + wire.length + " bytes of message body");
+        }
+        parse(codec, ByteBuffer.wrap(wire), codec.getCharset(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Used to assemble an EbXmlMessage from a request that the listener has
+     * already read, so that the HTTP headers are not parsed a second time.
+     *
+     * @param head Codec holding the parsed HTTP request head
+     * @param body Request body, with any chunked encoding removed
+     * @param cs Charset to decode the body with
+     * @throws Exception if first loading acknowledgment and error templates, or
+     * parsing fails.
+     */
+    public EbXmlMessage(HttpCodec head, byte[] body, Charset cs)
+            throws Exception {
+        loadTemplates();
+        parse(head, ByteBuffer.wrap(body), cs);
+    }
+
+    /**
+     * As for EbXmlMessage(HttpCodec, byte[], Charset), for a body held in a
+     * buffer such as a mapped file. The buffer is kept, not copied, so that
+     * attachments can be read from it later.
+     *
+     * @param head Codec holding the parsed HTTP request head
+     * @param body Request body, from its position to its limit, with any
+     * chunked encoding removed
+     * @param cs Charset to decode the body with
+     * @throws Exception if first loading acknowledgment and error templates, or
+     * parsing fails.
+     */
+    public EbXmlMessage(HttpCodec head, ByteBuffer body, Charset cs)
+            throws Exception {
+        loadTemplates();
+        parse(head, body, cs);
+    }
+
+    private void loadTemplates()
+            throws Exception {
+        synchronized (EbXmlMessage.class) {
             if (acktemplate == null) {
                 try {
                     acktemplate = readTemplate("ebxmlacktemplate.txt");
@@ -101,65 +157,30 @@ public class EbXmlMessage extends Sendable {
                 }
             }
         }
+    }
 
-        // Assemble from network - note that Spine messages are NOT chunked
-        //
-        String headerline = null;
-        StringBuilder hdr = new StringBuilder();
-        HashMap<String, String> headers = new HashMap<>();
-        while ((headerline = readLine(instream)).trim().length() != 0) {
-            if (headerline.startsWith("POST")) {
-                // Frist line, grab the context path
-                int firstSpace = headerline.indexOf(" ");
-                int secondSpace = headerline.indexOf(" ", firstSpace + 1);
-                if ((firstSpace == -1) || (secondSpace == -1))
-                    throw new Exception("Malformed HTTP request line, can't parse POST context path");
-                receivedContextPath = headerline.substring(firstSpace, secondSpace);
-            } else {
-                if (!((headerline.startsWith("\t") || (headerline.startsWith(" "))))) {
-                    // This line isn't a continuation line, so process the previous line
-                    // if we have one
-                    //
-                    if (!(hdr.length() == 0)) {
-                        String h = hdr.toString();
-                        int colon = h.indexOf(":");
-                        if (colon == -1) {
-                            throw new Exception("Malformed HTTP header - no field/data delimiter colon");
-                        }
-                        headers.put(h.substring(0, colon).toUpperCase(), h.substring(colon + 1).trim());                                            
-                        // Then refresh the buffer
-                        hdr = new StringBuilder();
-                    }
-                } 
-                // Save the current line
-                hdr.append(headerline);        
-            }
-        }
-        // Reached the end of the header, but without processing the last line. So
-        // process it now.
-        //
-        String h = hdr.toString();
-        int colon = h.indexOf(":");
-        if (colon == -1) {
-            throw new Exception("Malformed HTTP header - no field/data delimiter colon");
+    private void parse(HttpCodec codec, ByteBuffer wire, Charset cs)
+            throws Exception {
+        if (codec.getMethod() == null) {
+            throw new Exception("Malformed HTTP request line, can't parse POST context path");
         }
-        headers.put(h.substring(0, colon).toUpperCase(), h.substring(colon + 1).trim());                                            
-        
-        String ctype = headers.get("CONTENT-TYPE");
+        receivedContextPath = codec.getRequestTarget();
+        String ctype = codec.getHeader("Content-Type");
         if (ctype == null) {
             throw new Exception("Malformed HTTP headers - no Content-Type found");
         }
         if (ctype.contains("multipart/related")) {
             mimeboundary = parseMimeBoundary(ctype);
         }
-        host = headers.get("HOST");
+        host = codec.getHeader("Host");
         receivedHost = host;
-        String clen = headers.get("CONTENT-LENGTH");
-        if (clen == null) {
+        if ((codec.getContentLength() == -1) && !codec.isChunked()) {
             throw new Exception("Malformed HTTP headers - no Content-Length found");
         }
-        int contentlength = Integer.parseInt(clen);
-        soapAction = headers.get("SOAPACTION");
+        soapAction = codec.getHeader("SOAPAction");
+        if (soapAction == null) {
+            throw new Exception("Malformed HTTP headers - no SOAPAction found");
+        }
         soapAction = soapAction.replace('"', ' ').trim();
 
             // There is a bug in Spine-hosted services that turns a SOAPaction starting with
@@ -169,21 +190,13 @@ public class EbXmlMessage extends Sendable {
             soapAction = soapAction.substring(4);
         }
 
-            // Read content-length bytes and parse out the various parts of the 
-        // received message. 
-        //
-        byte[] wire = new byte[contentlength];
-        int bytesRead = 0;
-        while (bytesRead < contentlength) {
-            bytesRead += instream.read(wire, bytesRead, contentlength - bytesRead);
-        }
-        String msg = new String(wire);
-
-            // Split on the mimeboundary. "msg" doesn't contain the HTTP headers so we should
-        // just be able to walk through the attachments. If we can't, report an exception
+            // Index the parts of the received message. "wire" doesn't contain the HTTP
+        // headers so we should just be able to walk through the attachments. Only the
+        // ebXML header and HL7 parts are decoded here; attachments are left in the
+        // buffer until someone asks for them. If we can't, report an exception
         //
-        int startPosition = msg.indexOf(mimeboundary, 0);
-        if (startPosition == -1) {
+        MimeMultipart mm = new MimeMultipart(wire, wire.position(), wire.remaining(), mimeboundary);
+        if (!mm.hasDelimiter()) {
                 // Need to handle the case where the content is
             // actually an asynchronous ebXML ack.
             //
@@ -192,6 +205,7 @@ public class EbXmlMessage extends Sendable {
             // manager about it. But we don't need to do any further processing.
             //
             if (ctype.toLowerCase().startsWith("text/xml")) {
+                String msg = cs.decode(wire.duplicate()).toString();
                 if (soapAction.contains("Acknowledgment")) {
                     // Remove from requests, and exit
                     String a = EbXmlAcknowledgment.getAckedMessageId(msg);
@@ -212,65 +226,53 @@ public class EbXmlMessage extends Sendable {
                     }
                     SpineToolsLogger.getInstance().log("org.warlock.spine.messaging.EbXmlMessage.MessageError", "MessageError received for " + a);
                     ConnectionManager cm = ConnectionManager.getInstance();
-                    cm.registerAck(a);
+                    cm.registerMessageError(a, "MessageError received");
                     return;
                 }
             }
             throw new Exception("Malformed message");
         }
-        int endPosition = 0;
-        int partCount = 0;
-        boolean gotEndBoundary = false;
-        do {
-            startPosition += mimeboundary.length();
-            endPosition = msg.indexOf(mimeboundary, startPosition);
-            if (endPosition == -1) {
-                gotEndBoundary = true;
-            } else {
-                switch (partCount) {
-                    case 0:
-                        header = new EbXmlHeader(msg.substring(startPosition, endPosition));
-                        if (header.getTimestamp() != null) {
-                            try {
-                                SimpleDateFormat fmt = new SimpleDateFormat(ISO8601FORMAT);
-                                started.setTime(fmt.parse(header.getTimestamp()));
-                            }
-                            catch (NumberFormatException nfe) {
-                                System.err.append(header.getTimestamp());
-                                throw nfe;
-                            }
-                            // We don't know how many attempts were actually made, so assume
-                            // one try at the start time.
-                            //
-                            lastTry = (java.util.Calendar)started.clone();
-                            tries = 1;
-                        }
-                        break;
-                    case 1:
-                        hl7message = new SpineHL7Message(msg.substring(startPosition, endPosition));
-                        break;
-                    default:
-                        if (attachments == null) {
-                            attachments = new ArrayList<>();
-                        }
-                            // IMPROVEMENT: Make this more flexible to be able to support multiple types of
-                        // ITK trunk message, just in case
-                        //
-                        if (soapAction.contains("COPC_IN000001GB01")) {
-                            try {
-                                attachments.add(new ITKDistributionEnvelopeAttachment(msg.substring(startPosition, endPosition)));
-                            } catch (Exception e) {
-                                parseException = e;
-                            }
-                        } else {
-                            attachments.add(new GeneralAttachment(msg.substring(startPosition, endPosition)));
-                        }
-                        break;
+        if (mm.getPartCount() == 0) {
+            throw new Exception("Malformed message - no complete MIME parts");
+        }
+        received = mm;
+        receivedCharset = cs;
+        header = new EbXmlHeader(mm.getPart(0).getText(cs));
+        if (header.getTimestamp() != null) {
+            try {
+                SimpleDateFormat fmt = new SimpleDateFormat(ISO8601FORMAT);
+                started.setTime(fmt.parse(header.getTimestamp()));
+            }
+            catch (NumberFormatException nfe) {
+                System.err.append(header.getTimestamp());
+                throw nfe;
+            }
+            // We don't know how many attempts were actually made, so assume
+            // one try at the start time.
+            //
+            lastTry = (java.util.Calendar)started.clone();
+            tries = 1;
+        }
+        if (mm.getPartCount() > 1) {
+            hl7message = new SpineHL7Message(mm.getPart(1).getText(cs));
+        }
+            // IMPROVEMENT: Make this more flexible to be able to support multiple types of
+        // ITK trunk message, just in case
+        //
+        // ITK distribution envelopes are still parsed here rather than on demand,
+        // because a bad one makes the message fail (see getParseException()) and
+        // that has to be known before the acknowledgment is sent.
+        //
+        if ((mm.getPartCount() > 2) && soapAction.contains("COPC_IN000001GB01")) {
+            attachments = new ArrayList<>();
+            for (int i = 2; i < mm.getPartCount(); i++) {
+                try {
+                    attachments.add(new ITKDistributionEnvelopeAttachment(mm.getPart(i), cs));
+                } catch (Exception e) {
+                    parseException = e;
                 }
-                partCount++;
-                startPosition = endPosition;
             }
-        } while (!gotEndBoundary);
+        }
         persistDuration = ConnectionManager.getInstance().getPersistDuration(header.getSvcIA());
     }
 
@@ -298,7 +300,7 @@ public class EbXmlMessage extends Sendable {
     }
 
     public void addAttachment(Attachment a) {
-        attachments.add(a);
+        getAttachments().add(a);
     }
 
     public String makeEbXmlNack(String ecode, String ecodecontext, String edesc)
@@ -427,27 +429,6 @@ public class EbXmlMessage extends Sendable {
         return mb.toString();
     }
 
-    /**
-     * Internal call to read HTTP headers without a .Net buffered reader messing
-     * up the rest of the stream content.
-     */
-    private String readLine(InputStream s)
-            throws IOException {
-        StringBuilder sb = new StringBuilder();
-        int c = -1;
-        while ((c = s.read()) != '\n') {
-            if (c == -1) {
-                break;
-            } else {
-                if (c != '\r') {
-                    sb.append((char) c);
-                }
-            }
-        }
-        sb.append((char) c);
-        return sb.toString();
-    }
-
     /**
      * Construct an EbXmlMessage for sending.
      *
@@ -481,6 +462,7 @@ public class EbXmlMessage extends Sendable {
         header = new EbXmlHeader(this, s);
         header.setMyPartyKey(cm.getMyPartyKey());
         type = EBXML;
+        transmissionDetails = s;
         hl7message = m;
         String svcurl = cm.resolveUrl(s.getSvcIA());
         if (svcurl == null) {
@@ -558,7 +540,7 @@ public class EbXmlMessage extends Sendable {
         sb.append(mimeboundary);
         sb.append(hl7message.makeMimeHeader());
         sb.append(hl7message.serialise());
-        if (attachments != null) {
+        if (getAttachments() != null) {
             for (Attachment a : attachments) {
                 sb.append(MIMEPREFIX);
                 sb.append(mimeboundary);
@@ -611,6 +593,7 @@ public class EbXmlMessage extends Sendable {
         soapAction = sa.toString();
         substitute(sb, "__SOAP_ACTION__", soapAction);
         substitute(sb, "__CONTENT_LENGTH__", String.valueOf(l));
+        substitute(sb, "__CONNECTION__", ConnectionManager.getInstance().getOutboundConnectionHeader());
         substitute(sb, "__MIME_BOUNDARY__", mimeboundary);
         substitute(sb, "__START_ID__", header.getContentId());
         return sb.toString();
@@ -636,7 +619,59 @@ public class EbXmlMessage extends Sendable {
         hl7message = value;
     }
 
-    public ArrayList<Attachment> getAttachments() {
+    /**
+     * Get the attachments. For a received message these are made from the
+     * received parts the first time this is called, without decoding their
+     * bodies.
+     *
+     * @return Attachments, or null if a received message has none.
+     */
+    public synchronized ArrayList<Attachment> getAttachments() {
+        if ((attachments == null) && (received != null) && (received.getPartCount() > 2)) {
+            attachments = new ArrayList<>();
+            for (int i = 2; i < received.getPartCount(); i++) {
+                attachments.add(new GeneralAttachment(received.getPart(i), receivedCharset));
+            }
+        }
         return attachments;
     }
+
+    /**
+     * @return Number of MIME parts in a received message, including the ebXML
+     * header and HL7 parts, or zero if the message was not received.
+     */
+    public int getReceivedPartCount() {
+        return (received == null) ? 0 : received.getPartCount();
+    }
+
+    /**
+     * Get a MIME part of a received message, for access to its headers and to
+     * views of its body that don't copy or decode it.
+     *
+     * @param i Part number. 0 is the ebXML header, 1 the HL7 part, and 2
+     * onwards the attachments.
+     * @return The part
+     */
+    public MimeMultipart.Part getReceivedPart(int i) {
+        if (received == null) {
+            throw new IndexOutOfBoundsException("Not a received message");
+        }
+        return received.getPart(i);
+    }
+
+    /**
+     * @param i Part number, as for getReceivedPart()
+     * @return Read-only view of the body of a received MIME part.
+     */
+    public ByteBuffer getReceivedPartBody(int i) {
+        return getReceivedPart(i).getBody();
+    }
+
+    /**
+     * @param i Part number, as for getReceivedPart()
+     * @return Stream over the body of a received MIME part.
+     */
+    public InputStream getReceivedPartStream(int i) {
+        return getReceivedPart(i).getBodyStream();
+    }
 }
@@ -0,0 +1,32 @@
+/*
+
+Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance <damian.murphy@hscic.gov.uk>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.warlock.spine.messaging;
+
+/**
+ * Retries at the SDS nhsMHSRetryInterval after each try. This is the original
+ * retry behaviour.
+ */
+public class FixedIntervalRetryPolicy 
+        implements RetryPolicy
+{
+    @Override
+    public long getRetryDelay(Sendable s, long previous) {
+        return s.getRetryInterval() * 1000L;
+    }
+}
@@ -14,6 +14,7 @@
  limitations under the License.
  */
 package org.warlock.spine.messaging;
+import java.nio.charset.Charset;
 import org.apache.commons.codec.binary.Base64;
 /**
  * Note that the current "implementation" of this class is a placeholder.
@@ -23,6 +24,7 @@ import org.apache.commons.codec.binary.Base64;
 public class GeneralAttachment extends Attachment {
 
     private String body = null;
+    private Charset charset = null;
 
     /**
      * Note that the current "implementation" of this class is a placeholder.
@@ -37,6 +39,24 @@ public class GeneralAttachment extends Attachment {
         body = stripMimeHeaders(m);
     }
 
+    /**
+     * For a received message. The body is left in the received buffer and
+     * only decoded if serialise() is called.
+     *
+     * @param p Received MIME part
+     * @param cs Charset of the received message
+     */
+    GeneralAttachment(MimeMultipart.Part p, Charset cs) {
+        receivedPart = p;
+        charset = cs;
+        mimetype = p.getContentType();
+        String id = p.getContentId();
+        if (id != null) {
+            contentid = id;
+        }
+        headerserialisation = p.getHeaders();
+    }
+
     @Override
     public String getEbxmlReference() {
         StringBuilder sb = new StringBuilder(REFERENCE);
@@ -48,9 +68,10 @@ public class GeneralAttachment extends Attachment {
         return sb.toString();
     }
 
-    public void setBody(String s) { body = s; }
+    public void setBody(String s) { body = s; receivedPart = null; }
     public void setBody(byte[] b)
     {
+        receivedPart = null;
         Base64 b64 = new Base64();
         byte[] enc = b64.encode(b);
         body = new String(enc);
@@ -58,6 +79,9 @@ public class GeneralAttachment extends Attachment {
     
     @Override
     public String serialise() {
+        if ((body == null) && (receivedPart != null)) {
+            return receivedPart.getBodyText(charset);
+        }
         return body;
     }
 
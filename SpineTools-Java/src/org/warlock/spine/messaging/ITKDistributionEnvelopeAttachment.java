@@ -17,6 +17,7 @@
  */
 package org.warlock.spine.messaging;
 
+import java.nio.charset.Charset;
 import org.warlock.itk.distributionenvelope.DistributionEnvelope;
 import org.warlock.itk.distributionenvelope.DistributionEnvelopeHelper;
 
@@ -41,6 +42,24 @@ public class ITKDistributionEnvelopeAttachment
         mimetype = MIME_TYPE;
     }
 
+    /**
+     * For a received message, parsing the distribution envelope straight from
+     * the part body.
+     *
+     * @param p Received MIME part
+     * @param cs Charset of the received message
+     * @throws Exception if the distribution envelope can't be parsed
+     */
+    ITKDistributionEnvelopeAttachment(MimeMultipart.Part p, Charset cs)
+            throws Exception {
+        receivedPart = p;
+        headerserialisation = p.getHeaders();
+        DistributionEnvelopeHelper deh = DistributionEnvelopeHelper.getInstance();
+        distributionEnvelope = deh.getDistributionEnvelope(p.getBodyText(cs));
+        description = DEFAULT_DESCRIPTION;
+        mimetype = MIME_TYPE;
+    }
+
     public ITKDistributionEnvelopeAttachment(DistributionEnvelope d)
             throws Exception {
         distributionEnvelope = d;
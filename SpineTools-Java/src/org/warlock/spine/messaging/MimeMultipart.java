@@ -0,0 +1,324 @@
+/*
+
+ Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance damian.murphy@hscic.gov.uk
+
+ Licensed under the Apache License, Version 2.0 (the "License");
+ you may not use this file except in compliance with the License.
+ You may obtain a copy of the License at
+
+ http://www.apache.org/licenses/LICENSE-2.0
+
+ Unless required by applicable law or agreed to in writing, software
+ distributed under the License is distributed on an "AS IS" BASIS,
+ WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ See the License for the specific language governing permissions and
+ limitations under the License.
+ */
+package org.warlock.spine.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Index of the parts of a received MIME multipart body, kept as offsets into
+ * the buffer the body was read into rather than as copies of each part.<BR><BR>
+ *
+ * The buffer is scanned once, from start to end, for the boundary delimiter.
+ * A part runs from just after one delimiter to the start of the next, so
+ * whatever follows the last delimiter (the closing "--" and any epilogue) is
+ * not a part, which is how the String parser this replaces split messages.
+ * Header/body splitting of each part is done the first time it is asked
+ * for.<BR><BR>
+ *
+ * The body may be in a byte array or in any ByteBuffer, including a file
+ * mapped into memory for a large message that has been spilled to disk, in
+ * which case nothing but the decoded headers and whatever parts are asked for
+ * as text is ever copied onto the heap.<BR><BR>
+ *
+ * MIME structure is taken to be ASCII, so the boundary and part headers are
+ * matched as ISO-8859-1 bytes whatever the charset of the part bodies. The
+ * buffer is not copied and must not be changed while the index is in use.
+ */
+public class MimeMultipart {
+
+    private static final byte CR = 13;
+    private static final byte LF = 10;
+    private static final byte[] CRLFCRLF = {CR, LF, CR, LF};
+    private static final byte[] LFLF = {LF, LF};
+
+    private final ByteBuffer buffer;
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+    private final ArrayList<Part> parts = new ArrayList<>();
+    private int firstDelimiter = -1;
+
+    /**
+     * @param b Buffer holding the multipart body
+     * @param offset Start of the body in the buffer
+     * @param length Length of the body
+     * @param boundary Delimiter to split on, including any leading "--"
+     */
+    public MimeMultipart(byte[] b, int offset, int length, String boundary) {
+        this(ByteBuffer.wrap(b), offset, length, boundary);
+    }
+
+    /**
+     * @param b Buffer holding the multipart body. Offsets are absolute, and
+     * the buffer's position and limit are not used or changed.
+     * @param offset Start of the body in the buffer
+     * @param length Length of the body
+     * @param boundary Delimiter to split on, including any leading "--"
+     */
+    public MimeMultipart(ByteBuffer b, int offset, int length, String boundary) {
+        buffer = b.duplicate();
+        delimiter = boundary.getBytes(StandardCharsets.ISO_8859_1);
+        if (delimiter.length == 0) {
+            return;
+        }
+        int last = delimiter.length - 1;
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            skip[delimiter[i] & 0xff] = last - i;
+        }
+        int end = offset + length;
+        int p = indexOf(offset, end);
+        firstDelimiter = p;
+        while (p != -1) {
+            int s = p + delimiter.length;
+            p = indexOf(s, end);
+            if (p != -1) {
+                parts.add(new Part(s, p));
+            }
+        }
+    }
+
+    /**
+     * Boyer-Moore-Horspool search for the delimiter in [from, to).
+     */
+    private int indexOf(int from, int to) {
+        int m = delimiter.length;
+        int last = m - 1;
+        int i = from;
+        while (i + m <= to) {
+            int j = last;
+            while (buffer.get(i + j) == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += skip[buffer.get(i + last) & 0xff];
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the boundary delimiter appears in the body at all.
+     */
+    public boolean hasDelimiter() { return firstDelimiter != -1; }
+
+    public int getPartCount() { return parts.size(); }
+
+    public Part getPart(int i) { return parts.get(i); }
+
+    /**
+     * One part of the body. Offsets are into the shared buffer.
+     */
+    public class Part {
+
+        private final int start;
+        private final int end;
+        private int bodyStart = -1;
+        private int bodyEnd = -1;
+        private String headers = null;
+
+        private Part(int s, int e) {
+            start = s;
+            end = e;
+        }
+
+        /**
+         * Find the blank line between headers and body. As with
+         * Attachment.stripMimeHeaders() a bare "\n\n" is accepted if there is
+         * no "\r\n\r\n". A part with neither is all headers and no body.
+         */
+        private synchronized void split() {
+            if (bodyStart != -1) {
+                return;
+            }
+            int h = find(CRLFCRLF);
+            if (h != -1) {
+                bodyStart = h + CRLFCRLF.length;
+            } else {
+                h = find(LFLF);
+                bodyStart = (h == -1) ? end : h + LFLF.length;
+            }
+            headers = decode(start, bodyStart, StandardCharsets.ISO_8859_1);
+
+            // The line break before the next delimiter belongs to the
+            // delimiter, not to the body.
+            //
+            bodyEnd = end;
+            if ((bodyEnd > bodyStart) && (buffer.get(bodyEnd - 1) == LF)) {
+                bodyEnd--;
+                if ((bodyEnd > bodyStart) && (buffer.get(bodyEnd - 1) == CR)) {
+                    bodyEnd--;
+                }
+            }
+        }
+
+        private int find(byte[] s) {
+            for (int i = start; i + s.length <= end; i++) {
+                int j = 0;
+                while ((j < s.length) && (buffer.get(i + j) == s[j])) {
+                    j++;
+                }
+                if (j == s.length) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return The part's MIME headers as received, including the line break
+         * after the delimiter and the blank line that ends them.
+         */
+        public String getHeaders() {
+            split();
+            return headers;
+        }
+
+        /**
+         * @param name Header name, matched case-insensitively
+         * @return Header value, trimmed, or null if the part doesn't have it.
+         */
+        public String getHeader(String name) {
+            split();
+            for (String line : headers.split("\r?\n")) {
+                int c = line.indexOf(':');
+                if ((c != -1) && line.substring(0, c).trim().equalsIgnoreCase(name)) {
+                    return line.substring(c + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        public String getContentType() { return getHeader("Content-Type"); }
+
+        /**
+         * @return Content-Id without the enclosing angle brackets, or null.
+         */
+        public String getContentId() {
+            String c = getHeader("Content-Id");
+            if ((c != null) && c.startsWith("<") && c.endsWith(">")) {
+                c = c.substring(1, c.length() - 1);
+            }
+            return c;
+        }
+
+        public int getBodyLength() {
+            split();
+            return bodyEnd - bodyStart;
+        }
+
+        /**
+         * @return Read-only view of the part body. No bytes are copied.
+         */
+        public ByteBuffer getBody() {
+            split();
+            return range(bodyStart, bodyEnd).asReadOnlyBuffer();
+        }
+
+        /**
+         * @return Stream over the part body. No bytes are copied.
+         */
+        public InputStream getBodyStream() {
+            split();
+            if (buffer.hasArray()) {
+                return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + bodyStart, bodyEnd - bodyStart);
+            }
+            return new BufferInputStream(range(bodyStart, bodyEnd));
+        }
+
+        /**
+         * @param cs Charset of the body
+         * @return The body decoded, without surrounding white space.
+         */
+        public String getBodyText(Charset cs) {
+            split();
+            return decode(bodyStart, bodyEnd, cs).trim();
+        }
+
+        /**
+         * @param cs Charset of the part
+         * @return The whole part, headers and body, decoded.
+         */
+        public String getText(Charset cs) {
+            return decode(start, end, cs);
+        }
+    }
+
+    /**
+     * @return Buffer over [s, e) of the shared buffer, positioned at zero.
+     */
+    private ByteBuffer range(int s, int e) {
+        ByteBuffer d = buffer.duplicate();
+        d.clear();
+        d.position(s);
+        d.limit(e);
+        return d.slice();
+    }
+
+    private String decode(int s, int e, Charset cs) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + s, e - s, cs);
+        }
+        byte[] b = new byte[e - s];
+        range(s, e).get(b);
+        return new String(b, cs);
+    }
+
+    /**
+     * Stream over a buffer that has no array behind it.
+     */
+    private static class BufferInputStream
+            extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer b) {
+            buffer = b;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+/*
+
+Copyright 2014 Health and Social Care Information Centre
+ Solution Assurance <damian.murphy@hscic.gov.uk>
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+
+package org.warlock.spine.messaging;
+
+/**
+ * Interface for classes that decide when an unacknowledged reliable ebXml message
+ * is next retried. The Connection Manager asks the policy registered against the
+ * message's SOAP action (or the default policy) for a delay each time the message
+ * is sent, and the retry processor retries the message once that delay has passed
+ * since the send. The retry count and persistDuration still apply whatever the
+ * policy says: the message expires when either runs out.
+ * 
+ * A single instance is stored against the SOAP action, so implementations MUST be
+ * thread-safe, re-entrant and reusable.
+ */
+public interface RetryPolicy {
+    
+    /**
+     * @param s The message, which has just been sent. Its try count, retry
+     * interval, retry count, persistDuration and start time are available.
+     * @param previous The delay returned for the previous try of this message, in
+     * milliseconds, or zero if this is the first send.
+     * @return Delay in milliseconds from now until the message is next due for retry.
+     */
+    public long getRetryDelay(Sendable s, long previous);
+}
@@ -20,6 +20,7 @@ package org.warlock.spine.messaging;
 import java.io.FileOutputStream;
 import java.io.OutputStream;
 import java.util.Calendar;
+import java.util.concurrent.CompletableFuture;
 import org.warlock.spine.connection.ConnectionManager;
 import org.warlock.spine.connection.SdsTransmissionDetails;
 import org.warlock.spine.connection.ConditionalCompilationControls;
@@ -50,10 +51,15 @@ public abstract class Sendable {
     protected String soapAction = null;
     protected byte[] onTheWireRequest = null;
     protected byte[] onTheWireResponse = null;
+    protected SdsTransmissionDetails transmissionDetails = null;
 
     protected Calendar started = Calendar.getInstance();
     protected Calendar lastTry = null;
     protected int tries = 0;
+    protected long retryDelay = 0;
+    protected long deadline = 0;
+
+    private final CompletableFuture<DeliveryOutcome> outcome = new CompletableFuture<>();
 
     /**
      * Called by the ConnectionManager's retry processor when an un-acknowledged
@@ -81,7 +87,36 @@ public abstract class Sendable {
             }
         } catch (Exception e) {
             SpineToolsLogger.getInstance().log("org.warlock.spine.messaging.Sendable.expire", e);
+        } finally {
+            completeOutcome(DeliveryOutcome.EXPIRED, 0, null);
+        }
+    }
+
+    /**
+     * Future completed with the final outcome of sending this message. Callers
+     * that chain work onto this should bear in mind that it is completed on
+     * a transmitter or listener thread, and use the "async" forms of the
+     * CompletableFuture methods for anything slow.
+     * 
+     * @return the outcome future
+     */
+    public CompletableFuture<DeliveryOutcome> getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Completes the outcome future, if it isn't already complete.
+     * 
+     * @param s Status, one of the DeliveryOutcome constants
+     * @param h HTTP status code of the last response, or zero
+     * @param d Detail text, may be null
+     * @return true if this call completed the outcome
+     */
+    public boolean completeOutcome(int s, int h, String d) {
+        if (outcome.isDone()) {
+            return false;
         }
+        return outcome.complete(new DeliveryOutcome(s, getMessageId(), h, d, tries));
     }
 
     /**
@@ -99,9 +134,12 @@ public abstract class Sendable {
      * to calculate the nearest next retry time advances the last retry time and so
      * the message never gets retried.
      * 
-     * @return the last time the message was retried
+     * @return the last time the message was retried, or null if it hasn't been
      */
     public Calendar lastTry() {
+        if (lastTry == null) {
+            return null;
+        }
         return (Calendar) lastTry.clone();
     }
 
@@ -124,14 +162,75 @@ public abstract class Sendable {
         return true;
     }
 
+    /**
+     * Called from the transmitter when a send is put off without being attempted,
+     * for example because the endpoint's circuit breaker is open. Sets the last
+     * try time so that the retry timer picks the message up later, without using
+     * up a retry.
+     */
+    public void recordDeferral() {
+        lastTry = Calendar.getInstance();
+    }
+
     public int getType() {
         return type;
     }
 
+    /**
+     * @return The SDS details the message was made for, or null if it was not
+     * made from SDS details (for example acknowledgments, and reliable messages
+     * reloaded from a previous MHS session).
+     */
+    public SdsTransmissionDetails getTransmissionDetails() {
+        return transmissionDetails;
+    }
+
     public String getSoapAction() {
         return soapAction;
     }
 
+    /**
+     * Set a time after which the message is no longer worth sending. A message
+     * whose deadline has passed is not put on the wire: a reliable message is
+     * expired, and anything else gets an EXPIRED outcome.
+     * 
+     * @param d Deadline in milliseconds since the epoch, or zero for none.
+     */
+    public void setDeadline(long d) {
+        deadline = d;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return true if a deadline was set and has passed.
+     */
+    public boolean isPastDeadline() {
+        return ((deadline != 0) && (System.currentTimeMillis() > deadline));
+    }
+
+    /**
+     * @return Number of tries recorded for a message with a retry count.
+     */
+    public int getTries() {
+        return tries;
+    }
+
+    /**
+     * @return Delay in milliseconds, after the last try, before the next retry
+     * is due, as set from the retry policy. Zero if no policy has been applied,
+     * in which case the retry interval is used.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    public void setRetryDelay(long d) {
+        retryDelay = d;
+    }
+
     public int getRetryCount() {
         return retryCount;
     }
@@ -32,9 +32,8 @@ public class SpineSOAPRequest
     extends Sendable
 {
     private static final String SOAPREQUESTTEMPLATE = "SpineSoapTemplate.txt";
-    private static final String HTTPHEADER = "POST __CONTEXT_PATH__ HTTP/1.1\r\nHost: __HOST__\r\nSOAPAction: __SOAP_ACTION__\r\nContent-Length: __CONTENT_LENGTH__\r\nContent-Type: text/xml; charset=utf-8\r\nConnection: close\r\n\r\n";
+    private static final String HTTPHEADER = "POST __CONTEXT_PATH__ HTTP/1.1\r\nHost: __HOST__\r\nSOAPAction: __SOAP_ACTION__\r\nContent-Length: __CONTENT_LENGTH__\r\nContent-Type: text/xml; charset=utf-8\r\nConnection: __CONNECTION__\r\n\r\n";
     private SpineHL7Message hl7message = null;
-    private SdsTransmissionDetails transmissionDetails = null;
     private String messageid = null;
     
     private static String template = null;
@@ -130,6 +129,7 @@ public class SpineSOAPRequest
         substitute(sb, "__HOST__", u.getHost());
         substitute(sb, "__SOAP_ACTION__", soapAction);
         substitute(sb, "__CONTENT_LENGTH__", Long.toString(l));
+        substitute(sb, "__CONNECTION__", ConnectionManager.getInstance().getOutboundConnectionHeader());
         return sb.toString();
     }
     